@@ -0,0 +1,220 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.Entities;
+import com.ontotext.trree.sdk.PluginConnection;
+import com.ontotext.trree.sdk.PluginException;
+import com.ontotext.trree.sdk.Statements;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Triple;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.RDFParseException;
+import org.eclipse.rdf4j.rio.RDFParser;
+import org.eclipse.rdf4j.rio.Rio;
+import org.eclipse.rdf4j.rio.helpers.AbstractRDFHandler;
+import org.slf4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.OffsetDateTime;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streams an RDF file (N-Triples, N-Quads or any other format Rio knows by the file name, optionally gzipped) into
+ * the repository as versions that are valid from a single load timestamp on. Each parsed statement is written
+ * straight as {@code <<<<s p o>> valid_from ts>> valid_until "9999-12-31..."} through the plugin connection, the
+ * plain triples are never stored, or as records of the {@link IntervalStore} if the versions are kept there.
+ * Statements that already have a live version, stored before or earlier in the file, are skipped and counted, as a
+ * commit inserting them opens no new version either. Only files below the configured directory can be loaded.
+ * <p>
+ * The loaded versions are made live and recorded in chunks while the file is parsed, see
+ * {@link LiveVersions#publishStaged}, so the memory a load takes does not grow with the size of the file.
+ */
+class BulkLoader {
+
+    private static final int EXPLICIT_STATEMENT_STATUS = 1;
+    private static final long PROGRESS_INTERVAL = 1_000_000;
+    private static final int CHUNK_SIZE = 100_000;
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+
+    private final Path directory;
+    private final LiveVersions liveVersions;
+    private final IntervalStore store;
+    private final int chunkSize;
+    private final Logger logger;
+
+    BulkLoader(Path directory, Logger logger) {
+        this(directory, null, null, logger);
+    }
+
+    /**
+     * @param directory    the directory files are loaded from, null disables the bulk load
+     * @param liveVersions index the loaded versions are recorded in, may be null
+     * @param store        store the versions are written to, null to write them as statements
+     */
+    BulkLoader(Path directory, LiveVersions liveVersions, IntervalStore store, Logger logger) {
+        this(directory, liveVersions, store, CHUNK_SIZE, logger);
+    }
+
+    /**
+     * @param chunkSize the number of versions made live at a time
+     */
+    BulkLoader(Path directory, LiveVersions liveVersions, IntervalStore store, int chunkSize, Logger logger) {
+        this.directory = directory == null ? null : directory.toAbsolutePath().normalize();
+        this.liveVersions = liveVersions;
+        this.store = store;
+        this.chunkSize = chunkSize;
+        this.logger = logger;
+    }
+
+    /**
+     * @param file           path of the file, relative to the load directory or absolute within it
+     * @param defaultContext context of statements that come without one, 0 for the default graph
+     * @return the number of versioned statements
+     */
+    long load(String file, long defaultContext, OffsetDateTime time, PluginConnection pluginConnection) {
+        Path path = resolve(file);
+        String name = path.getFileName().toString();
+        boolean gzipped = name.endsWith(".gz");
+        Optional<RDFFormat> format = Rio.getParserFormatForFileName(gzipped ? name.substring(0, name.length() - 3) : name);
+        if (!format.isPresent())
+            throw new PluginException("Unknown RDF format of bulk load file " + file);
+
+        VersionWriter writer = new VersionWriter(pluginConnection, defaultContext, VERS.timestamp(time));
+        logger.info("Bulk load of " + path + " as " + format.get().getName() + " with timestamp " + writer.timestamp.getLabel());
+        long start = System.nanoTime();
+        try (InputStream in = open(path, gzipped)) {
+            RDFParser parser = Rio.createParser(format.get());
+            parser.setRDFHandler(writer);
+            parser.parse(in, path.toUri().toString());
+            if (liveVersions != null)
+                liveVersions.checkLimit(writer.transactionId);
+        } catch (IOException | RDFParseException e) {
+            throw new PluginException("Bulk load of " + file + " failed after " + writer.count + " statements: " + e.getMessage(), e);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        logger.info(String.format("Bulk load of %s finished: %d statements in %.1f s (%.0f statements/s), %d already live skipped",
+                path, writer.count, seconds, writer.count / Math.max(seconds, 1e-9), writer.skipped));
+        return writer.count;
+    }
+
+    private Path resolve(String file) {
+        if (directory == null)
+            throw new PluginException("Bulk load is disabled, set " + PluginConfig.PROPERTY_PREFIX + "bulkLoadDirectory");
+        String location = file.startsWith("file:") ? Paths.get(URI.create(file)).toString() : file;
+        Path path = directory.resolve(location).toAbsolutePath().normalize();
+        if (!path.startsWith(directory))
+            throw new PluginException("Bulk load files must be within " + directory + ": " + file);
+        if (!Files.isRegularFile(path))
+            throw new PluginException("Bulk load file not found: " + path);
+        return path;
+    }
+
+    private static InputStream open(Path path, boolean gzipped) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(path), READ_BUFFER_SIZE);
+        return gzipped ? new GZIPInputStream(in, READ_BUFFER_SIZE) : in;
+    }
+
+    private class VersionWriter extends AbstractRDFHandler {
+        private final ValueFactory vf = SimpleValueFactory.getInstance();
+        private final Entities entities;
+        private final Statements statements;
+        private final long transactionId;
+        private final long defaultContext;
+        private final Literal timestamp;
+        private final long time;
+        private final long validUntil;
+        private final long openEnd;
+        // the context of consecutive statements is usually the same
+        private Resource lastContext;
+        private long lastContextId;
+        long count;
+        long skipped;
+
+        VersionWriter(PluginConnection pluginConnection, long defaultContext, Literal timestamp) {
+            this.entities = pluginConnection.getEntities();
+            this.statements = pluginConnection.getStatements();
+            this.transactionId = pluginConnection.getTransactionId();
+            this.defaultContext = defaultContext;
+            this.timestamp = timestamp;
+            this.time = TemporalIndex.millis(timestamp);
+            this.validUntil = entities.put(VERS.VALID_UNTIL, Entities.Scope.DEFAULT);
+            this.openEnd = entities.put(VERS.OPEN_END, Entities.Scope.DEFAULT);
+            entities.put(timestamp, Entities.Scope.DEFAULT);
+        }
+
+        @Override
+        public void handleStatement(Statement st) {
+            if (store != null) {
+                writeRecord(st);
+                return;
+            }
+            long context = context(st.getContext());
+            long s = 0, p = 0, o = 0;
+            if (liveVersions != null) {
+                s = entities.put(st.getSubject(), Entities.Scope.DEFAULT);
+                p = entities.put(st.getPredicate(), Entities.Scope.DEFAULT);
+                o = entities.put(st.getObject(), Entities.Scope.DEFAULT);
+                if (isLive(s, p, o, context))
+                    return;
+            }
+            Triple embedded = vf.createTriple(st.getSubject(), st.getPredicate(), st.getObject());
+            long version = entities.put(vf.createTriple(embedded, VERS.VALID_FROM, timestamp), Entities.Scope.DEFAULT);
+            statements.put(version, validUntil, openEnd, context, EXPLICIT_STATEMENT_STATUS);
+            if (liveVersions != null)
+                liveVersions.opened(transactionId, s, p, o, context, version, entities.put(embedded, Entities.Scope.DEFAULT), time);
+            counted();
+        }
+
+        private void writeRecord(Statement st) {
+            long s = entities.put(st.getSubject(), Entities.Scope.DEFAULT);
+            long p = entities.put(st.getPredicate(), Entities.Scope.DEFAULT);
+            long o = entities.put(st.getObject(), Entities.Scope.DEFAULT);
+            long context = context(st.getContext());
+            if (isLive(s, p, o, context))
+                return;
+            long record;
+            try {
+                record = store.open(transactionId, s, p, o, context, time);
+            } catch (IOException e) {
+                throw new PluginException("Cannot write to the interval store: " + e.getMessage(), e);
+            }
+            if (liveVersions != null)
+                liveVersions.opened(transactionId, s, p, o, context, record, liveVersions.tripleId(s, p, o, entities), time);
+            counted();
+        }
+
+        private void counted() {
+            if (++count % chunkSize == 0 && liveVersions != null)
+                liveVersions.publishStaged(transactionId, entities);
+            if (count % PROGRESS_INTERVAL == 0)
+                logger.info("Bulk load: " + count + " statements");
+        }
+
+        private boolean isLive(long s, long p, long o, long context) {
+            if (liveVersions == null || !liveVersions.isLive(transactionId, s, p, o, context))
+                return false;
+            skipped++;
+            return true;
+        }
+
+        private long context(Resource context) {
+            if (context == null)
+                return defaultContext;
+            if (!context.equals(lastContext)) {
+                lastContextId = entities.put(context, Entities.Scope.DEFAULT);
+                lastContext = context;
+            }
+            return lastContextId;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.Entities;
+import org.slf4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Ordered log of the committed version events, for consumers that follow the changes of the repository. Every
+ * event has an offset, counted from 0 over the life of the log, and is one N-Quads-star line:
+ * <pre>
+ * &lt;&lt;s p o&gt;&gt; vers:valid_from "time"^^xsd:dateTime &lt;graph&gt; .
+ * &lt;&lt;s p o&gt;&gt; vers:valid_until "time"^^xsd:dateTime &lt;graph&gt; .
+ * </pre>
+ * for a version that was opened or closed, with the time in UTC and no graph for the default graph.
+ * <p>
+ * The log is rolled into segments of about the configured size. A segment is a file {@code <first offset>.log} of
+ * lines with a file {@code <first offset>.index} holding the position of each line as 8-byte big-endian number, so
+ * the position of an offset is found without reading the log. {@link #transferTo} hands the events from an offset on
+ * to a channel with {@link FileChannel#transferTo}, and other processes may read the files the same way: only
+ * complete lines are indexed, and a torn line at the end of the last segment is cut off on open.
+ */
+class ChangeLog implements Closeable {
+
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".index";
+    private static final String OPENED = ' ' + PluginUtils.entityToString(VERS.VALID_FROM) + ' ';
+    private static final String CLOSED = ' ' + PluginUtils.entityToString(VERS.VALID_UNTIL) + ' ';
+
+    private static class Segment {
+        final long base;
+        final RandomAccessFile log;
+        final RandomAccessFile index;
+        // complete lines and their bytes, guarded by the change log
+        long count;
+        long size;
+
+        Segment(File directory, long base) throws IOException {
+            this.base = base;
+            this.log = new RandomAccessFile(new File(directory, name(base) + LOG_SUFFIX), "rw");
+            this.index = new RandomAccessFile(new File(directory, name(base) + INDEX_SUFFIX), "rw");
+        }
+
+        void close() throws IOException {
+            log.close();
+            index.close();
+        }
+    }
+
+    private final File directory;
+    private final long segmentSize;
+    private final EntityCache entityCache;
+    private final Logger logger;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private Segment active;
+
+    // lines appended since the last flush, and their positions in the active segment
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long[] pendingPositions = new long[64];
+    private int pendingCount;
+    // set once an append failed, nothing is appended then
+    private boolean failed;
+
+    private ChangeLog(File directory, long segmentSize, EntityCache entityCache, Logger logger) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.entityCache = entityCache;
+        this.logger = logger;
+    }
+
+    /**
+     * Opens the log in the directory, creating it if needed.
+     *
+     * @param segmentSize bytes after which a new segment is started
+     */
+    static ChangeLog open(File directory, long segmentSize, EntityCache entityCache, Logger logger) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create " + directory);
+        ChangeLog changeLog = new ChangeLog(directory, segmentSize, entityCache, logger);
+        try {
+            changeLog.recover();
+        } catch (IOException | RuntimeException e) {
+            changeLog.close();
+            throw e;
+        }
+        return changeLog;
+    }
+
+    private void recover() throws IOException {
+        String[] names = directory.list((dir, name) -> name.endsWith(LOG_SUFFIX));
+        long[] bases = new long[names == null ? 0 : names.length];
+        for (int i = 0; i < bases.length; i++) {
+            try {
+                bases[i] = Long.parseLong(names[i].substring(0, names[i].length() - LOG_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                throw new IOException("Unexpected file in the change log: " + names[i]);
+            }
+        }
+        Arrays.sort(bases);
+        for (long base : bases) {
+            Segment segment = new Segment(directory, base);
+            segments.put(base, segment);
+            segment.count = segment.index.length() / 8;
+            segment.size = segment.log.length();
+        }
+        if (segments.isEmpty())
+            segments.put(0L, new Segment(directory, 0));
+        active = segments.lastEntry().getValue();
+        reindex(active);
+    }
+
+    /**
+     * Indexes the complete lines of the segment, an append may have been cut off by a crash.
+     */
+    private void reindex(Segment segment) throws IOException {
+        FileChannel log = segment.log.getChannel();
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        ByteBuffer positions = ByteBuffer.allocate(1 << 16);
+        long position = 0, lineStart = 0, count = 0;
+        segment.index.setLength(0);
+        while (log.read(buffer, position) > 0) {
+            buffer.flip();
+            for (int i = 0; i < buffer.limit(); i++) {
+                if (buffer.get(i) != '\n')
+                    continue;
+                if (!positions.hasRemaining()) {
+                    positions.flip();
+                    segment.index.getChannel().write(positions, 8 * (count - positions.limit() / 8));
+                    positions.clear();
+                }
+                positions.putLong(lineStart);
+                count++;
+                lineStart = position + i + 1;
+            }
+            position += buffer.limit();
+            buffer.clear();
+        }
+        positions.flip();
+        segment.index.getChannel().write(positions, 8 * (count - positions.limit() / 8));
+        if (lineStart != segment.log.length())
+            logger.warn("Cut a torn event of " + (segment.log.length() - lineStart) + " bytes off the change log");
+        segment.log.setLength(lineStart);
+        segment.count = count;
+        segment.size = lineStart;
+    }
+
+    /**
+     * Appends an opened or closed version, see {@link #flush}.
+     *
+     * @param kind   {@link TemporalIndex#OPENED} or {@link TemporalIndex#CLOSED}
+     * @param time   the version's valid_from or valid_until as epoch millis
+     * @param triple the entity ID of the embedded triple
+     */
+    synchronized void append(long kind, long context, long time, long triple, Entities entities) {
+        if (!failed)
+            append(event(kind, context, time, triple, entities));
+    }
+
+    /**
+     * @return the line of an opened or closed version, for appending it later with {@link #append(String)}
+     */
+    String event(long kind, long context, long time, long triple, Entities entities) {
+        StringBuilder line = new StringBuilder(256);
+        line.append(entityCache.ntriples(triple, entities))
+                .append(kind == TemporalIndex.OPENED ? OPENED : CLOSED);
+        PluginUtils.appendEntity(VERS.timestamp(OffsetDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneOffset.UTC)), line);
+        if (context != 0)
+            line.append(' ').append(entityCache.ntriples(context, entities));
+        return line.append(" .\n").toString();
+    }
+
+    /**
+     * Appends a line rendered by {@link #event}, see {@link #flush}.
+     */
+    synchronized void append(String event) {
+        if (failed)
+            return;
+        byte[] bytes = event.getBytes(StandardCharsets.UTF_8);
+        try {
+            long end = active.size + pending.size();
+            if (end > 0 && end + bytes.length > segmentSize) {
+                flushPending();
+                roll();
+                end = 0;
+            }
+            if (pendingCount == pendingPositions.length)
+                pendingPositions = Arrays.copyOf(pendingPositions, pendingCount * 2);
+            pendingPositions[pendingCount++] = end;
+            pending.write(bytes, 0, bytes.length);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Writes the appended events to their segment and makes them visible to readers.
+     */
+    synchronized void flush() {
+        if (failed)
+            return;
+        try {
+            flushPending();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * @return the offset of the oldest event kept
+     */
+    long firstOffset() {
+        return segments.firstKey();
+    }
+
+    /**
+     * @return the offset the next event gets
+     */
+    synchronized long nextOffset() {
+        return active.base + active.count;
+    }
+
+    /**
+     * Hands the events from the offset to the end of its segment to the channel, without copying them through the
+     * heap. Calling it again with the returned offset until that is {@link #nextOffset} reads all events.
+     *
+     * @return the offset after the last event transferred
+     */
+    long transferTo(long offset, WritableByteChannel target) throws IOException {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+        if (entry == null)
+            throw new IllegalArgumentException("Offset " + offset + " is before the first event kept, " + firstOffset());
+        Segment segment = entry.getValue();
+        long count, size;
+        synchronized (this) {
+            count = segment.count;
+            size = segment.size;
+        }
+        if (offset >= segment.base + count) {
+            if (offset > segment.base + count)
+                throw new IllegalArgumentException("Offset " + offset + " is after the last event, " + nextOffset());
+            return offset;
+        }
+        ByteBuffer position = ByteBuffer.allocate(8);
+        FileChannel index = segment.index.getChannel();
+        while (position.hasRemaining() && index.read(position, 8 * (offset - segment.base) + position.position()) > 0)
+            ;
+        long start = position.getLong(0);
+        FileChannel log = segment.log.getChannel();
+        while (start < size)
+            start += log.transferTo(start, size - start, target);
+        return segment.base + count;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments.values()) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                logger.warn("Cannot close the change log segment " + name(segment.base), e);
+            }
+        }
+    }
+
+    private void flushPending() throws IOException {
+        if (pendingCount == 0)
+            return;
+        ByteBuffer lines = ByteBuffer.wrap(pending.toByteArray());
+        FileChannel log = active.log.getChannel();
+        while (lines.hasRemaining())
+            log.write(lines, active.size + lines.position());
+        ByteBuffer positions = ByteBuffer.allocate(8 * pendingCount);
+        for (int i = 0; i < pendingCount; i++)
+            positions.putLong(pendingPositions[i]);
+        positions.flip();
+        FileChannel index = active.index.getChannel();
+        while (positions.hasRemaining())
+            index.write(positions, 8 * active.count + positions.position());
+        active.size += pending.size();
+        active.count += pendingCount;
+        pending.reset();
+        pendingCount = 0;
+    }
+
+    private void roll() throws IOException {
+        long base = active.base + active.count;
+        active = new Segment(directory, base);
+        segments.put(base, active);
+        logger.info("Started change log segment " + name(base));
+    }
+
+    private void fail(IOException e) {
+        logger.error("Cannot append to the change log in " + directory + ", no further events are logged", e);
+        failed = true;
+        pending.reset();
+        pendingCount = 0;
+    }
+
+    private static String name(long base) {
+        return String.format("%020d", base);
+    }
+}
@@ -0,0 +1,371 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the deferred part of the timestamp writes (see {@link TimestampWriter}) after the user's commit.
+ * Tasks are spread over a number of lanes by their {@link Task#laneKey() lane key}. Each lane is a single writer
+ * thread fed by a bounded queue, so tasks with the same key run one after another in submission order while
+ * other lanes proceed in parallel. When a lane's queue is full the configured {@link BackpressurePolicy} decides
+ * what happens to the committing thread's task. A failing task is retried a few times with a growing pause before
+ * it is given up. Queue depth and queue wait time are tracked.
+ */
+class CommitPipeline {
+
+    enum BackpressurePolicy {
+        /**
+         * The committing thread waits until there is room in the queue.
+         */
+        BLOCK,
+        /**
+         * The task is dropped and counted, the versions of that transaction are lost.
+         */
+        SHED,
+        /**
+         * The task is merged into the last queued task if both allow it, otherwise the committing thread waits.
+         */
+        COALESCE
+    }
+
+    /**
+     * A unit of deferred work.
+     */
+    interface Task extends Runnable {
+        /**
+         * @return the key deciding the lane; tasks with equal keys run in submission order
+         */
+        default long laneKey() {
+            return 0;
+        }
+
+        /**
+         * @return a task doing the work of this task followed by the later one, or null if they cannot be combined
+         */
+        default Task coalesce(Task later) {
+            return null;
+        }
+    }
+
+    /**
+     * Told how a submitted task ended, also when it was coalesced into another task.
+     */
+    interface Listener {
+        /**
+         * Called on the lane thread once the task succeeded.
+         */
+        void completed();
+
+        /**
+         * Called on the lane thread once the task failed for the last time, or on the committing thread if it was
+         * shed.
+         *
+         * @param shed true if the task was dropped by the {@link BackpressurePolicy#SHED} policy
+         */
+        default void givenUp(boolean shed) {
+        }
+    }
+
+    private static final long FIRST_RETRY_PAUSE_MILLIS = 100;
+
+    private final BackpressurePolicy policy;
+    private final int attempts;
+    private final long shutdownTimeoutMillis;
+    private final Logger logger;
+    private final Lane[] lanes;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * @param lanes         number of writer threads
+     * @param queueCapacity number of tasks that may wait in each lane
+     * @param retries       how often a failed task is run again before it is given up
+     */
+    CommitPipeline(int lanes, int queueCapacity, BackpressurePolicy policy, int retries, long shutdownTimeoutMillis,
+                   Logger logger) {
+        if (lanes < 1 || queueCapacity < 1 || retries < 0)
+            throw new IllegalArgumentException("The commit pipeline needs at least one lane, a queue capacity of at least one "
+                    + "and a non-negative number of retries");
+        this.policy = policy;
+        this.attempts = retries + 1;
+        this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+        this.logger = logger;
+        this.lanes = new Lane[lanes];
+        for (int i = 0; i < lanes; i++)
+            this.lanes[i] = new Lane(i, queueCapacity);
+    }
+
+    void submit(Task task) {
+        submit(task, (Listener) null);
+    }
+
+    /**
+     * @param onCompleted run on the lane thread once the task, or a task it was coalesced into, succeeded
+     */
+    void submit(Task task, Runnable onCompleted) {
+        submit(task, onCompleted == null ? null : (Listener) onCompleted::run);
+    }
+
+    /**
+     * @param listener told how the task, or a task it was coalesced into, ended
+     */
+    void submit(Task task, Listener listener) {
+        submitted.incrementAndGet();
+        Lane lane = lanes[Math.floorMod(Long.hashCode(task.laneKey() * 0x9E3779B97F4A7C15L), lanes.length)];
+        // committing threads enqueue one at a time, so nothing is queued between finding the last task and merging into it
+        synchronized (lane) {
+            lane.executor.execute(new PendingTask(task, listener));
+        }
+        maxQueueDepth.accumulateAndGet(lane.queue.size(), Math::max);
+    }
+
+    /**
+     * Tasks are queued and coalesced while holding the lane's lock.
+     */
+    private class Lane {
+        final LinkedBlockingDeque<Runnable> queue;
+        final ThreadPoolExecutor executor;
+
+        Lane(int number, int queueCapacity) {
+            queue = new LinkedBlockingDeque<>(queueCapacity);
+            executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, queue, r -> {
+                Thread thread = new Thread(r, "rdf-star-timestamping-commit-" + number);
+                thread.setDaemon(true);
+                return thread;
+            }, (r, e) -> onFullQueue(this, (PendingTask) r)) {
+                @Override
+                protected void beforeExecute(Thread t, Runnable r) {
+                    long wait = System.nanoTime() - ((PendingTask) r).enqueuedNanos;
+                    totalWaitNanos.addAndGet(wait);
+                    maxWaitNanos.accumulateAndGet(wait, Math::max);
+                }
+
+                @Override
+                protected void afterExecute(Runnable r, Throwable t) {
+                    PendingTask pending = (PendingTask) r;
+                    Throwable failure = t != null ? t : pending.failure;
+                    if (failure == null) {
+                        completed.incrementAndGet();
+                        pending.completed();
+                    } else {
+                        failed.incrementAndGet();
+                        logger.error("Writing timestamped triples failed", failure);
+                        pending.givenUp(false);
+                    }
+                }
+            };
+        }
+    }
+
+    private void onFullQueue(Lane lane, PendingTask pending) {
+        if (lane.executor.isShutdown())
+            throw new RejectedExecutionException("Commit pipeline is shut down");
+        switch (policy) {
+            case SHED:
+                shed.incrementAndGet();
+                logger.error("Commit pipeline is full, timestamped triples of a transaction are dropped. " + this);
+                pending.givenUp(true);
+                return;
+            case COALESCE:
+                if (coalesceWithLast(lane, pending))
+                    return;
+                // fall through: nothing to merge with, wait for room instead
+            case BLOCK:
+            default:
+                putLast(lane, pending);
+        }
+    }
+
+    /**
+     * Merges the task into the last queued one of the lane, in place, as long as the worker did not start it.
+     * Called with the lane's lock held, so no other task is queued behind the last one meanwhile.
+     */
+    private boolean coalesceWithLast(Lane lane, PendingTask pending) {
+        PendingTask last = (PendingTask) lane.queue.peekLast();
+        if (last == null)
+            return false;
+        synchronized (last) {
+            if (last.started)
+                return false;
+            Task merged = last.task.coalesce(pending.task);
+            if (merged == null)
+                return false;
+            last.task = merged;
+            last.listeners.addAll(pending.listeners);
+        }
+        coalesced.incrementAndGet();
+        return true;
+    }
+
+    private static void putLast(Lane lane, PendingTask pending) {
+        try {
+            lane.queue.putLast(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for room in the commit pipeline", e);
+        }
+    }
+
+    /**
+     * Stops accepting tasks and waits until the queued ones are written. Tasks still queued after the
+     * shutdown timeout are dropped.
+     */
+    void shutdown() {
+        for (Lane lane : lanes)
+            lane.executor.shutdown();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownTimeoutMillis);
+        try {
+            for (Lane lane : lanes) {
+                if (!lane.executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    int dropped = lane.executor.shutdownNow().size();
+                    logger.error("Commit pipeline did not drain within " + shutdownTimeoutMillis + " ms, "
+                            + dropped + " queued tasks dropped");
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Lane lane : lanes)
+                lane.executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        logger.info("Commit pipeline shut down. " + this);
+    }
+
+    int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes)
+            depth += lane.queue.size();
+        return depth;
+    }
+
+    /**
+     * @return the deepest a single lane's queue has been
+     */
+    int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    long getShed() {
+        return shed.get();
+    }
+
+    long getCoalesced() {
+        return coalesced.get();
+    }
+
+    long getCompleted() {
+        return completed.get();
+    }
+
+    long getFailed() {
+        return failed.get();
+    }
+
+    long getRetried() {
+        return retried.get();
+    }
+
+    /**
+     * @return average time tasks spent in the queue before a worker picked them up
+     */
+    double getAverageWaitMillis() {
+        long started = completed.get() + failed.get();
+        return started == 0 ? 0 : totalWaitNanos.get() / 1e6 / started;
+    }
+
+    double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("commit pipeline (%d lanes, %s): %d submitted, %d completed, %d failed, %d retried, "
+                        + "%d shed, %d coalesced, queue depth %d (max %d), queue wait avg %.1f ms (max %.1f ms)",
+                lanes.length, policy, submitted.get(), completed.get(), failed.get(), retried.get(), shed.get(), coalesced.get(),
+                getQueueDepth(), getMaxQueueDepth(), getAverageWaitMillis(), getMaxWaitMillis());
+    }
+
+    private class PendingTask implements Runnable {
+        // the earliest enqueue time of all coalesced tasks
+        final long enqueuedNanos = System.nanoTime();
+        // task, listeners and started are guarded by this task's lock until the task started
+        Task task;
+        final List<Listener> listeners = new ArrayList<>(1);
+        boolean started;
+        // caught here so that a failed write does not cost the worker thread
+        RuntimeException failure;
+
+        PendingTask(Task task, Listener listener) {
+            this.task = task;
+            if (listener != null)
+                listeners.add(listener);
+        }
+
+        @Override
+        public void run() {
+            Task task;
+            // not the lane's lock, a committing thread may hold that while it waits for room in the queue
+            synchronized (this) {
+                // nothing is coalesced into the task from now on
+                started = true;
+                task = this.task;
+            }
+            long pause = FIRST_RETRY_PAUSE_MILLIS;
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    task.run();
+                    failure = null;
+                    return;
+                } catch (RuntimeException e) {
+                    failure = e;
+                    if (attempt >= attempts || Thread.currentThread().isInterrupted())
+                        return;
+                }
+                retried.incrementAndGet();
+                logger.warn("Writing timestamped triples failed, attempt " + attempt + " of " + attempts + ": " + failure);
+                try {
+                    Thread.sleep(pause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                pause *= 2;
+            }
+        }
+
+        void completed() {
+            for (Listener listener : listeners) {
+                try {
+                    listener.completed();
+                } catch (RuntimeException e) {
+                    logger.error("Completing a timestamp job failed", e);
+                }
+            }
+        }
+
+        void givenUp(boolean shed) {
+            for (Listener listener : listeners) {
+                try {
+                    listener.givenUp(shed);
+                } catch (RuntimeException e) {
+                    logger.error("Giving up a timestamp job failed", e);
+                }
+            }
+        }
+    }
+}
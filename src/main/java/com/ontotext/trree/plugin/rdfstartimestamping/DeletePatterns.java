@@ -0,0 +1,73 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The wildcard deletes of a transaction, e.g. a CLEAR GRAPH or a DELETE WHERE with unbound positions, 0 being a
+ * wildcard for the subject, predicate and object. They are matched against the live versions of the contexts they
+ * name in one pass at commit, see {@link LiveVersions#match}, instead of one pass per request. The patterns are kept by context and, if it is
+ * bound, by subject, so a live version is only compared with the patterns that can match it.
+ * <p>
+ * Each pattern remembers how many changes the transaction had requested before it, see {@link NetChanges#sequence},
+ * so a triple inserted again after the delete keeps its version.
+ */
+class DeletePatterns {
+
+    // context -> sequence of the latest pattern that matches all of the context
+    private final LongMap contexts = new LongMap();
+    // subject -> predicate, object, context and sequence of the patterns with that subject
+    private final Map<Long, List<long[]>> bySubject = new HashMap<>();
+    // predicate, object, context and sequence of the other patterns
+    private final List<long[]> others = new ArrayList<>();
+    // the contexts named by the patterns
+    private final LongSet named = new LongSet();
+    private int size;
+
+    void add(long subject, long predicate, long object, long context, long sequence) {
+        size++;
+        named.add(context);
+        if (subject == 0 && predicate == 0 && object == 0)
+            contexts.put(context, Math.max(sequence, contexts.get(context, -1)));
+        else if (subject != 0)
+            bySubject.computeIfAbsent(subject, s -> new ArrayList<>(1)).add(new long[]{predicate, object, context, sequence});
+        else
+            others.add(new long[]{predicate, object, context, sequence});
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the contexts the patterns match in
+     */
+    long[] contexts() {
+        return named.toArray();
+    }
+
+    /**
+     * @return the sequence of the latest pattern matching the quad, -1 if none does
+     */
+    long latest(long subject, long predicate, long object, long context) {
+        long latest = contexts.get(context, -1);
+        List<long[]> patterns = bySubject.get(subject);
+        if (patterns != null)
+            latest = latest(patterns, predicate, object, context, latest);
+        return others.isEmpty() ? latest : latest(others, predicate, object, context, latest);
+    }
+
+    private static long latest(List<long[]> patterns, long predicate, long object, long context, long latest) {
+        for (long[] pattern : patterns) {
+            if (pattern[2] == context && (pattern[0] == 0 || pattern[0] == predicate) && (pattern[1] == 0 || pattern[1] == object))
+                latest = Math.max(latest, pattern[3]);
+        }
+        return latest;
+    }
+}
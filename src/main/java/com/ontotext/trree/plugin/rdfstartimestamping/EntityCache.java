@@ -0,0 +1,179 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.Entities;
+import org.eclipse.rdf4j.model.Value;
+
+import java.util.Arrays;
+
+/**
+ * Bounded cache from entity ID to the decoded {@link Value} and its N-Triples(-star) form, so that decoding
+ * and rendering run once per distinct entity instead of once per occurrence. Entries are evicted with the
+ * CLOCK (second chance) algorithm. The ID index is an open-addressing table over the entry slots, so a hit
+ * allocates nothing.
+ * <p>
+ * Only IDs of stored entities belong in the cache. The IDs of request scope entities, e.g. the constants of a query,
+ * are valid within one request only and handed out again later, so they are decoded with {@link Entities#get}.
+ */
+class EntityCache {
+
+    private final int capacity;
+    private final long[] ids;
+    private final Value[] values;
+    private final String[] rendered;
+    private final boolean[] referenced;
+    // slot + 1 per table position, 0 marks an empty position
+    private final int[] table;
+    private int size;
+    private int hand;
+
+    private long hits;
+    private long misses;
+
+    EntityCache(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Entity cache capacity must be positive: " + capacity);
+        this.capacity = capacity;
+        ids = new long[capacity];
+        values = new Value[capacity];
+        rendered = new String[capacity];
+        referenced = new boolean[capacity];
+        table = new int[Integer.highestOneBit(capacity) << 2];
+    }
+
+    /**
+     * @return the decoded entity or null for ID 0, which stands for the default graph
+     */
+    synchronized Value get(long id, Entities entities) {
+        if (id == 0)
+            return null;
+        return values[lookup(id, entities)];
+    }
+
+    /**
+     * @return the entity in the form used within the update templates, see {@link PluginUtils#entityToString(Value)}
+     */
+    synchronized String ntriples(long id, Entities entities) {
+        int slot = lookup(id, entities);
+        String form = rendered[slot];
+        if (form == null) {
+            form = PluginUtils.entityToString(values[slot]);
+            rendered[slot] = form;
+        }
+        return form;
+    }
+
+    /**
+     * Drops all entries, e.g. after an aborted transaction whose entity IDs may be handed out again.
+     */
+    synchronized void clear() {
+        Arrays.fill(table, 0);
+        Arrays.fill(values, null);
+        Arrays.fill(rendered, null);
+        size = 0;
+        hand = 0;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long requests = hits + misses;
+        return String.format("entity cache: %d/%d entries, %d hits, %d misses (%.1f%% hit rate)",
+                size, capacity, hits, misses, requests == 0 ? 0.0 : 100.0 * hits / requests);
+    }
+
+    private int lookup(long id, Entities entities) {
+        int slot = slotOf(id);
+        if (slot >= 0) {
+            hits++;
+            referenced[slot] = true;
+            return slot;
+        }
+        misses++;
+        Value value = entities.get(id);
+        slot = freeSlot();
+        ids[slot] = id;
+        values[slot] = value;
+        rendered[slot] = null;
+        referenced[slot] = false;
+        indexPut(id, slot);
+        return slot;
+    }
+
+    private int freeSlot() {
+        if (size < capacity)
+            return size++;
+        // Second chance: referenced entries are passed over once, the first unreferenced one is evicted
+        while (referenced[hand]) {
+            referenced[hand] = false;
+            hand = (hand + 1) % capacity;
+        }
+        int victim = hand;
+        hand = (hand + 1) % capacity;
+        indexRemove(ids[victim]);
+        return victim;
+    }
+
+    private int slotOf(long id) {
+        int mask = table.length - 1;
+        int position = mix(id) & mask;
+        while (true) {
+            int entry = table[position];
+            if (entry == 0)
+                return -1;
+            if (ids[entry - 1] == id)
+                return entry - 1;
+            position = (position + 1) & mask;
+        }
+    }
+
+    private void indexPut(long id, int slot) {
+        int mask = table.length - 1;
+        int position = mix(id) & mask;
+        while (table[position] != 0)
+            position = (position + 1) & mask;
+        table[position] = slot + 1;
+    }
+
+    /**
+     * Removes the ID from the index and shifts the following entries of its probe sequence back, so that
+     * lookups never need tombstones.
+     */
+    private void indexRemove(long id) {
+        int mask = table.length - 1;
+        int hole = mix(id) & mask;
+        while (ids[table[hole] - 1] != id)
+            hole = (hole + 1) & mask;
+        table[hole] = 0;
+        int position = hole;
+        while (true) {
+            position = (position + 1) & mask;
+            int entry = table[position];
+            if (entry == 0)
+                return;
+            int home = mix(ids[entry - 1]) & mask;
+            // the entry may move into the hole unless its home lies cyclically within (hole, position]
+            boolean homeBetween = hole <= position ? hole < home && home <= position : hole < home || home <= position;
+            if (!homeBetween) {
+                table[hole] = entry;
+                table[position] = 0;
+                hole = position;
+            }
+        }
+    }
+
+    private static int mix(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,235 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.RequestContextImpl;
+import org.eclipse.rdf4j.query.Binding;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.Dataset;
+import org.eclipse.rdf4j.query.algebra.BNodeGenerator;
+import org.eclipse.rdf4j.query.algebra.FunctionCall;
+import org.eclipse.rdf4j.query.algebra.Service;
+import org.eclipse.rdf4j.query.algebra.StatementPattern;
+import org.eclipse.rdf4j.query.algebra.TupleExpr;
+import org.eclipse.rdf4j.query.algebra.helpers.AbstractQueryModelVisitor;
+import org.eclipse.rdf4j.query.impl.MapBindingSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Results of time travel queries, see {@link TimeTravelRewriter}. A query evaluated at an instant returns the same
+ * results until a transaction opens or closes a version at or before that instant, so the results are kept until
+ * then. Only queries that read nothing but snapshots are cached: all their statement patterns were rewritten to
+ * {@code vers:asOf} lookups and they call no function whose result changes between evaluations.
+ * <p>
+ * The cache holds at most a given number of rows, the least recently used queries are evicted first.
+ */
+class HistoricalResultCache {
+
+    private static final Set<String> VOLATILE_FUNCTIONS = new HashSet<>(Arrays.asList("NOW", "RAND", "UUID", "STRUUID"));
+
+    private static class Entry {
+        final long instant;
+        final List<BindingSet> rows;
+
+        Entry(long instant, List<BindingSet> rows) {
+            this.instant = instant;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * The evaluation of a time travel query, either served from the cache or recording its rows for it.
+     */
+    static class Evaluation extends RequestContextImpl {
+        private final String key;
+        private final long instant;
+        private final long generation;
+        private final List<BindingSet> cached;
+        private List<BindingSet> recorded = new ArrayList<>();
+
+        private Evaluation(String key, long instant, long generation, List<BindingSet> cached) {
+            this.key = key;
+            this.instant = instant;
+            this.generation = generation;
+            this.cached = cached;
+        }
+
+        /**
+         * @return true if the rows come from the cache and the query itself is not evaluated
+         */
+        boolean isCached() {
+            return cached != null;
+        }
+    }
+
+    private final int maxRows;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // keys of the entries by instant, for invalidation
+    private final NavigableMap<Long, Set<String>> byInstant = new TreeMap<>();
+    private long rows;
+    // changes with every invalidation, rows recorded across one are not stored
+    private long generation;
+
+    private long hits;
+    private long misses;
+    private long invalidated;
+
+    /**
+     * @param maxRows rows kept for all queries, 0 disables the cache
+     */
+    HistoricalResultCache(int maxRows) {
+        this.maxRows = maxRows;
+    }
+
+    /**
+     * @return the query's key, made of its algebra before the rewrite, dataset, inference and bindings
+     */
+    static String key(TupleExpr query, Dataset dataset, boolean includeInferred, BindingSet bindings, long instant) {
+        StringBuilder key = new StringBuilder(query.toString());
+        key.append('\n').append(dataset).append('\n').append(includeInferred).append('\n').append(instant);
+        if (bindings != null) {
+            for (String name : new TreeSet<>(bindings.getBindingNames())) {
+                if (!TimeTravelRewriter.BINDING.equals(name))
+                    key.append('\n').append(name).append('=').append(bindings.getValue(name));
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return true if the rewritten query reads nothing but snapshots and always returns the same results
+     */
+    static boolean isSnapshot(TupleExpr rewritten) {
+        boolean[] snapshot = {true};
+        rewritten.visit(new AbstractQueryModelVisitor<RuntimeException>() {
+            @Override
+            public void meet(StatementPattern node) {
+                if (!VERS.AS_OF.equals(node.getPredicateVar().getValue())
+                        || !TimeTravelRewriter.BINDING.equals(node.getObjectVar().getName()))
+                    snapshot[0] = false;
+            }
+
+            @Override
+            public void meet(FunctionCall node) {
+                if (VOLATILE_FUNCTIONS.contains(node.getURI()))
+                    snapshot[0] = false;
+                super.meet(node);
+            }
+
+            @Override
+            public void meet(BNodeGenerator node) {
+                snapshot[0] = false;
+            }
+
+            @Override
+            public void meet(Service node) {
+                snapshot[0] = false;
+            }
+        });
+        return snapshot[0];
+    }
+
+    /**
+     * @return the evaluation of the query, with the cached rows if there are any
+     */
+    synchronized Evaluation begin(String key, long instant) {
+        Entry entry = maxRows == 0 ? null : entries.get(key);
+        if (entry != null)
+            hits++;
+        else
+            misses++;
+        return new Evaluation(key, instant, generation, entry == null ? null : entry.rows);
+    }
+
+    /**
+     * Records a row the query returned.
+     */
+    void record(Evaluation evaluation, BindingSet row) {
+        if (evaluation.recorded == null)
+            return;
+        if (evaluation.recorded.size() == maxRows) {
+            // too large to be cached
+            evaluation.recorded = null;
+            return;
+        }
+        MapBindingSet copy = new MapBindingSet(row.size());
+        for (Binding binding : row)
+            copy.addBinding(binding);
+        evaluation.recorded.add(copy);
+    }
+
+    /**
+     * Finishes the evaluation.
+     *
+     * @return the cached rows of an evaluation served from the cache, no rows otherwise
+     */
+    Iterator<BindingSet> finish(Evaluation evaluation) {
+        if (evaluation.cached != null)
+            return evaluation.cached.iterator();
+        if (evaluation.recorded != null)
+            put(evaluation);
+        return Collections.emptyIterator();
+    }
+
+    /**
+     * Drops the results of queries at or after the time, as a transaction changed versions from then on.
+     */
+    synchronized void invalidate(long from) {
+        if (from == Long.MAX_VALUE)
+            return;
+        generation++;
+        NavigableMap<Long, Set<String>> changed = byInstant.tailMap(from, true);
+        for (Set<String> keys : changed.values()) {
+            for (String key : keys) {
+                rows -= entries.remove(key).rows.size();
+                invalidated++;
+            }
+        }
+        changed.clear();
+    }
+
+    /**
+     * Drops all results, e.g. once the versioned graphs changed.
+     */
+    synchronized void clear() {
+        generation++;
+        entries.clear();
+        byInstant.clear();
+        rows = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("historical result cache: %d queries, %d/%d rows, %d hits, %d misses, %d invalidated",
+                entries.size(), rows, maxRows, hits, misses, invalidated);
+    }
+
+    private synchronized void put(Evaluation evaluation) {
+        if (maxRows == 0 || evaluation.generation != generation || entries.containsKey(evaluation.key))
+            return;
+        entries.put(evaluation.key, new Entry(evaluation.instant, evaluation.recorded));
+        byInstant.computeIfAbsent(evaluation.instant, instant -> new HashSet<>()).add(evaluation.key);
+        rows += evaluation.recorded.size();
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (rows > maxRows) {
+            Map.Entry<String, Entry> evicted = eldest.next();
+            Entry entry = evicted.getValue();
+            eldest.remove();
+            rows -= entry.rows.size();
+            Set<String> keys = byInstant.get(entry.instant);
+            keys.remove(evicted.getKey());
+            if (keys.isEmpty())
+                byInstant.remove(entry.instant);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.Entities;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Splits the closed versions by the period their valid_until falls into. When a version is closed, its valid_until
+ * statement is moved out of its graph into the history graph of the period, e.g.
+ * {@code vers:history/2022-03} for the default graph and {@code vers:history/2022-03/<encoded graph IRI>} for a named
+ * one, so the versioned graphs only hold the live versions and those closed before partitioning was enabled. The
+ * {@link TemporalIndex} keeps the closed versions by period as well and still files them under their original graph.
+ * Versions in graphs named by a blank node stay in their graph.
+ */
+class HistoryPartitions {
+
+    static final String PREFIX = VERS.NAMESPACE + "history/";
+
+    enum Period {
+        /**
+         * Closed versions stay in their graph.
+         */
+        NONE,
+        YEAR,
+        MONTH,
+        DAY;
+
+        /**
+         * @return the epoch millis the period containing the time starts at, in UTC
+         */
+        long start(long millis) {
+            LocalDate date = Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC).toLocalDate();
+            switch (this) {
+                case YEAR:
+                    date = date.withDayOfYear(1);
+                    break;
+                case MONTH:
+                    date = date.withDayOfMonth(1);
+                    break;
+                case DAY:
+                    break;
+                default:
+                    return Long.MIN_VALUE;
+            }
+            try {
+                return date.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+            } catch (ArithmeticException e) {
+                // the period starts before the earliest time, e.g. that of an unbounded range
+                return Long.MIN_VALUE;
+            }
+        }
+
+        /**
+         * @return e.g. 2022, 2022-03 or 2022-03-28 for the period containing the time
+         */
+        String name(long millis) {
+            String date = Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC).toLocalDate().toString();
+            switch (this) {
+                case YEAR:
+                    return date.substring(0, date.length() - 6);
+                case MONTH:
+                    return date.substring(0, date.length() - 3);
+                case DAY:
+                    return date;
+                default:
+                    throw new IllegalStateException("Closed versions are not partitioned");
+            }
+        }
+    }
+
+    private static final HistoryPartitions NONE = new HistoryPartitions(Period.NONE);
+
+    private final ValueFactory vf = SimpleValueFactory.getInstance();
+    private final Period period;
+    // history graph -> versioned graph, filled while rebuilding the temporal index
+    private final Map<Long, Long> originals = new HashMap<>();
+
+    HistoryPartitions(Period period) {
+        this.period = period;
+    }
+
+    static HistoryPartitions none() {
+        return NONE;
+    }
+
+    Period getPeriod() {
+        return period;
+    }
+
+    boolean isEnabled() {
+        return period != Period.NONE;
+    }
+
+    /**
+     * @param context a versioned graph, null for the default graph
+     * @return the history graph of the graph's versions closed at the time, null if they stay in the graph
+     */
+    IRI graph(Value context, long until) {
+        if (period == Period.NONE || context != null && !(context instanceof IRI))
+            return null;
+        String name = PREFIX + period.name(until);
+        if (context == null)
+            return vf.createIRI(name);
+        try {
+            return vf.createIRI(name + "/" + URLEncoder.encode(context.stringValue(), "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the entity ID of the history graph of the context's versions closed at the time, the context itself if
+     * they stay in the context
+     */
+    long graph(long context, long until, Entities entities) {
+        if (period == Period.NONE)
+            return context;
+        Value value = context == 0 ? null : entities.get(context);
+        IRI graph = graph(value, until);
+        return graph == null ? context : entities.put(graph, Entities.Scope.DEFAULT);
+    }
+
+    /**
+     * @return the versioned graph of a history graph, any other context as it is
+     */
+    synchronized long original(long context, Entities entities) {
+        if (context == 0)
+            return 0;
+        Long original = originals.get(context);
+        if (original != null)
+            return original;
+        original = context;
+        Value value = entities.get(context);
+        if (value instanceof IRI && value.stringValue().startsWith(PREFIX)) {
+            String name = value.stringValue().substring(PREFIX.length());
+            int slash = name.indexOf('/');
+            if (slash < 0) {
+                original = 0L;
+            } else {
+                try {
+                    long id = entities.resolve(vf.createIRI(URLDecoder.decode(name.substring(slash + 1), "UTF-8")));
+                    if (id != 0)
+                        original = id;
+                } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                    // not a history graph of the plugin, the context is kept
+                }
+            }
+        }
+        originals.put(context, original);
+        return original;
+    }
+}
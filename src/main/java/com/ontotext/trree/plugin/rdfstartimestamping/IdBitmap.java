@@ -0,0 +1,193 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import java.util.Arrays;
+
+/**
+ * Compressed set of entity IDs in the manner of a roaring bitmap: the IDs are grouped by their upper 48 bits, and
+ * the lower 16 bits of each group are kept in a sorted {@code char[]} while the group is sparse and in a 8 KB bitmap
+ * once it holds more than {@value #ARRAY_LIMIT} IDs. Entity IDs are handed out densely, so most groups end up as
+ * bitmaps and an ID takes little more than a bit.
+ */
+class IdBitmap {
+
+    private static final int ARRAY_LIMIT = 4096;
+    private static final int BITMAP_WORDS = 1 << 16 >>> 6;
+
+    // sorted upper bits of the groups, with a container and cardinality per group
+    private long[] keys = new long[4];
+    private Object[] containers = new Object[4];
+    private int[] cardinalities = new int[4];
+    private int groups;
+    private long size;
+
+    /**
+     * @return false if the ID was already in the set
+     */
+    boolean add(long id) {
+        long key = id >>> 16;
+        char low = (char) id;
+        int group = group(key);
+        if (group < 0) {
+            group = -group - 1;
+            insertGroup(group, key);
+        }
+        Object container = containers[group];
+        int cardinality = cardinalities[group];
+        if (container instanceof long[]) {
+            long[] bits = (long[]) container;
+            long mask = 1L << low;
+            if ((bits[low >>> 6] & mask) != 0)
+                return false;
+            bits[low >>> 6] |= mask;
+        } else {
+            char[] values = (char[]) container;
+            int position = Arrays.binarySearch(values, 0, cardinality, low);
+            if (position >= 0)
+                return false;
+            position = -position - 1;
+            if (cardinality == ARRAY_LIMIT) {
+                long[] bits = toBitmap(values, cardinality);
+                bits[low >>> 6] |= 1L << low;
+                containers[group] = bits;
+            } else {
+                if (cardinality == values.length)
+                    containers[group] = values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT, values.length * 2));
+                System.arraycopy(values, position, values, position + 1, cardinality - position);
+                values[position] = low;
+            }
+        }
+        cardinalities[group]++;
+        size++;
+        return true;
+    }
+
+    /**
+     * @return false if the ID was not in the set
+     */
+    boolean remove(long id) {
+        int group = group(id >>> 16);
+        if (group < 0)
+            return false;
+        char low = (char) id;
+        Object container = containers[group];
+        int cardinality = cardinalities[group];
+        if (container instanceof long[]) {
+            long[] bits = (long[]) container;
+            long mask = 1L << low;
+            if ((bits[low >>> 6] & mask) == 0)
+                return false;
+            bits[low >>> 6] &= ~mask;
+            if (cardinality - 1 == ARRAY_LIMIT)
+                containers[group] = toArray(bits, ARRAY_LIMIT);
+        } else {
+            char[] values = (char[]) container;
+            int position = Arrays.binarySearch(values, 0, cardinality, low);
+            if (position < 0)
+                return false;
+            System.arraycopy(values, position + 1, values, position, cardinality - position - 1);
+        }
+        size--;
+        if (--cardinalities[group] == 0)
+            removeGroup(group);
+        return true;
+    }
+
+    boolean contains(long id) {
+        int group = group(id >>> 16);
+        if (group < 0)
+            return false;
+        char low = (char) id;
+        Object container = containers[group];
+        if (container instanceof long[])
+            return (((long[]) container)[low >>> 6] & 1L << low) != 0;
+        return Arrays.binarySearch((char[]) container, 0, cardinalities[group], low) >= 0;
+    }
+
+    long size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the IDs in ascending order
+     */
+    long[] toArray() {
+        long[] ids = new long[(int) size];
+        int count = 0;
+        for (int group = 0; group < groups; group++) {
+            long high = keys[group] << 16;
+            Object container = containers[group];
+            if (container instanceof long[]) {
+                long[] bits = (long[]) container;
+                for (int word = 0; word < bits.length; word++) {
+                    for (long w = bits[word]; w != 0; w &= w - 1)
+                        ids[count++] = high | (word << 6) + Long.numberOfTrailingZeros(w);
+                }
+            } else {
+                char[] values = (char[]) container;
+                for (int i = 0; i < cardinalities[group]; i++)
+                    ids[count++] = high | values[i];
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return the approximate memory the containers take
+     */
+    long sizeInBytes() {
+        long bytes = 20L * keys.length;
+        for (int group = 0; group < groups; group++)
+            bytes += containers[group] instanceof long[] ? 8L * BITMAP_WORDS : 2L * ((char[]) containers[group]).length;
+        return bytes;
+    }
+
+    private int group(long key) {
+        // IDs mostly go to the last group
+        if (groups > 0 && keys[groups - 1] == key)
+            return groups - 1;
+        return Arrays.binarySearch(keys, 0, groups, key);
+    }
+
+    private void insertGroup(int group, long key) {
+        if (groups == keys.length) {
+            keys = Arrays.copyOf(keys, groups * 2);
+            containers = Arrays.copyOf(containers, groups * 2);
+            cardinalities = Arrays.copyOf(cardinalities, groups * 2);
+        }
+        System.arraycopy(keys, group, keys, group + 1, groups - group);
+        System.arraycopy(containers, group, containers, group + 1, groups - group);
+        System.arraycopy(cardinalities, group, cardinalities, group + 1, groups - group);
+        keys[group] = key;
+        containers[group] = new char[4];
+        cardinalities[group] = 0;
+        groups++;
+    }
+
+    private void removeGroup(int group) {
+        System.arraycopy(keys, group + 1, keys, group, groups - group - 1);
+        System.arraycopy(containers, group + 1, containers, group, groups - group - 1);
+        System.arraycopy(cardinalities, group + 1, cardinalities, group, groups - group - 1);
+        containers[--groups] = null;
+    }
+
+    private static long[] toBitmap(char[] values, int cardinality) {
+        long[] bits = new long[BITMAP_WORDS];
+        for (int i = 0; i < cardinality; i++)
+            bits[values[i] >>> 6] |= 1L << values[i];
+        return bits;
+    }
+
+    private static char[] toArray(long[] bits, int cardinality) {
+        char[] values = new char[cardinality];
+        int count = 0;
+        for (int word = 0; word < bits.length; word++) {
+            for (long w = bits[word]; w != 0; w &= w - 1)
+                values[count++] = (char) ((word << 6) + Long.numberOfTrailingZeros(w));
+        }
+        return values;
+    }
+}
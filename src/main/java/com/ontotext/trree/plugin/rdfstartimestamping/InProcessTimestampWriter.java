@@ -0,0 +1,88 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.Entities;
+import com.ontotext.trree.sdk.PluginConnection;
+import com.ontotext.trree.sdk.Statements;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.slf4j.Logger;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Writes the timestamped triples through the {@link PluginConnection} of the user's transaction, so they are
+ * committed together with the user's update and never leave the JVM. Closed versions go to their history graph if
+ * the {@link HistoryPartitions} are enabled.
+ */
+class InProcessTimestampWriter implements TimestampWriter {
+
+    private static final int EXPLICIT_STATEMENT_STATUS = 1;
+
+    private final ValueFactory vf = SimpleValueFactory.getInstance();
+    private final LiveVersions liveVersions;
+    private final HistoryPartitions partitions;
+    private final Logger logger;
+
+    InProcessTimestampWriter(EntityCache entityCache, Logger logger) {
+        this(new LiveVersions(entityCache), logger);
+    }
+
+    InProcessTimestampWriter(LiveVersions liveVersions, Logger logger) {
+        this(liveVersions, HistoryPartitions.none(), logger);
+    }
+
+    InProcessTimestampWriter(LiveVersions liveVersions, HistoryPartitions partitions, Logger logger) {
+        this.liveVersions = liveVersions;
+        this.partitions = partitions;
+        this.logger = logger;
+    }
+
+    @Override
+    public List<CommitPipeline.Task> write(TransactionBatch batch, PluginConnection pluginConnection) {
+        QuadSet inserts = batch.getInserts();
+        QuadSet deletes = batch.getDeletes();
+        long transactionId = batch.getTransactionId();
+        Entities entities = pluginConnection.getEntities();
+        Statements statements = pluginConnection.getStatements();
+        long validUntil = entities.put(VERS.VALID_UNTIL, Entities.Scope.DEFAULT);
+        long openEnd = entities.put(VERS.OPEN_END, Entities.Scope.DEFAULT);
+        // one literal entity for all versions of the transaction
+        Literal now = batch.getTimestamp();
+        long timestamp = entities.put(now, Entities.Scope.DEFAULT);
+        long time = batch.getTime().toInstant().toEpochMilli();
+
+        for (int i = 0; i < inserts.size(); i++) {
+            long s = inserts.subject(i), p = inserts.predicate(i), o = inserts.object(i), c = inserts.context(i);
+            org.eclipse.rdf4j.model.Triple embedded = liveVersions.embeddedTriple(s, p, o, entities);
+            logger.debug("Timestamp inserted triple: {}", embedded);
+            long triple = entities.put(embedded, Entities.Scope.DEFAULT);
+            long version = entities.put(vf.createTriple(embedded, VERS.VALID_FROM, now), Entities.Scope.DEFAULT);
+
+            statements.remove(s, p, o, c);
+            statements.put(version, validUntil, openEnd, c, EXPLICIT_STATEMENT_STATUS);
+            liveVersions.opened(transactionId, s, p, o, c, version, triple, time);
+        }
+
+        // all versions of a context are closed into the same history graph
+        long historyOf = -1, history = 0;
+        for (int i = 0; i < deletes.size(); i++) {
+            long s = deletes.subject(i), p = deletes.predicate(i), o = deletes.object(i), c = deletes.context(i);
+            long version = liveVersions.find(transactionId, s, p, o, c);
+            if (version == 0) {
+                // the triple has no live version, so there is nothing to outdate
+                continue;
+            }
+            logger.debug("Outdate version: {}", version);
+            if (c != historyOf) {
+                history = partitions.graph(c, time, entities);
+                historyOf = c;
+            }
+            statements.remove(version, validUntil, openEnd, c);
+            statements.put(version, validUntil, timestamp, history, EXPLICIT_STATEMENT_STATUS);
+            liveVersions.closed(transactionId, s, p, o, c, version, liveVersions.tripleId(s, p, o, entities), time);
+        }
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,287 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Versions kept as fixed-width records {@code s, p, o, c, from, until} of entity IDs and epoch millis in a
+ * memory-mapped file, instead of {@code <<<<s p o>> valid_from ts>> valid_until ts} statements. A record number,
+ * counted from 1, identifies the version in the {@link LiveVersions} and the {@link TemporalIndex}; the statements
+ * are only a view the plugin derives from the records.
+ * <p>
+ * Layout: a header (magic, format version, record count) followed by 48-byte records, mapped in chunks of
+ * {@value #CHUNK_RECORDS} records, so the file grows by 3 MB at a time. A version that is still valid has
+ * {@link #OPEN} as until. New records are written void while the transaction commits and opened once it completed,
+ * the ends of closed versions are kept in memory until then, so other transactions see neither and a transaction
+ * that was aborted or cut off by a crash leaves only void records behind.
+ * <p>
+ * The records of each quad are chained from the newest to the oldest in memory, so the version of a quad with a given
+ * valid_from is found without a scan, see {@link #find}.
+ */
+class IntervalStore implements Closeable {
+
+    static final long OPEN = Long.MAX_VALUE;
+    static final long VOID = Long.MIN_VALUE;
+    private static final int MAGIC = 0x52534956;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 6 * 8;
+    private static final int CHUNK_RECORDS = 1 << 16;
+
+    /**
+     * Receives the committed records, see {@link #forEach}.
+     */
+    interface Visitor {
+        void visit(long record, long subject, long predicate, long object, long context, long from, long until);
+    }
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final Logger logger;
+    private final ByteBuffer header;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private long count;
+
+    // records opened by transactions that did not complete yet, and by which; closes with the transaction and time
+    private final Map<Long, Long> pendingOpens = new HashMap<>();
+    private final Map<Long, long[]> pendingCloses = new HashMap<>();
+    // the newest record of each quad, and the record before it of the same quad
+    private final QuadMap newest = new QuadMap();
+    private final LongMap previous = new LongMap();
+
+    private IntervalStore(File file, Logger logger) throws IOException {
+        this.file = file;
+        this.logger = logger;
+        if (file == null) {
+            raf = null;
+            channel = null;
+            header = ByteBuffer.allocate(HEADER_SIZE);
+        } else {
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        }
+    }
+
+    /**
+     * Opens or creates the store.
+     *
+     * @param file where the records are kept, null for a store in memory only
+     */
+    static IntervalStore open(File file, Logger logger) throws IOException {
+        IntervalStore store = new IntervalStore(file, logger);
+        try {
+            store.recover();
+        } catch (IOException | RuntimeException e) {
+            store.close();
+            throw e;
+        }
+        return store;
+    }
+
+    private void recover() throws IOException {
+        if (header.getInt(0) != MAGIC) {
+            header.putInt(0, MAGIC);
+            header.putInt(4, FORMAT_VERSION);
+            header.putLong(8, 0);
+            return;
+        }
+        if (header.getInt(4) != FORMAT_VERSION)
+            throw new IOException("Unsupported interval store format " + header.getInt(4) + " in " + file);
+        count = header.getLong(8);
+        for (long mapped = 0; mapped < count; mapped += CHUNK_RECORDS)
+            chunks.add(map(chunks.size()));
+        for (long record = 1; record <= count; record++) {
+            ByteBuffer chunk = chunk(record);
+            int offset = offset(record);
+            chain(record, chunk.getLong(offset), chunk.getLong(offset + 8), chunk.getLong(offset + 16), chunk.getLong(offset + 24));
+        }
+        logger.info("Interval store with " + count + " records");
+    }
+
+    /**
+     * Writes a new version of the quad, valid from the time on once the transaction committed.
+     *
+     * @return the version's record number
+     */
+    synchronized long open(long transactionId, long subject, long predicate, long object, long context, long from) throws IOException {
+        long record = count + 1;
+        if (record > (long) chunks.size() * CHUNK_RECORDS)
+            chunks.add(map(chunks.size()));
+        ByteBuffer chunk = chunk(record);
+        int offset = offset(record);
+        chunk.putLong(offset, subject);
+        chunk.putLong(offset + 8, predicate);
+        chunk.putLong(offset + 16, object);
+        chunk.putLong(offset + 24, context);
+        chunk.putLong(offset + 32, from);
+        // void until the commit, a crash in between leaves no version behind
+        chunk.putLong(offset + 40, VOID);
+        count = record;
+        header.putLong(8, count);
+        pendingOpens.put(record, transactionId);
+        chain(record, subject, predicate, object, context);
+        return record;
+    }
+
+    private void chain(long record, long subject, long predicate, long object, long context) {
+        long before = newest.put(subject, predicate, object, context, record);
+        if (before != 0)
+            previous.put(record, before);
+    }
+
+    /**
+     * Ends the validity of a version at the time once the transaction committed.
+     */
+    synchronized void close(long transactionId, long record, long until) {
+        pendingCloses.put(record, new long[]{transactionId, until});
+    }
+
+    /**
+     * Writes the ends of the versions the transaction closed and makes the records it wrote visible to all
+     * transactions.
+     */
+    synchronized void commit(long transactionId) {
+        for (Iterator<Map.Entry<Long, long[]>> iter = pendingCloses.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<Long, long[]> close = iter.next();
+            if (close.getValue()[0] != transactionId)
+                continue;
+            chunk(close.getKey()).putLong(offset(close.getKey()) + 40, close.getValue()[1]);
+            iter.remove();
+        }
+        for (Iterator<Map.Entry<Long, Long>> iter = pendingOpens.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<Long, Long> open = iter.next();
+            if (open.getValue() != transactionId)
+                continue;
+            ByteBuffer chunk = chunk(open.getKey());
+            int offset = offset(open.getKey()) + 40;
+            if (chunk.getLong(offset) == VOID)
+                chunk.putLong(offset, OPEN);
+            iter.remove();
+        }
+    }
+
+    /**
+     * Drops what the transaction wrote, the records it opened stay void.
+     */
+    synchronized void abort(long transactionId) {
+        pendingOpens.values().removeIf(id -> id == transactionId);
+        pendingCloses.values().removeIf(close -> close[0] == transactionId);
+    }
+
+    /**
+     * Reads a record as the transaction sees it.
+     *
+     * @param into receives {@code s, p, o, c, from, until}
+     * @return false if there is no such version for the transaction
+     */
+    synchronized boolean read(long transactionId, long record, long[] into) {
+        if (record < 1 || record > count)
+            return false;
+        Long opener = pendingOpens.get(record);
+        if (opener != null && opener != transactionId)
+            return false;
+        ByteBuffer chunk = chunk(record);
+        int offset = offset(record);
+        for (int i = 0; i < 6; i++)
+            into[i] = chunk.getLong(offset + 8 * i);
+        if (opener != null)
+            into[5] = OPEN;
+        if (into[0] == 0 || into[5] == VOID)
+            return false;
+        long[] close = pendingCloses.get(record);
+        if (close != null && close[0] == transactionId)
+            into[5] = close[1];
+        return true;
+    }
+
+    /**
+     * Finds the version of the quad valid from the time on, walking the versions of the quad from the newest, which is
+     * the live one if there is one.
+     *
+     * @return the record number, 0 if the transaction sees no such version
+     */
+    synchronized long find(long transactionId, long subject, long predicate, long object, long context, long from) {
+        long[] values = new long[6];
+        for (long record = newest.get(subject, predicate, object, context); record != 0; record = previous.get(record, 0)) {
+            if (read(transactionId, record, values) && values[4] == from)
+                return record;
+        }
+        return 0;
+    }
+
+    /**
+     * Visits the versions of all completed transactions in record order.
+     */
+    void forEach(Visitor visitor) {
+        long[] values = new long[6];
+        long last = size();
+        for (long record = 1; record <= last; record++) {
+            if (read(0, record, values))
+                visitor.visit(record, values[0], values[1], values[2], values[3], values[4], values[5]);
+        }
+    }
+
+    /**
+     * @return the number of records, void ones included
+     */
+    synchronized long size() {
+        return count;
+    }
+
+    /**
+     * @return the bytes the records take on disk
+     */
+    synchronized long sizeInBytes() {
+        return HEADER_SIZE + count * RECORD_SIZE;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel == null)
+            return;
+        try {
+            if (header instanceof MappedByteBuffer)
+                ((MappedByteBuffer) header).force();
+            for (ByteBuffer chunk : chunks)
+                ((MappedByteBuffer) chunk).force();
+            try {
+                // the unused rest of the last chunk is mapped again when the store is opened
+                raf.setLength(sizeInBytes());
+            } catch (IOException e) {
+                logger.debug("Interval store keeps its mapped length", e);
+            }
+        } finally {
+            channel.close();
+            raf.close();
+        }
+    }
+
+    private ByteBuffer map(int chunk) throws IOException {
+        if (channel == null)
+            return ByteBuffer.allocate(CHUNK_RECORDS * RECORD_SIZE);
+        return channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + (long) chunk * CHUNK_RECORDS * RECORD_SIZE,
+                (long) CHUNK_RECORDS * RECORD_SIZE);
+    }
+
+    private ByteBuffer chunk(long record) {
+        return chunks.get((int) ((record - 1) / CHUNK_RECORDS));
+    }
+
+    private static int offset(long record) {
+        return (int) ((record - 1) % CHUNK_RECORDS) * RECORD_SIZE;
+    }
+}
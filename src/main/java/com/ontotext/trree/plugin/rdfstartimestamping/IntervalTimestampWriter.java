@@ -0,0 +1,65 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.Entities;
+import com.ontotext.trree.sdk.PluginConnection;
+import com.ontotext.trree.sdk.PluginException;
+import com.ontotext.trree.sdk.Statements;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Writes the versions as records of the {@link IntervalStore} instead of statements. Only the plain triple is removed
+ * through the {@link PluginConnection}; neither the version triple, its timestamp literal nor a valid_until statement
+ * is stored, just the entity of the embedded triple {@code <<s p o>>} the live triple bitmaps and the change log refer
+ * to.
+ */
+class IntervalTimestampWriter implements TimestampWriter {
+
+    private final IntervalStore store;
+    private final LiveVersions liveVersions;
+    private final Logger logger;
+
+    IntervalTimestampWriter(IntervalStore store, LiveVersions liveVersions, Logger logger) {
+        this.store = store;
+        this.liveVersions = liveVersions;
+        this.logger = logger;
+    }
+
+    @Override
+    public List<CommitPipeline.Task> write(TransactionBatch batch, PluginConnection pluginConnection) {
+        QuadSet inserts = batch.getInserts();
+        QuadSet deletes = batch.getDeletes();
+        long transactionId = batch.getTransactionId();
+        Entities entities = pluginConnection.getEntities();
+        Statements statements = pluginConnection.getStatements();
+        long time = batch.getTime().toInstant().toEpochMilli();
+
+        try {
+            for (int i = 0; i < inserts.size(); i++) {
+                long s = inserts.subject(i), p = inserts.predicate(i), o = inserts.object(i), c = inserts.context(i);
+                long record = store.open(transactionId, s, p, o, c, time);
+                logger.debug("Open version record: {}", record);
+                statements.remove(s, p, o, c);
+                liveVersions.opened(transactionId, s, p, o, c, record, liveVersions.tripleId(s, p, o, entities), time);
+            }
+        } catch (IOException e) {
+            throw new PluginException("Cannot write to the interval store: " + e.getMessage(), e);
+        }
+
+        for (int i = 0; i < deletes.size(); i++) {
+            long s = deletes.subject(i), p = deletes.predicate(i), o = deletes.object(i), c = deletes.context(i);
+            long record = liveVersions.find(transactionId, s, p, o, c);
+            if (record == 0) {
+                // the triple has no live version, so there is nothing to outdate
+                continue;
+            }
+            logger.debug("Close version record: {}", record);
+            store.close(transactionId, record, time);
+            liveVersions.closed(transactionId, s, p, o, c, record, liveVersions.tripleId(s, p, o, entities), time);
+        }
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,179 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.Entities;
+import com.ontotext.trree.sdk.StatementIterator;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Triple;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+/**
+ * The {@code <<<<s p o>> valid_from ts>> valid_until ts} statements of the versions kept in the {@link IntervalStore},
+ * returned by the plugin for patterns with the valid_until predicate. The versions are looked up in the
+ * {@link TemporalIndex} by valid_until for a bound timestamp and among the live ones for the open end. A bound version
+ * triple is found through its quad in the store, see {@link IntervalStore#find}. Version triples and timestamps the repository does not know are request entities.
+ */
+class IntervalView {
+
+    // valid_until of a pattern with an unbound object, and of one no version matches
+    private static final long ANY = Long.MIN_VALUE;
+    private static final long NONE = Long.MIN_VALUE + 1;
+
+    private final ValueFactory vf = SimpleValueFactory.getInstance();
+    private final IntervalStore store;
+    private final TemporalIndex temporalIndex;
+    private final EntityCache entityCache;
+
+    IntervalView(IntervalStore store, TemporalIndex temporalIndex, EntityCache entityCache) {
+        this.store = store;
+        this.temporalIndex = temporalIndex;
+        this.entityCache = entityCache;
+    }
+
+    /**
+     * @param boundSubject a version triple or 0
+     * @param boundObject  a timestamp, the open end or 0
+     * @param contexts     the contexts to look at
+     * @param validUntil   the entity ID of the valid_until predicate
+     */
+    StatementIterator find(long boundSubject, long boundObject, long[] contexts, long transactionId, long validUntil, Entities entities) {
+        long openEnd = entities.resolve(VERS.OPEN_END);
+        long until = until(boundObject, openEnd, entities);
+        long[] quad = boundSubject == 0 ? null : quad(boundSubject, entities);
+        if (until == NONE || boundSubject != 0 && quad == null)
+            contexts = new long[0];
+        long[][] found = new long[contexts.length][];
+        int count = 0;
+        for (int i = 0; i < contexts.length; i++) {
+            if (quad != null) {
+                long record = store.find(transactionId, quad[0], quad[1], quad[2], contexts[i], quad[3]);
+                found[i] = record == 0 ? new long[0] : new long[]{record};
+            } else if (until == ANY)
+                found[i] = temporalIndex.overlapping(contexts[i], Long.MIN_VALUE, Long.MAX_VALUE);
+            else if (until == IntervalStore.OPEN)
+                found[i] = temporalIndex.overlapping(contexts[i], Long.MAX_VALUE - 1, Long.MAX_VALUE);
+            else
+                found[i] = temporalIndex.at(TemporalIndex.CLOSED, contexts[i], until);
+            count += found[i].length;
+        }
+        long[] records = new long[count], recordContexts = new long[count];
+        int offset = 0;
+        for (int i = 0; i < contexts.length; i++) {
+            System.arraycopy(found[i], 0, records, offset, found[i].length);
+            Arrays.fill(recordContexts, offset, offset + found[i].length, contexts[i]);
+            offset += found[i].length;
+        }
+        return new StatementIterator() {
+            final long[] values = new long[6];
+            int next;
+
+            @Override
+            public boolean next() {
+                while (next < records.length) {
+                    int i = next++;
+                    if (!store.read(transactionId, records[i], values) || values[3] != recordContexts[i])
+                        continue;
+                    if (quad != null && (values[0] != quad[0] || values[1] != quad[1] || values[2] != quad[2]))
+                        continue;
+                    if (until != ANY && values[5] != until)
+                        continue;
+                    subject = quad != null ? boundSubject : id(versionTriple(values, entities), entities);
+                    predicate = validUntil;
+                    object = values[5] == IntervalStore.OPEN ? (openEnd != 0 ? openEnd : id(VERS.OPEN_END, entities))
+                            : id(timestamp(values[5]), entities);
+                    context = recordContexts[i];
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * @param contexts the number of contexts to look at
+     * @return the number of statements a pattern with the valid_until predicate returns at most
+     */
+    long estimate(long subject, long object, int contexts, Entities entities) {
+        // a version triple has one version per context at most
+        if (subject != 0)
+            return contexts;
+        return object != 0 && object == entities.resolve(VERS.OPEN_END) ? temporalIndex.live() : temporalIndex.size();
+    }
+
+    /**
+     * @return the entity ID of the embedded triple {@code <<s p o>>} of a version record, 0 if there is no such record
+     */
+    long tripleId(long record, Entities entities) {
+        long[] values = new long[6];
+        if (!store.read(0, record, values))
+            return 0;
+        return id(embeddedTriple(values, entities), entities);
+    }
+
+    /**
+     * @return the valid_until the object stands for, {@link #ANY} if unbound and {@link #NONE} if no version has it
+     */
+    private long until(long object, long openEnd, Entities entities) {
+        if (object == 0)
+            return ANY;
+        if (object == openEnd)
+            return IntervalStore.OPEN;
+        try {
+            // a timestamp of the query may be a request scope entity, which the cache must not keep
+            return TemporalIndex.millis(entities.get(object));
+        } catch (IllegalArgumentException e) {
+            return NONE;
+        }
+    }
+
+    /**
+     * @return s, p, o and valid_from of a version triple, null if the entity is none or names unknown entities
+     */
+    private long[] quad(long subject, Entities entities) {
+        Value version = entities.get(subject);
+        if (!(version instanceof Triple) || !VERS.VALID_FROM.equals(((Triple) version).getPredicate())
+                || !(((Triple) version).getSubject() instanceof Triple) || !(((Triple) version).getObject() instanceof Literal))
+            return null;
+        Triple embedded = (Triple) ((Triple) version).getSubject();
+        long s = entities.resolve(embedded.getSubject());
+        long p = entities.resolve(embedded.getPredicate());
+        long o = entities.resolve(embedded.getObject());
+        if (s == 0 || p == 0 || o == 0)
+            return null;
+        try {
+            return new long[]{s, p, o, TemporalIndex.millis(((Triple) version).getObject())};
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private Triple embeddedTriple(long[] values, Entities entities) {
+        return vf.createTriple((Resource) entityCache.get(values[0], entities), (IRI) entityCache.get(values[1], entities),
+                entityCache.get(values[2], entities));
+    }
+
+    private Triple versionTriple(long[] values, Entities entities) {
+        return vf.createTriple(embeddedTriple(values, entities), VERS.VALID_FROM, timestamp(values[4]));
+    }
+
+    private static Literal timestamp(long millis) {
+        return VERS.timestamp(OffsetDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+    }
+
+    private static long id(Value value, Entities entities) {
+        long id = entities.resolve(value);
+        return id != 0 ? id : entities.put(value, Entities.Scope.REQUEST);
+    }
+}
@@ -0,0 +1,529 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.Entities;
+import com.ontotext.trree.sdk.PluginException;
+import com.ontotext.trree.sdk.StatementIterator;
+import com.ontotext.trree.sdk.Statements;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Triple;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the versions that are still valid: from the quad of a versioned triple to the entity ID of its live
+ * version, the subject of {@code <<<<s p o>> valid_from ?valid_from>> valid_until "9999-12-31T00:00:00.000+00:00"},
+ * or its record number when the versions are kept in the {@link IntervalStore}.
+ * The index is loaded once when the plugin is initialized and kept up to date by the plugin's writers, so closing a
+ * version takes one lookup instead of a scan. The store cannot answer that lookup by itself: the version entity
+ * embeds its valid_from, which a delete does not know. Loading takes one pass over the open valid_until statements
+ * and the index holds all live versions in memory, at most the configured number of them. The versions a transaction opens or closes are staged and become
+ * visible to other transactions once it completed, or once a chunk of a bulk load was published; the transaction
+ * itself sees them right away. Completed changes
+ * are recorded in the {@link TemporalIndex} and appended to the {@link ChangeLog}, if there are ones. When the
+ * versions are written after the commit, the changes of each context are only recorded once they are written, and
+ * taken back from the index if the write is given up, see {@link #completeDeferred}.
+ * <p>
+ * The entity IDs of the embedded triples {@code <<s p o>>} that are live are kept in an {@link IdBitmap} per context
+ * as well, so the current state can be enumerated or checked without touching the version metadata.
+ */
+class LiveVersions {
+
+    // staged value of a version the transaction closed
+    private static final long CLOSED = -1;
+    private static final int EVENT_SIZE = 8;
+
+    private final ValueFactory vf = SimpleValueFactory.getInstance();
+    private final EntityCache entityCache;
+    private final TemporalIndex temporalIndex;
+    private final ChangeLog changeLog;
+    // the live versions of each context, so deletes by pattern only visit the contexts they name
+    private final Map<Long, QuadMap> live = new HashMap<>();
+    private int liveCount;
+    private final Map<Long, IdBitmap> liveTriples = new HashMap<>();
+    private final Map<Long, Staged> staged = new ConcurrentHashMap<>();
+    // transactions that published versions before they completed
+    private final Set<Long> published = ConcurrentHashMap.newKeySet();
+    // the number of live versions transactions may grow the index to
+    private volatile int limit = Integer.MAX_VALUE;
+
+    /**
+     * What a transaction opened or closed so far.
+     */
+    private static class Staged {
+        final QuadMap versions = new QuadMap();
+        // kind, context, time, version, embedded triple, subject, predicate and object of each change
+        long[] events = new long[EVENT_SIZE * 8];
+        int eventCount;
+        // live versions opened minus closed
+        int growth;
+
+        void record(long kind, long context, long time, long version, long triple, long subject, long predicate, long object) {
+            if (EVENT_SIZE * eventCount == events.length)
+                events = Arrays.copyOf(events, events.length * 2);
+            int offset = EVENT_SIZE * eventCount++;
+            events[offset] = kind;
+            events[offset + 1] = context;
+            events[offset + 2] = time;
+            events[offset + 3] = version;
+            events[offset + 4] = triple;
+            events[offset + 5] = subject;
+            events[offset + 6] = predicate;
+            events[offset + 7] = object;
+        }
+    }
+
+    /**
+     * The changes of a completed transaction whose versions are written after its commit.
+     */
+    static class Deferred {
+        private final Staged staged;
+        // the change log line of each event, null without a change log
+        private final String[] events;
+
+        private Deferred(Staged staged, String[] events) {
+            this.staged = staged;
+            this.events = events;
+        }
+    }
+
+    LiveVersions(EntityCache entityCache) {
+        this(entityCache, null, null);
+    }
+
+    /**
+     * @param temporalIndex index the completed changes are recorded in, may be null
+     * @param changeLog     log the completed changes are appended to, may be null
+     */
+    LiveVersions(EntityCache entityCache, TemporalIndex temporalIndex, ChangeLog changeLog) {
+        this.entityCache = entityCache;
+        this.temporalIndex = temporalIndex;
+        this.changeLog = changeLog;
+    }
+
+    /**
+     * Indexes the live versions in the repository, replacing what was indexed before.
+     *
+     * @return the number of live versions
+     */
+    int load(Entities entities, Statements statements) {
+        return load(entities, statements, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param limit the number of live versions transactions may grow the index to, see {@link #checkLimit}. The live
+     *              versions in the repository are indexed even if there are more.
+     */
+    int load(Entities entities, Statements statements, int limit) {
+        this.limit = limit;
+        long validFrom = entities.resolve(VERS.VALID_FROM);
+        long validUntil = entities.resolve(VERS.VALID_UNTIL);
+        long openEnd = entities.resolve(VERS.OPEN_END);
+        synchronized (this) {
+            live.clear();
+            liveCount = 0;
+            liveTriples.clear();
+            if (validFrom == 0 || validUntil == 0 || openEnd == 0)
+                return 0;
+            StatementIterator iter = statements.get(0, validUntil, openEnd);
+            try {
+                while (iter.next()) {
+                    Value version = entities.get(iter.subject);
+                    if (!(version instanceof Triple) || !VERS.VALID_FROM.equals(((Triple) version).getPredicate())
+                            || !(((Triple) version).getSubject() instanceof Triple))
+                        continue;
+                    Triple embedded = (Triple) ((Triple) version).getSubject();
+                    long s = entities.resolve(embedded.getSubject());
+                    long p = entities.resolve(embedded.getPredicate());
+                    long o = entities.resolve(embedded.getObject());
+                    putLive(s, p, o, iter.context, iter.subject);
+                    bitmap(iter.context).add(entities.put(embedded, Entities.Scope.DEFAULT));
+                }
+            } finally {
+                iter.close();
+            }
+            return liveCount;
+        }
+    }
+
+    /**
+     * Indexes the live versions in the interval store, replacing what was indexed before.
+     *
+     * @return the number of live versions
+     */
+    int load(IntervalStore store, Entities entities) {
+        return load(store, entities, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param limit the number of live versions transactions may grow the index to, see {@link #checkLimit}
+     */
+    int load(IntervalStore store, Entities entities, int limit) {
+        this.limit = limit;
+        synchronized (this) {
+            live.clear();
+            liveCount = 0;
+            liveTriples.clear();
+            store.forEach((record, s, p, o, c, from, until) -> {
+                if (until != IntervalStore.OPEN)
+                    return;
+                putLive(s, p, o, c, record);
+                bitmap(c).add(tripleId(s, p, o, entities));
+            });
+            return liveCount;
+        }
+    }
+
+    /**
+     * Rejects a transaction whose staged versions would grow the index beyond its limit. Transactions that do not
+     * add live versions pass, even if the index is full.
+     *
+     * @throws PluginException if the index would hold too many live versions
+     */
+    void checkLimit(long transactionId) {
+        Staged own = staged.get(transactionId);
+        if (own == null || own.growth <= 0)
+            return;
+        long bytes;
+        synchronized (this) {
+            if ((long) liveCount + own.growth <= limit)
+                return;
+            bytes = liveIndexBytes();
+        }
+        throw new PluginException(own.growth + " more live versions exceed the limit of " + limit + " of the index, "
+                + bytes / (1024 * 1024) + " MB. Raise " + PluginConfig.PROPERTY_PREFIX + "liveIndexLimit and the heap to match");
+    }
+
+
+    /**
+     * @return the entity ID of the triple's live version as seen by the transaction, 0 if there is none
+     */
+    long find(long transactionId, long subject, long predicate, long object, long context) {
+        Staged own = staged.get(transactionId);
+        if (own != null) {
+            long version = own.versions.get(subject, predicate, object, context);
+            if (version != 0)
+                return version == CLOSED ? 0 : version;
+        }
+        synchronized (this) {
+            return liveVersion(subject, predicate, object, context);
+        }
+    }
+
+    boolean isLive(long transactionId, long subject, long predicate, long object, long context) {
+        return find(transactionId, subject, predicate, object, context) != 0;
+    }
+
+    /**
+     * Adds the quads matching the pattern that the transaction itself opened a version of to the set. 0 is a
+     * wildcard for the subject, predicate and object, the context always has to match.
+     */
+    void matchStaged(long transactionId, long subject, long predicate, long object, long context, QuadSet matches) {
+        Staged own = staged.get(transactionId);
+        if (own == null)
+            return;
+        own.versions.forEach((s, p, o, c, version) -> {
+            if (version != CLOSED && matches(s, p, o, c, subject, predicate, object, context))
+                matches.add(s, p, o, c);
+        });
+    }
+
+    /**
+     * Adds the quads with a live version that any of the patterns matches to the set, leaving out those the
+     * transaction opened or closed itself. Takes one pass over the live versions of each context the patterns name.
+     */
+    void match(long transactionId, DeletePatterns patterns, QuadSet matches) {
+        Staged own = staged.get(transactionId);
+        for (long context : patterns.contexts()) {
+            synchronized (this) {
+                QuadMap versions = live.get(context);
+                if (versions == null)
+                    continue;
+                versions.forEach((s, p, o, c, version) -> {
+                    if ((own == null || own.versions.get(s, p, o, c) == 0) && patterns.latest(s, p, o, c) >= 0)
+                        matches.add(s, p, o, c);
+                });
+            }
+        }
+    }
+
+    static boolean matches(long s, long p, long o, long c, long subject, long predicate, long object, long context) {
+        return c == context && (subject == 0 || s == subject) && (predicate == 0 || p == predicate)
+                && (object == 0 || o == object);
+    }
+
+    /**
+     * @param triple the entity ID of the embedded triple, see {@link #tripleId}
+     * @param time   the version's valid_from as epoch millis
+     */
+    void opened(long transactionId, long subject, long predicate, long object, long context, long version, long triple, long time) {
+        Staged own = staged.computeIfAbsent(transactionId, id -> new Staged());
+        own.versions.put(subject, predicate, object, context, version);
+        own.growth++;
+        own.record(TemporalIndex.OPENED, context, time, version, triple, subject, predicate, object);
+    }
+
+    /**
+     * @param triple the entity ID of the embedded triple, see {@link #tripleId}
+     * @param time   the version's valid_until as epoch millis
+     */
+    void closed(long transactionId, long subject, long predicate, long object, long context, long version, long triple, long time) {
+        Staged own = staged.computeIfAbsent(transactionId, id -> new Staged());
+        own.versions.put(subject, predicate, object, context, CLOSED);
+        own.growth--;
+        own.record(TemporalIndex.CLOSED, context, time, version, triple, subject, predicate, object);
+    }
+
+    /**
+     * Makes the versions the transaction opened or closed visible to all transactions.
+     *
+     * @param entities decodes the embedded triples for the change log
+     * @return the earliest time a version was opened or closed at, {@link Long#MAX_VALUE} if there was none
+     */
+    long complete(long transactionId, Entities entities) {
+        published.remove(transactionId);
+        return publishAll(transactionId, entities);
+    }
+
+    /**
+     * Like {@link #complete}, before the transaction completed, and goes on staging what it changes afterwards. A bulk
+     * load does this for every chunk of versions, so what is staged does not grow with the size of the file. If the
+     * transaction is aborted afterwards, the index has to be {@link #load loaded} again, see {@link #abort}.
+     */
+    long publishStaged(long transactionId, Entities entities) {
+        checkLimit(transactionId);
+        published.add(transactionId);
+        return publishAll(transactionId, entities);
+    }
+
+    private long publishAll(long transactionId, Entities entities) {
+        Staged own = staged.remove(transactionId);
+        if (own == null)
+            return Long.MAX_VALUE;
+        makeLive(own);
+        String[] events = changeLog == null ? null : events(own, entities);
+        return publish(own, events, false, 0);
+    }
+
+    /**
+     * Like {@link #complete}, for versions that are written after the commit. They are visible to all transactions
+     * right away, so that later transactions close them, but the changes of a context are recorded in the temporal
+     * index and change log only once they are {@link #publish published}, or taken back with {@link #revert}.
+     *
+     * @param entities decodes the embedded triples for the change log, which is not done on the writer's thread
+     * @return null if the transaction changed no version
+     */
+    Deferred completeDeferred(long transactionId, Entities entities) {
+        published.remove(transactionId);
+        Staged own = staged.remove(transactionId);
+        if (own == null)
+            return null;
+        makeLive(own);
+        return new Deferred(own, changeLog == null ? null : events(own, entities));
+    }
+
+    /**
+     * Records the changes of the context once its versions are written.
+     *
+     * @return the earliest time a version of the context was opened or closed at
+     */
+    long publish(Deferred deferred, long context) {
+        return publish(deferred.staged, deferred.events, true, context);
+    }
+
+    /**
+     * Takes the changes of the context back from the index once writing its versions was given up, so that the
+     * versions it opened are not live and the ones it closed are live again. Versions later transactions changed
+     * in the meantime are left as they are.
+     */
+    void revert(Deferred deferred, long context) {
+        Staged own = deferred.staged;
+        synchronized (this) {
+            for (int i = own.eventCount - 1; i >= 0; i--) {
+                int offset = EVENT_SIZE * i;
+                if (own.events[offset + 1] != context)
+                    continue;
+                long s = own.events[offset + 5], p = own.events[offset + 6], o = own.events[offset + 7];
+                long version = own.events[offset + 3], triple = own.events[offset + 4];
+                if (own.events[offset] == TemporalIndex.OPENED) {
+                    if (liveVersion(s, p, o, context) == version) {
+                        removeLive(s, p, o, context);
+                        removeLiveTriple(context, triple);
+                    }
+                } else if (liveVersion(s, p, o, context) == 0) {
+                    putLive(s, p, o, context, version);
+                    bitmap(context).add(triple);
+                }
+            }
+        }
+    }
+
+    private void makeLive(Staged own) {
+        synchronized (this) {
+            own.versions.forEach((s, p, o, c, version) -> {
+                if (version == CLOSED)
+                    removeLive(s, p, o, c);
+                else
+                    putLive(s, p, o, c, version);
+            });
+            // in staging order, a triple closed and opened again by the transaction ends up live
+            for (int i = 0; i < own.eventCount; i++) {
+                int offset = EVENT_SIZE * i;
+                if (own.events[offset] == TemporalIndex.OPENED)
+                    bitmap(own.events[offset + 1]).add(own.events[offset + 4]);
+                else
+                    removeLiveTriple(own.events[offset + 1], own.events[offset + 4]);
+            }
+        }
+    }
+
+    private String[] events(Staged own, Entities entities) {
+        String[] events = new String[own.eventCount];
+        for (int i = 0; i < own.eventCount; i++) {
+            int offset = EVENT_SIZE * i;
+            events[i] = changeLog.event(own.events[offset], own.events[offset + 1], own.events[offset + 2],
+                    own.events[offset + 4], entities);
+        }
+        return events;
+    }
+
+    /**
+     * Records the changes, all or those of one context, in the temporal index and change log.
+     *
+     * @return the earliest time of the recorded changes, {@link Long#MAX_VALUE} if there was none
+     */
+    private long publish(Staged own, String[] events, boolean oneContext, long context) {
+        long earliest = Long.MAX_VALUE;
+        for (int i = 0; i < own.eventCount; i++) {
+            int offset = EVENT_SIZE * i;
+            if (oneContext && own.events[offset + 1] != context)
+                continue;
+            earliest = Math.min(earliest, own.events[offset + 2]);
+            if (temporalIndex != null)
+                temporalIndex.record(own.events[offset], own.events[offset + 1], own.events[offset + 2], own.events[offset + 3]);
+        }
+        if (temporalIndex != null)
+            temporalIndex.flush();
+        if (events != null) {
+            // the events of a transaction are not interleaved with those of others
+            synchronized (changeLog) {
+                for (int i = 0; i < own.eventCount; i++) {
+                    if (!oneContext || own.events[EVENT_SIZE * i + 1] == context)
+                        changeLog.append(events[i]);
+                }
+                changeLog.flush();
+            }
+        }
+        return earliest;
+    }
+
+    /**
+     * @return false if the transaction already {@link #publishStaged published} versions, which the index keeps until
+     * it is loaded again
+     */
+    boolean abort(long transactionId) {
+        staged.remove(transactionId);
+        return !published.remove(transactionId);
+    }
+
+    synchronized int size() {
+        return liveCount;
+    }
+
+    /**
+     * @return the entity IDs of the live embedded triples of the context in ascending order
+     */
+    synchronized long[] liveTriples(long context) {
+        IdBitmap triples = liveTriples.get(context);
+        return triples == null ? new long[0] : triples.toArray();
+    }
+
+    synchronized boolean isLiveTriple(long context, long triple) {
+        IdBitmap triples = liveTriples.get(context);
+        return triples != null && triples.contains(triple);
+    }
+
+    synchronized long liveTripleCount(long context) {
+        IdBitmap triples = liveTriples.get(context);
+        return triples == null ? 0 : triples.size();
+    }
+
+    /**
+     * @return the contexts with live triples
+     */
+    synchronized long[] liveContexts() {
+        long[] contexts = new long[liveTriples.size()];
+        int i = 0;
+        for (long context : liveTriples.keySet())
+            contexts[i++] = context;
+        return contexts;
+    }
+
+    /**
+     * @return the memory the index of the live versions takes
+     */
+    synchronized long liveIndexBytes() {
+        long bytes = 0;
+        for (QuadMap versions : live.values())
+            bytes += versions.sizeInBytes();
+        return bytes;
+    }
+
+    /**
+     * @return the memory the bitmaps of the live triples take
+     */
+    synchronized long liveTriplesBytes() {
+        long bytes = 0;
+        for (IdBitmap triples : liveTriples.values())
+            bytes += triples.sizeInBytes();
+        return bytes;
+    }
+
+    /**
+     * @return the entity ID of the embedded triple {@code <<s p o>>}
+     */
+    long tripleId(long subject, long predicate, long object, Entities entities) {
+        return entities.put(embeddedTriple(subject, predicate, object, entities), Entities.Scope.DEFAULT);
+    }
+
+    private long liveVersion(long subject, long predicate, long object, long context) {
+        QuadMap versions = live.get(context);
+        return versions == null ? 0 : versions.get(subject, predicate, object, context);
+    }
+
+    private void putLive(long subject, long predicate, long object, long context, long version) {
+        if (live.computeIfAbsent(context, c -> new QuadMap()).put(subject, predicate, object, context, version) == 0)
+            liveCount++;
+    }
+
+    private void removeLive(long subject, long predicate, long object, long context) {
+        QuadMap versions = live.get(context);
+        if (versions == null || versions.remove(subject, predicate, object, context) == 0)
+            return;
+        liveCount--;
+        if (versions.isEmpty())
+            live.remove(context);
+    }
+
+    private void removeLiveTriple(long context, long triple) {
+        IdBitmap triples = liveTriples.get(context);
+        if (triples != null && triples.remove(triple) && triples.isEmpty())
+            liveTriples.remove(context);
+    }
+
+    private IdBitmap bitmap(long context) {
+        return liveTriples.computeIfAbsent(context, c -> new IdBitmap());
+    }
+
+    Triple embeddedTriple(long subject, long predicate, long object, Entities entities) {
+        return vf.createTriple((Resource) entityCache.get(subject, entities), (IRI) entityCache.get(predicate, entities),
+                entityCache.get(object, entities));
+    }
+}
@@ -0,0 +1,131 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+/**
+ * Map from entity IDs to longs in an open-addressing table of primitive longs, keys and values inline, so a lookup
+ * neither boxes nor allocates. 0 is a valid key and kept in a slot of its own.
+ */
+class LongMap {
+
+    private static final int MIN_CAPACITY = 8;
+    // marks an empty slot
+    private static final long EMPTY = 0;
+
+    // key, value pairs
+    private long[] table;
+    private boolean containsZero;
+    private long zeroValue;
+    private int size;
+
+    LongMap() {
+        table = new long[MIN_CAPACITY * 2 * 2];
+    }
+
+    /**
+     * @return the value of the key, {@code absent} if there is none
+     */
+    long get(long key, long absent) {
+        if (key == EMPTY)
+            return containsZero ? zeroValue : absent;
+        int slot = find(key);
+        return table[slot] == key ? table[slot + 1] : absent;
+    }
+
+    boolean containsKey(long key) {
+        if (key == EMPTY)
+            return containsZero;
+        return table[find(key)] == key;
+    }
+
+    void put(long key, long value) {
+        if (key == EMPTY) {
+            if (!containsZero)
+                size++;
+            containsZero = true;
+            zeroValue = value;
+            return;
+        }
+        int slot = find(key);
+        table[slot + 1] = value;
+        if (table[slot] == key)
+            return;
+        table[slot] = key;
+        if (++size * 2 * 2 > table.length)
+            rehash(table.length * 2);
+    }
+
+    /**
+     * @return false if the key was not in the map
+     */
+    boolean remove(long key) {
+        if (key == EMPTY) {
+            if (!containsZero)
+                return false;
+            containsZero = false;
+            size--;
+            return true;
+        }
+        int slot = find(key);
+        if (table[slot] != key)
+            return false;
+        // shift the following entries of the probe sequence back so that lookups never stop at the hole
+        int mask = table.length - 1;
+        int hole = slot;
+        for (int next = (hole + 2) & mask; table[next] != EMPTY; next = (next + 2) & mask) {
+            int home = hash(table[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                table[hole] = table[next];
+                table[hole + 1] = table[next + 1];
+                hole = next;
+            }
+        }
+        table[hole] = EMPTY;
+        table[hole + 1] = 0;
+        size--;
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        table = new long[MIN_CAPACITY * 2 * 2];
+        containsZero = false;
+        size = 0;
+    }
+
+    /**
+     * @return the slot of the key or the empty slot where it would be inserted
+     */
+    private int find(long key) {
+        int mask = table.length - 1;
+        int slot = hash(key) & mask;
+        while (table[slot] != EMPTY && table[slot] != key)
+            slot = (slot + 2) & mask;
+        return slot;
+    }
+
+    private void rehash(int tableLength) {
+        long[] old = table;
+        table = new long[tableLength];
+        for (int i = 0; i < old.length; i += 2) {
+            if (old[i] != EMPTY) {
+                int slot = find(old[i]);
+                table[slot] = old[i];
+                table[slot + 1] = old[i + 1];
+            }
+        }
+    }
+
+    /**
+     * @return an even slot index before masking
+     */
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) << 1;
+    }
+}
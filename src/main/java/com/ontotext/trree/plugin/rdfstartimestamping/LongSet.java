@@ -0,0 +1,143 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import java.util.Arrays;
+
+/**
+ * Set of entity IDs in an open-addressing table of primitive longs, so a lookup neither boxes nor allocates.
+ * 0 is a valid member, it stands for the default graph when the set holds contexts.
+ */
+class LongSet {
+
+    private static final int MIN_CAPACITY = 8;
+    // marks an empty slot, 0 is kept in a flag of its own
+    private static final long EMPTY = 0;
+
+    private long[] table;
+    private boolean containsZero;
+    private int size;
+
+    LongSet() {
+        table = new long[MIN_CAPACITY * 2];
+    }
+
+    LongSet(long... ids) {
+        this();
+        for (long id : ids)
+            add(id);
+    }
+
+    LongSet(LongSet other) {
+        table = other.table.clone();
+        containsZero = other.containsZero;
+        size = other.size;
+    }
+
+    /**
+     * @return false if the ID was already in the set
+     */
+    boolean add(long id) {
+        if (id == EMPTY) {
+            if (containsZero)
+                return false;
+            containsZero = true;
+            size++;
+            return true;
+        }
+        int slot = find(id);
+        if (table[slot] == id)
+            return false;
+        table[slot] = id;
+        if (++size * 2 > table.length)
+            rehash(table.length * 2);
+        return true;
+    }
+
+    /**
+     * @return false if the ID was not in the set
+     */
+    boolean remove(long id) {
+        if (id == EMPTY) {
+            if (!containsZero)
+                return false;
+            containsZero = false;
+            size--;
+            return true;
+        }
+        int slot = find(id);
+        if (table[slot] != id)
+            return false;
+        // shift the following entries of the probe sequence back so that lookups never stop at the hole
+        int mask = table.length - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; table[next] != EMPTY; next = (next + 1) & mask) {
+            int home = hash(table[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                table[hole] = table[next];
+                hole = next;
+            }
+        }
+        table[hole] = EMPTY;
+        size--;
+        return true;
+    }
+
+    boolean contains(long id) {
+        if (id == EMPTY)
+            return containsZero;
+        return table[find(id)] == id;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the members in ascending order
+     */
+    long[] toArray() {
+        long[] ids = new long[size];
+        int i = 0;
+        if (containsZero)
+            ids[i++] = 0;
+        for (long id : table) {
+            if (id != EMPTY)
+                ids[i++] = id;
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    /**
+     * @return the slot holding the ID or the empty slot where it would be inserted
+     */
+    private int find(long id) {
+        int mask = table.length - 1;
+        int slot = hash(id) & mask;
+        while (table[slot] != EMPTY && table[slot] != id)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void rehash(int tableLength) {
+        long[] old = table;
+        table = new long[tableLength];
+        for (long id : old) {
+            if (id != EMPTY)
+                table[find(id)] = id;
+        }
+    }
+
+    private static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,101 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import java.util.Arrays;
+
+/**
+ * The inserts and deletes of one transaction, reduced to the last operation per quad. A triple the transaction
+ * inserts and deletes again leaves a delete of a triple that has no live version, i.e. nothing to do; a triple it
+ * deletes and inserts again leaves an insert of a triple that is still live, which is a no-op as well.
+ */
+class NetChanges {
+
+    private static final byte INSERT = 1;
+    private static final byte DELETE = 2;
+    // set once the quad was inserted, whatever the last operation is
+    private static final byte INSERTED = 4;
+
+    private final QuadSet quads = new QuadSet();
+    // last operation per quad and the INSERTED flag, by insertion index
+    private byte[] operations = new byte[16];
+    // sequence number of the last operation per quad, by insertion index
+    private long[] changed = new long[16];
+    private long sequence;
+
+    void insert(long subject, long predicate, long object, long context) {
+        set(subject, predicate, object, context, INSERT);
+    }
+
+    void delete(long subject, long predicate, long object, long context) {
+        set(subject, predicate, object, context, DELETE);
+    }
+
+    boolean isEmpty() {
+        return quads.isEmpty();
+    }
+
+    int size() {
+        return quads.size();
+    }
+
+    /**
+     * @return the number of inserts and deletes requested so far
+     */
+    long sequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the {@link #sequence} right after the quad's last insert or delete, 0 if it was not changed
+     */
+    long lastChange(long subject, long predicate, long object, long context) {
+        int index = quads.indexOf(subject, predicate, object, context);
+        return index < 0 ? 0 : changed[index];
+    }
+
+    /**
+     * @return true if the transaction inserted the quad, even if it deleted it afterwards
+     */
+    boolean wasInserted(long subject, long predicate, long object, long context) {
+        int index = quads.indexOf(subject, predicate, object, context);
+        return index >= 0 && (operations[index] & INSERTED) != 0;
+    }
+
+    /**
+     * @return the quads last inserted
+     */
+    QuadSet inserts() {
+        return select(INSERT, null);
+    }
+
+    /**
+     * @param excluded quads whose delete does not count, may be null
+     * @return the quads last deleted
+     */
+    QuadSet deletes(QuadSet excluded) {
+        return select(DELETE, excluded);
+    }
+
+    private void set(long subject, long predicate, long object, long context, byte operation) {
+        int index = quads.indexOf(subject, predicate, object, context);
+        if (index < 0) {
+            index = quads.size();
+            quads.add(subject, predicate, object, context);
+            if (index == operations.length) {
+                operations = Arrays.copyOf(operations, operations.length * 2);
+                changed = Arrays.copyOf(changed, changed.length * 2);
+            }
+        }
+        changed[index] = ++sequence;
+        operations[index] = (byte) (operation | operations[index] & INSERTED | (operation == INSERT ? INSERTED : 0));
+    }
+
+    private QuadSet select(byte operation, QuadSet excluded) {
+        QuadSet selected = new QuadSet();
+        for (int i = 0; i < quads.size(); i++) {
+            long s = quads.subject(i), p = quads.predicate(i), o = quads.object(i), c = quads.context(i);
+            if ((operations[i] & ~INSERTED) == operation && (excluded == null || !excluded.contains(s, p, o, c)))
+                selected.add(s, p, o, c);
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,257 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Plugin settings, read from the system properties GraphDB was started with
+ * (e.g. -Drdf-star-timestamping.writeMode=sparql in GDB_JAVA_OPTS).
+ */
+class PluginConfig {
+
+    static final String PROPERTY_PREFIX = "rdf-star-timestamping.";
+
+    enum WriteMode {
+        /**
+         * Timestamped statements are written through the plugin connection within the user's transaction.
+         */
+        IN_PROCESS,
+        /**
+         * Timestamped statements are sent back to the repository's SPARQL endpoint after the user's commit.
+         */
+        SPARQL
+    }
+
+    enum Storage {
+        /**
+         * Versions are stored as {@code <<<<s p o>> valid_from ts>> valid_until ts} statements.
+         */
+        RDF,
+        /**
+         * Versions are stored as fixed-width records in the plugin's {@link IntervalStore}, the statements are a view.
+         */
+        INTERVALS
+    }
+
+    private final WriteMode writeMode;
+    private final Storage storage;
+    private final String getEndpoint;
+    private final String postEndpoint;
+    private final int entityCacheSize;
+    private final int liveIndexLimit;
+    private final int planCacheSize;
+    private final int resultCacheRows;
+    private final int commitWorkers;
+    private final int commitQueueCapacity;
+    private final CommitPipeline.BackpressurePolicy backpressure;
+    private final int commitRetries;
+    private final int shutdownTimeoutMillis;
+    private final boolean journal;
+    private final String bulkLoadDirectory;
+    private final boolean changeLog;
+    private final int changeLogSegmentSize;
+    private final List<String> versionedGraphs;
+    private final String versioningRules;
+    private final HistoryPartitions.Period historyPartitions;
+
+    PluginConfig(WriteMode writeMode, Storage storage, String getEndpoint, String postEndpoint, int entityCacheSize,
+                 int liveIndexLimit, int planCacheSize, int resultCacheRows, int commitWorkers, int commitQueueCapacity,
+                 CommitPipeline.BackpressurePolicy backpressure, int commitRetries, int shutdownTimeoutMillis, boolean journal, String bulkLoadDirectory,
+                 boolean changeLog, int changeLogSegmentSize, List<String> versionedGraphs, String versioningRules,
+                 HistoryPartitions.Period historyPartitions) {
+        this.writeMode = writeMode;
+        this.storage = storage;
+        this.getEndpoint = getEndpoint;
+        this.postEndpoint = postEndpoint;
+        this.entityCacheSize = entityCacheSize;
+        this.liveIndexLimit = liveIndexLimit;
+        this.planCacheSize = planCacheSize;
+        this.resultCacheRows = resultCacheRows;
+        this.commitWorkers = commitWorkers;
+        this.commitQueueCapacity = commitQueueCapacity;
+        this.backpressure = backpressure;
+        this.commitRetries = commitRetries;
+        this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+        this.journal = journal;
+        this.bulkLoadDirectory = bulkLoadDirectory;
+        this.changeLog = changeLog;
+        this.changeLogSegmentSize = changeLogSegmentSize;
+        this.versionedGraphs = versionedGraphs;
+        this.versioningRules = versioningRules;
+        this.historyPartitions = historyPartitions;
+    }
+
+    static PluginConfig fromSystemProperties() {
+        String repositoryEndpoint = property("server", "http://localhost:7200").replaceAll("/+$", "")
+                + "/repositories/" + property("repository", "testTimestamping");
+        return new PluginConfig(enumProperty("writeMode", WriteMode.IN_PROCESS),
+                enumProperty("storage", Storage.RDF),
+                property("getEndpoint", repositoryEndpoint),
+                property("postEndpoint", repositoryEndpoint + "/statements"),
+                intProperty("entityCacheSize", 100_000),
+                intProperty("liveIndexLimit", 50_000_000),
+                intProperty("planCacheSize", 256),
+                intProperty("resultCacheRows", 100_000),
+                intProperty("commitWorkers", 4),
+                intProperty("commitQueueCapacity", 1024),
+                enumProperty("backpressure", CommitPipeline.BackpressurePolicy.BLOCK),
+                intProperty("commitRetries", 3),
+                intProperty("shutdownTimeoutMillis", 30_000),
+                booleanProperty("journal", true),
+                property("bulkLoadDirectory", System.getProperty("graphdb.workbench.importDirectory")),
+                booleanProperty("changeLog", true),
+                intProperty("changeLogSegmentSize", 64 << 20),
+                VersionedContexts.parse(property("versionedGraphs", VersionedContexts.ALL)),
+                property("rules", ""),
+                enumProperty("historyPartitions", HistoryPartitions.Period.NONE));
+    }
+
+    static String property(String name, String defaultValue) {
+        return System.getProperty(PROPERTY_PREFIX + name, defaultValue);
+    }
+
+    static int intProperty(String name, int defaultValue) {
+        String value = property(name, null);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Property " + PROPERTY_PREFIX + name + " must be an integer: " + value);
+        }
+    }
+
+    static boolean booleanProperty(String name, boolean defaultValue) {
+        String value = property(name, null);
+        if (value == null)
+            return defaultValue;
+        if (value.trim().equalsIgnoreCase("true"))
+            return true;
+        if (value.trim().equalsIgnoreCase("false"))
+            return false;
+        throw new IllegalArgumentException("Property " + PROPERTY_PREFIX + name + " must be true or false: " + value);
+    }
+
+    /**
+     * Parses values like in-process or IN_PROCESS into the enum constant.
+     */
+    static <E extends Enum<E>> E enumProperty(String name, E defaultValue) {
+        String value = property(name, null);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Enum.valueOf(defaultValue.getDeclaringClass(), value.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            StringBuilder allowed = new StringBuilder();
+            for (E constant : defaultValue.getDeclaringClass().getEnumConstants())
+                allowed.append(allowed.length() == 0 ? "" : ", ").append(constant.name().toLowerCase(Locale.ROOT).replace('_', '-'));
+            throw new IllegalArgumentException("Property " + PROPERTY_PREFIX + name + " must be one of "
+                    + allowed + ": " + value);
+        }
+    }
+
+    WriteMode getWriteMode() {
+        return writeMode;
+    }
+
+    Storage getStorage() {
+        return storage;
+    }
+
+    String getGetEndpoint() {
+        return getEndpoint;
+    }
+
+    String getPostEndpoint() {
+        return postEndpoint;
+    }
+
+    int getEntityCacheSize() {
+        return entityCacheSize;
+    }
+
+    /**
+     * @return the number of live versions the plugin indexes at most, see {@link LiveVersions}
+     */
+    int getLiveIndexLimit() {
+        return liveIndexLimit;
+    }
+
+    /**
+     * @return number of rewritten time travel queries kept, see {@link TimeTravelRewriter}
+     */
+    int getPlanCacheSize() {
+        return planCacheSize;
+    }
+
+    /**
+     * @return rows of time travel query results kept, see {@link HistoricalResultCache}
+     */
+    int getResultCacheRows() {
+        return resultCacheRows;
+    }
+
+    int getCommitWorkers() {
+        return commitWorkers;
+    }
+
+    int getCommitQueueCapacity() {
+        return commitQueueCapacity;
+    }
+
+    CommitPipeline.BackpressurePolicy getBackpressure() {
+        return backpressure;
+    }
+
+    int getCommitRetries() {
+        return commitRetries;
+    }
+
+    int getShutdownTimeoutMillis() {
+        return shutdownTimeoutMillis;
+    }
+
+    boolean isJournal() {
+        return journal;
+    }
+
+    /**
+     * @return the directory bulk load files are read from, null if the bulk load is disabled
+     */
+    String getBulkLoadDirectory() {
+        return bulkLoadDirectory;
+    }
+
+    /**
+     * @return true if the committed version events are appended to the {@link ChangeLog}
+     */
+    boolean isChangeLog() {
+        return changeLog;
+    }
+
+    int getChangeLogSegmentSize() {
+        return changeLogSegmentSize;
+    }
+
+    /**
+     * @return IRIs of the graphs versioned at startup and {@code default} for the default graph, or just {@code *}
+     * for all graphs
+     */
+    List<String> getVersionedGraphs() {
+        return versionedGraphs;
+    }
+
+    /**
+     * @return the include and exclude rules, see {@link VersioningRules#compile}
+     */
+    String getVersioningRules() {
+        return versioningRules;
+    }
+
+    /**
+     * @return the period closed versions are partitioned by, see {@link HistoryPartitions}
+     */
+    HistoryPartitions.Period getHistoryPartitions() {
+        return historyPartitions;
+    }
+}
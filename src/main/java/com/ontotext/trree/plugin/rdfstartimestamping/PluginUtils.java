@@ -1,11 +1,11 @@
 package com.ontotext.trree.plugin.rdfstartimestamping;
 
-import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.BNode;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Triple;
 import org.eclipse.rdf4j.model.Value;
-import org.eclipse.rdf4j.model.impl.SimpleBNode;
-import org.eclipse.rdf4j.model.impl.SimpleIRI;
-import org.eclipse.rdf4j.model.impl.SimpleLiteral;
-import org.eclipse.rdf4j.model.impl.SimpleTriple;
+import org.eclipse.rdf4j.model.vocabulary.XSD;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -15,22 +15,99 @@ import java.util.stream.Collectors;
 
 class PluginUtils {
 
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
     public static String entityToString(Value value) {
-        if (value instanceof SimpleIRI)
-            return "<" + value + ">";
-        if (value instanceof SimpleLiteral)
-            return value.toString();
-        if (value instanceof SimpleBNode)
-            return value.toString();
-        if (value instanceof SimpleTriple) {
-            Value s = ((SimpleTriple) value).getSubject();
-            Value p = ((SimpleTriple) value).getPredicate();
-            Value o = ((SimpleTriple) value).getObject();
-            return "<<" + entityToString(s) + " " + entityToString(p) + " " + entityToString(o) + ">>";
+        StringBuilder sb = new StringBuilder(64);
+        appendEntity(value, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Writes the value in its N-Triples-star form (which is valid SPARQL-star as well), embedded triples
+     * of any depth included.
+     */
+    public static void appendEntity(Value value, Appendable out) throws IOException {
+        if (out instanceof StringBuilder) {
+            appendEntity(value, (StringBuilder) out);
+        } else {
+            StringBuilder sb = new StringBuilder(64);
+            appendEntity(value, sb);
+            out.append(sb);
+        }
+    }
+
+    public static void appendEntity(Value value, StringBuilder out) {
+        if (value instanceof IRI) {
+            appendIRI(((IRI) value).stringValue(), out);
+        } else if (value instanceof Literal) {
+            appendLiteral((Literal) value, out);
+        } else if (value instanceof BNode) {
+            out.append("_:").append(((BNode) value).getID());
+        } else if (value instanceof Triple) {
+            Triple t = (Triple) value;
+            out.append("<<");
+            appendEntity(t.getSubject(), out);
+            out.append(' ');
+            appendEntity(t.getPredicate(), out);
+            out.append(' ');
+            appendEntity(t.getObject(), out);
+            out.append(">>");
+        } else {
+            throw new IllegalArgumentException("The entity's type is not support. It is none of: IRI, literal, BNode, Triple");
         }
-        if (value instanceof Resource)
-            return "<" + value + ">";
-        throw new IllegalArgumentException("The entity's type is not support. It is none of: IRI, literal, BNode, Triple");
+    }
+
+    private static void appendIRI(String iri, StringBuilder out) {
+        out.append('<');
+        for (int i = 0; i < iri.length(); i++) {
+            char ch = iri.charAt(i);
+            switch (ch) {
+                case '<': case '>': case '"': case '{': case '}': case '|': case '^': case '`': case '\\':
+                    appendUnicodeEscape(ch, out);
+                    break;
+                default:
+                    if (ch <= 0x20)
+                        appendUnicodeEscape(ch, out);
+                    else
+                        out.append(ch);
+            }
+        }
+        out.append('>');
+    }
+
+    private static void appendLiteral(Literal literal, StringBuilder out) {
+        String label = literal.getLabel();
+        out.append('"');
+        for (int i = 0; i < label.length(); i++) {
+            char ch = label.charAt(i);
+            switch (ch) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                case '\b': out.append("\\b"); break;
+                case '\f': out.append("\\f"); break;
+                default:
+                    if (ch < 0x20 || ch == 0x7F)
+                        appendUnicodeEscape(ch, out);
+                    else
+                        out.append(ch);
+            }
+        }
+        out.append('"');
+        if (literal.getLanguage().isPresent()) {
+            out.append('@').append(literal.getLanguage().get());
+        } else if (!XSD.STRING.equals(literal.getDatatype())) {
+            out.append("^^");
+            appendIRI(literal.getDatatype().stringValue(), out);
+        }
+    }
+
+    private static void appendUnicodeEscape(char ch, StringBuilder out) {
+        out.append("\\u").append(HEX[(ch >> 12) & 0xF]).append(HEX[(ch >> 8) & 0xF])
+                .append(HEX[(ch >> 4) & 0xF]).append(HEX[ch & 0xF]);
     }
 
     public static String readAllBytes(String resourceName) {
@@ -0,0 +1,132 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import java.util.Arrays;
+
+/**
+ * Map from (subject, predicate, object, context) entity ID quads to a non-zero long, e.g. the entity ID of a
+ * version. Keys and values are kept inline in one open-addressing table of primitive longs, so lookups neither box
+ * nor allocate; removal shifts the following entries back instead of leaving tombstones.
+ */
+class QuadMap {
+
+    private static final int MIN_CAPACITY = 16;
+    // subject, predicate, object, context, value
+    private static final int ENTRY = 5;
+
+    private long[] table;
+    private int capacity;
+    private int size;
+
+    QuadMap() {
+        this(MIN_CAPACITY);
+    }
+
+    QuadMap(int expectedSize) {
+        capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, expectedSize * 2) - 1) << 1);
+        table = new long[capacity * ENTRY];
+    }
+
+    /**
+     * @return the value of the quad, 0 if there is none
+     */
+    long get(long subject, long predicate, long object, long context) {
+        return table[find(subject, predicate, object, context) * ENTRY + 4];
+    }
+
+    /**
+     * @param value must not be 0
+     * @return the previous value, 0 if there was none
+     */
+    long put(long subject, long predicate, long object, long context, long value) {
+        if (value == 0)
+            throw new IllegalArgumentException("0 marks absent values");
+        int offset = find(subject, predicate, object, context) * ENTRY;
+        long previous = table[offset + 4];
+        table[offset] = subject;
+        table[offset + 1] = predicate;
+        table[offset + 2] = object;
+        table[offset + 3] = context;
+        table[offset + 4] = value;
+        if (previous == 0 && ++size * 2 > capacity)
+            rehash(capacity * 2);
+        return previous;
+    }
+
+    /**
+     * @return the removed value, 0 if there was none
+     */
+    long remove(long subject, long predicate, long object, long context) {
+        int slot = find(subject, predicate, object, context);
+        long previous = table[slot * ENTRY + 4];
+        if (previous == 0)
+            return 0;
+        int mask = capacity - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; table[next * ENTRY + 4] != 0; next = (next + 1) & mask) {
+            int offset = next * ENTRY;
+            int home = QuadSet.hash(table[offset], table[offset + 1], table[offset + 2], table[offset + 3]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                System.arraycopy(table, offset, table, hole * ENTRY, ENTRY);
+                hole = next;
+            }
+        }
+        table[hole * ENTRY + 4] = 0;
+        size--;
+        return previous;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long sizeInBytes() {
+        return (long) table.length * Long.BYTES;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        if (size == 0)
+            return;
+        Arrays.fill(table, 0);
+        size = 0;
+    }
+
+    interface Visitor {
+        void visit(long subject, long predicate, long object, long context, long value);
+    }
+
+    void forEach(Visitor visitor) {
+        for (int offset = 0; offset < table.length; offset += ENTRY) {
+            if (table[offset + 4] != 0)
+                visitor.visit(table[offset], table[offset + 1], table[offset + 2], table[offset + 3], table[offset + 4]);
+        }
+    }
+
+    /**
+     * @return the slot holding the quad or the empty slot where it would be inserted
+     */
+    private int find(long subject, long predicate, long object, long context) {
+        int mask = capacity - 1;
+        int slot = QuadSet.hash(subject, predicate, object, context) & mask;
+        while (true) {
+            int offset = slot * ENTRY;
+            if (table[offset + 4] == 0 || table[offset] == subject && table[offset + 1] == predicate
+                    && table[offset + 2] == object && table[offset + 3] == context)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        long[] old = table;
+        table = new long[newCapacity * ENTRY];
+        capacity = newCapacity;
+        for (int offset = 0; offset < old.length; offset += ENTRY) {
+            if (old[offset + 4] != 0)
+                System.arraycopy(old, offset, table, find(old[offset], old[offset + 1], old[offset + 2], old[offset + 3]) * ENTRY, ENTRY);
+        }
+    }
+}
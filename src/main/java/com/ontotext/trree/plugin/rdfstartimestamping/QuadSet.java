@@ -0,0 +1,132 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import java.util.Arrays;
+
+/**
+ * Insertion ordered set of (subject, predicate, object, context) entity ID quads. The quads are kept in one
+ * flat long array and found through an open-addressing table of int positions, so adding, looking up and
+ * clearing allocates nothing once the set has grown to the size of a transaction.
+ */
+class QuadSet {
+
+    private static final int MIN_CAPACITY = 16;
+
+    // 4 longs per quad in insertion order
+    private long[] quads;
+    // position of a quad + 1 per slot, 0 marks an empty slot. Length is a power of two and at least 2 * size
+    private int[] table;
+    private int size;
+
+    QuadSet() {
+        this(MIN_CAPACITY);
+    }
+
+    QuadSet(int expectedSize) {
+        int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, expectedSize) - 1) << 1);
+        quads = new long[capacity * 4];
+        table = new int[capacity * 2];
+    }
+
+    /**
+     * @return false if the quad was already in the set
+     */
+    boolean add(long subject, long predicate, long object, long context) {
+        int slot = find(subject, predicate, object, context);
+        if (table[slot] != 0)
+            return false;
+        if (size * 4 == quads.length)
+            quads = Arrays.copyOf(quads, quads.length * 2);
+        int offset = size * 4;
+        quads[offset] = subject;
+        quads[offset + 1] = predicate;
+        quads[offset + 2] = object;
+        quads[offset + 3] = context;
+        table[slot] = ++size;
+        if (size * 2 > table.length)
+            rehash(table.length * 2);
+        return true;
+    }
+
+    boolean contains(long subject, long predicate, long object, long context) {
+        return table[find(subject, predicate, object, context)] != 0;
+    }
+
+    /**
+     * @return the insertion index of the quad, -1 if it is not in the set
+     */
+    int indexOf(long subject, long predicate, long object, long context) {
+        return table[find(subject, predicate, object, context)] - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        if (size == 0)
+            return;
+        Arrays.fill(table, 0);
+        size = 0;
+    }
+
+    long subject(int index) {
+        return quads[index * 4];
+    }
+
+    long predicate(int index) {
+        return quads[index * 4 + 1];
+    }
+
+    long object(int index) {
+        return quads[index * 4 + 2];
+    }
+
+    long context(int index) {
+        return quads[index * 4 + 3];
+    }
+
+    /**
+     * @return the slot holding the quad or the empty slot where it would be inserted
+     */
+    private int find(long subject, long predicate, long object, long context) {
+        int mask = table.length - 1;
+        int slot = hash(subject, predicate, object, context) & mask;
+        while (true) {
+            int position = table[slot];
+            if (position == 0)
+                return slot;
+            int offset = (position - 1) * 4;
+            if (quads[offset] == subject && quads[offset + 1] == predicate
+                    && quads[offset + 2] == object && quads[offset + 3] == context)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void rehash(int tableLength) {
+        table = new int[tableLength];
+        int mask = tableLength - 1;
+        for (int i = 0; i < size; i++) {
+            int offset = i * 4;
+            int slot = hash(quads[offset], quads[offset + 1], quads[offset + 2], quads[offset + 3]) & mask;
+            while (table[slot] != 0)
+                slot = (slot + 1) & mask;
+            table[slot] = i + 1;
+        }
+    }
+
+    static int hash(long subject, long predicate, long object, long context) {
+        long h = subject * 0x9E3779B97F4A7C15L;
+        h = (h ^ predicate) * 0x9E3779B97F4A7C15L;
+        h = (h ^ object) * 0x9E3779B97F4A7C15L;
+        h = (h ^ context) * 0x9E3779B97F4A7C15L;
+        // the table is indexed with the low bits, fold the well mixed high bits into them
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        return (int) (h ^ (h >>> 33));
+    }
+}
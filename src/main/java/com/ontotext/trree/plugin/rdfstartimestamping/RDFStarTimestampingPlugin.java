@@ -2,32 +2,74 @@ package com.ontotext.trree.plugin.rdfstartimestamping;
 
 import com.ontotext.trree.sdk.*;
 import org.eclipse.rdf4j.model.*;
-import org.eclipse.rdf4j.model.impl.*;
-import org.eclipse.rdf4j.repository.Repository;
-import org.eclipse.rdf4j.repository.RepositoryConnection;
-import org.eclipse.rdf4j.repository.sparql.SPARQLRepository;
-
-import java.io.*;
-import java.net.URL;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.text.MessageFormat;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.XSD;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.algebra.EmptySet;
+import org.eclipse.rdf4j.query.algebra.TupleExpr;
+import org.eclipse.rdf4j.query.algebra.UnaryTupleOperator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.OffsetDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.concurrent.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class RDFStarTimestampingPlugin extends PluginBase implements StatementListener, PluginTransactionListener, ContextUpdateHandler, Preprocessor {
+public class RDFStarTimestampingPlugin extends PluginBase implements StatementListener, PluginTransactionListener, ContextUpdateHandler, Preprocessor, Postprocessor, UpdateInterpreter, PatternInterpreter {
 
 	private static final String PREFIX = "http://example.com/";
-	private String getEndpoint;
-	private String postEndpoint;
-	private Repository repo;
-	private HashMap<String, Boolean> updateStrings;
-	private boolean pluginUpdateRequestCommitted;
-	private HashSet<Triple> deleteRequestTriples;
-	private boolean statementRemoved;
-	ExecutorService executor;
-	SynchronousQueue<Runnable> queue;
+	// makes the query optimizer bind the time of vers:asOf and vers:during first
+	private static final double UNBOUND_TIME_ESTIMATE = 1e9;
+	private static final Literal TRUE = SimpleValueFactory.getInstance().createLiteral(true);
+	private PluginConfig config;
+	private TimestampWriter writer;
+	private EntityCache entityCache;
+	private LiveVersions liveVersions;
+	private TemporalIndex temporalIndex;
+	private ChangeLog changeLog;
+	// set if the versions are kept as records instead of statements
+	private IntervalStore intervalStore;
+	private IntervalView intervalView;
+	private long validUntilId;
+	private CommitPipeline commitPipeline;
+	private TimestampJournal journal;
+	private BulkLoader bulkLoader;
+	private long bulkLoadId;
+	private long versionedId;
+	private long asOfId;
+	private long duringId;
+	private long addedId;
+	private long removedId;
+	private long liveId;
+	private StatementFilter filter;
+	private VersionedContexts versionedContexts;
+	private TimeTravelRewriter timeTravel;
+	private HistoricalResultCache resultCache;
+	private VersioningRules rules = VersioningRules.none();
+	// GraphDB's transaction threads only ever see their own transaction's state
+	private final Map<Long, PendingTransaction> transactions = new ConcurrentHashMap<>();
+
+	/**
+	 * What a single user transaction changed so far.
+	 */
+	private static class PendingTransaction {
+		// net inserts and deletes requested by the user
+		final NetChanges changes = new NetChanges();
+		// quads whose plain triple was actually removed
+		final QuadSet removed = new QuadSet();
+		// set while the plugin writes the versions of this transaction through its connection
+		boolean writing;
+		// what is left to write once the transaction completed
+		TransactionBatch batch;
+		List<CommitPipeline.Task> deferred = Collections.emptyList();
+		// versioned graphs added or removed by the transaction
+		final List<VersionedContexts.Change> contextChanges = new ArrayList<>();
+		// wildcard deletes, matched against the live versions at commit
+		final DeletePatterns patterns = new DeletePatterns();
+	}
 
 
 	// Service interface methods
@@ -41,28 +83,71 @@ public class RDFStarTimestampingPlugin extends PluginBase implements StatementLi
 	public void initialize(InitReason reason, PluginConnection pluginConnection) {
 		// Create IRIs to represent the entities
 		getLogger().info("rdf-star-timestamping plugin initialized!");
-		this.getEndpoint = "http://localhost:7200/repositories/testTimestamping";
-		this.postEndpoint = "http://localhost:7200/repositories/testTimestamping/statements";
-		updateStrings = new HashMap<>();
-		deleteRequestTriples = new HashSet<>();
-		pluginUpdateRequestCommitted = false;
-		queue = new SynchronousQueue<Runnable>();
-		statementRemoved = false;
-		executor = new ThreadPoolExecutor(4, 16, 2000,
-				TimeUnit.SECONDS, queue, new ThreadPoolExecutor.CallerRunsPolicy());
+		config = PluginConfig.fromSystemProperties();
+		transactions.clear();
+		// A re-initialize may switch the write mode, the pipeline of the previous one is not used anymore
+		closeCommitPipeline();
+		Entities entities = pluginConnection.getEntities();
+		// Statements with these predicates are the plugin's own version metadata
+		validUntilId = entities.put(VERS.VALID_UNTIL, Entities.Scope.DEFAULT);
+		long[] metadataPredicates = {validUntilId, entities.put(VERS.VALID_FROM, Entities.Scope.DEFAULT)};
+		filter = new StatementFilter(metadataPredicates, null);
+		versionedContexts = new VersionedContexts(config.getVersionedGraphs(),
+				getDataDir() == null ? null : new File(getDataDir(), "versioned-graphs"), filter, entities, getLogger());
+		timeTravel = new TimeTravelRewriter(versionedContexts, config.getPlanCacheSize());
+		resultCache = new HistoricalResultCache(config.getResultCacheRows());
+		bulkLoadId = entities.put(VERS.BULK_LOAD, Entities.Scope.SYSTEM);
+		versionedId = entities.put(VERS.VERSIONED, Entities.Scope.SYSTEM);
+		asOfId = entities.put(VERS.AS_OF, Entities.Scope.SYSTEM);
+		duringId = entities.put(VERS.DURING, Entities.Scope.SYSTEM);
+		addedId = entities.put(VERS.ADDED, Entities.Scope.SYSTEM);
+		removedId = entities.put(VERS.REMOVED, Entities.Scope.SYSTEM);
+		liveId = entities.put(VERS.LIVE, Entities.Scope.SYSTEM);
+		entityCache = new EntityCache(config.getEntityCacheSize());
+		if (temporalIndex != null)
+			temporalIndex.close();
+		// Versions are numbered differently by the two storage modes, each has its own index
+		String temporalIndexFile = config.getStorage() == PluginConfig.Storage.INTERVALS ? "intervals-temporal-index" : "temporal-index";
+		HistoryPartitions historyPartitions = new HistoryPartitions(config.getHistoryPartitions());
+		temporalIndex = new TemporalIndex(getDataDir() == null ? null : new File(getDataDir(), temporalIndexFile),
+				historyPartitions, getLogger());
+		if (changeLog != null)
+			changeLog.close();
+		changeLog = openChangeLog();
+		liveVersions = new LiveVersions(entityCache, temporalIndex, changeLog);
+		openIntervalStore();
+		loadTemporalIndex(indexLiveVersions(pluginConnection), pluginConnection);
+		bulkLoader = new BulkLoader(config.getBulkLoadDirectory() == null ? null : Paths.get(config.getBulkLoadDirectory()),
+				liveVersions, intervalStore, getLogger());
+		rules = VersioningRules.compile(config.getVersioningRules(), entities, entityCache);
+		if (!rules.isEmpty())
+			getLogger().info("Versioning rules: " + rules.getRules());
+		if (intervalStore != null) {
+			if (config.getWriteMode() == PluginConfig.WriteMode.SPARQL)
+				getLogger().warn("Versions kept as intervals are written in-process, the SPARQL write mode is ignored");
+			writer = new IntervalTimestampWriter(intervalStore, liveVersions, getLogger());
+		} else if (config.getWriteMode() == PluginConfig.WriteMode.SPARQL) {
+			// Timestamped triples are sent back to the server's SPARQL endpoint in a second transaction
+			writer = new SparqlTimestampWriter(config.getPostEndpoint(), liveVersions, entityCache, historyPartitions, getLogger());
+			commitPipeline = new CommitPipeline(config.getCommitWorkers(), config.getCommitQueueCapacity(),
+					config.getBackpressure(), config.getCommitRetries(), config.getShutdownTimeoutMillis(), getLogger());
+			getLogger().info("Commit pipeline: " + config.getCommitWorkers() + " lanes, queue capacity "
+					+ config.getCommitQueueCapacity() + ", backpressure " + config.getBackpressure());
+			if (config.isJournal() && getDataDir() != null)
+				openJournal(pluginConnection);
+		} else {
+			writer = new InProcessTimestampWriter(liveVersions, historyPartitions, getLogger());
+		}
+		getLogger().info("Write mode: " + config.getWriteMode() + ", storage: " + config.getStorage()
+				+ ", history partitions: " + config.getHistoryPartitions());
 
 	}
 
 	@Override
 	public Resource[] getUpdateContexts() {
 		getLogger().info("getUpdateContexts");
-		Resource[] res = new Resource[2];
-
 		//TODO: Find a workaround for contexts other than default. they can for some reason not be processed.
-		res[0] = () -> "";
-		res[1] = () -> "http://example.com/testGraph";
-
-		return res;
+		return versionedContexts.updateContexts();
 	}
 
 	@Override
@@ -71,146 +156,814 @@ public class RDFStarTimestampingPlugin extends PluginBase implements StatementLi
 		if (isAdded)
 			getLogger().info("Start adding and timestamping triple procedure");
 		else {
-			if (!pluginUpdateRequestCommitted) {
+			PendingTransaction pending = pending(pluginConnection);
+			if (!pending.writing) {
 				//handle user request
-				String cont = context == null ? "default" : context.stringValue();
-				getLogger().info("Requesting delete of triple: " + subject.stringValue()
-						+ " " + predicate.stringValue() + " " + object.stringValue()
-						+ " within context: " + cont);
-				deleteRequestTriples.add(new Triple(subject, predicate, object, context));
+				requestDelete(subject, predicate, object, context, pending, pluginConnection);
 			}
 		}
 	}
 
-	@Override
-	public void transactionStarted(PluginConnection pluginConnection) {
-		getLogger().info("Start transaction");
+	private void requestDelete(Resource subject, IRI predicate, Value object, Resource context, PendingTransaction pending, PluginConnection pluginConnection) {
+		Entities entities = pluginConnection.getEntities();
+		long c = context == null ? 0 : entities.resolve(context);
+		// An unknown entity cannot be part of a timestamped triple, so there is nothing to outdate
+		if (context != null && c == 0)
+			return;
+		if (subject == null || predicate == null || object == null) {
+			// CLEAR and DROP GRAPH remove by pattern, every live version the pattern matches is closed at once
+			long s = subject == null ? 0 : entities.resolve(subject);
+			long p = predicate == null ? 0 : entities.resolve(predicate);
+			long o = object == null ? 0 : entities.resolve(object);
+			if ((subject == null || s != 0) && (predicate == null || p != 0) && (object == null || o != 0))
+				requestPatternDelete(s, p, o, c, pending, pluginConnection);
+			return;
+		}
+		if (subject instanceof Triple && VERS.VALID_UNTIL.equals(predicate) && VERS.OPEN_END.equals(object)) {
+			// A DELETE WHERE evaluated against the store matches the live versions themselves, which closes them
+			Triple version = (Triple) subject;
+			if (!VERS.VALID_FROM.equals(version.getPredicate()) || !(version.getSubject() instanceof Triple))
+				return;
+			Triple embedded = (Triple) version.getSubject();
+			subject = embedded.getSubject();
+			predicate = embedded.getPredicate();
+			object = embedded.getObject();
+		}
+		long s = entities.resolve(subject);
+		long p = entities.resolve(predicate);
+		long o = entities.resolve(object);
+		// Outdating a version removes its valid_until statement, which is no user request
+		if (s != 0 && p != 0 && o != 0 && filter.accept(s, p, o, c, true) && rules.accept(s, p, c, entities)) {
+			if (getLogger().isDebugEnabled())
+				getLogger().debug("Requesting delete of triple:" + describe(s, p, o, c, pluginConnection));
+			pending.changes.delete(s, p, o, c);
+		}
+	}
 
-		/* First two conditions: if there were requests for deletion but no triples were actually removed
-		   this means that the user posted a normal delete request but no triple was actually deleted
-		   as the underlying structure encompasses only nested triples. These are the triples the plugin wants
-		   to capture. Simple triples that were actually removed can only appear due to an insert request where
-		   the plugin would replace the inserted triple by nested triples, thus remove it. These we do not want to
-		   capture.
-		   Third condition: Triples must have not been previously timestamped by the plugin.
-		*/
+	/**
+	 * Requests the delete of all triples matching the pattern that are live or inserted by the transaction, 0 being
+	 * a wildcard. The transaction's own triples are matched right away, the live versions once for all patterns of
+	 * the transaction when it commits, see {@link #requestLiveMatches}.
+	 */
+	private void requestPatternDelete(long subject, long predicate, long object, long context, PendingTransaction pending, PluginConnection pluginConnection) {
+		QuadSet matches = new QuadSet();
+		liveVersions.matchStaged(pluginConnection.getTransactionId(), subject, predicate, object, context, matches);
+		QuadSet inserts = pending.changes.inserts();
+		for (int i = 0; i < inserts.size(); i++) {
+			long s = inserts.subject(i), p = inserts.predicate(i), o = inserts.object(i), c = inserts.context(i);
+			if (LiveVersions.matches(s, p, o, c, subject, predicate, object, context))
+				matches.add(s, p, o, c);
+		}
+		getLogger().info("Requesting delete of " + matches.size() + " triples of the transaction and the live ones matching: "
+				+ describe(subject, predicate, object, context, pluginConnection));
+		for (int i = 0; i < matches.size(); i++)
+			pending.changes.delete(matches.subject(i), matches.predicate(i), matches.object(i), matches.context(i));
+		pending.patterns.add(subject, predicate, object, context, pending.changes.sequence());
+	}
 
-		boolean userDeleteRequestCommitted = !statementRemoved && !deleteRequestTriples.isEmpty();
-		if (userDeleteRequestCommitted && !pluginUpdateRequestCommitted) {
-			//handle user request
-			for (Triple t : deleteRequestTriples) {
-				Value c = t.getContext();
-				Value s = t.getSubject();
-				Value p = t.getPredicate();
-				Value o = t.getObject();
-
-				URL res = getClass().getClassLoader().getResource("timestampedDeleteTemplate");
-				assert res != null;
-				String template = "";
-				String context = "default";
-				if (Objects.equals(c, null)) {
-					template = "timestampedDeleteTemplate";
-					getLogger().info("Prepare triples to outdate: " + s.stringValue() + " " + p.stringValue() + " " + o.stringValue());
-				} else {
-					template = "timestampedDeleteWithContextTemplate";
-					context = PluginUtils.entityToString(c);
-					getLogger().info("Prepare triples to outdate: " + s.stringValue() + " " + p.stringValue() + " " + o.stringValue() + " " + c.stringValue());
-				}
-				updateStrings.put(MessageFormat.format(PluginUtils.readAllBytes(template),
-						context, PluginUtils.entityToString(s), PluginUtils.entityToString(p), PluginUtils.entityToString(o)), false);
+	/**
+	 * Requests the delete of the live triples matching the transaction's wildcard deletes, in one pass over the live
+	 * versions of the graphs they name. A triple the transaction changed after the last pattern matching it keeps that change.
+	 */
+	private void requestLiveMatches(PendingTransaction pending, PluginConnection pluginConnection) {
+		QuadSet matches = new QuadSet();
+		liveVersions.match(pluginConnection.getTransactionId(), pending.patterns, matches);
+		int requested = 0;
+		for (int i = 0; i < matches.size(); i++) {
+			long s = matches.subject(i), p = matches.predicate(i), o = matches.object(i), c = matches.context(i);
+			if (pending.patterns.latest(s, p, o, c) >= pending.changes.lastChange(s, p, o, c)) {
+				pending.changes.delete(s, p, o, c);
+				requested++;
 			}
-			deleteRequestTriples.clear();
 		}
+		getLogger().info("Requesting delete of " + requested + " live triples matching " + pending.patterns.size() + " patterns");
+	}
 
+	@Override
+	public long[] getPredicatesToListenFor() {
+		return new long[]{bulkLoadId, versionedId};
 	}
 
 	@Override
-	public boolean statementAdded(long subject, long predicate, long object, long context, boolean isAddition, PluginConnection pluginConnection) {
-		Value s = pluginConnection.getEntities().get(subject);
-		Value p = pluginConnection.getEntities().get(predicate);
-		Value o = pluginConnection.getEntities().get(object);
-		Value c = pluginConnection.getEntities().get(context);
+	public boolean interpretUpdate(long subject, long predicate, long object, long context, boolean isAddition, boolean isExplicit, PluginConnection pluginConnection) {
+		if (predicate == versionedId) {
+			requestVersionedGraph(subject, isAddition, pluginConnection);
+			return true;
+		}
+		if (predicate != bulkLoadId)
+			return false;
+		if (isAddition) {
+			Value file = pluginConnection.getEntities().get(object);
+			PendingTransaction pending = pending(pluginConnection);
+			// The loaded versions are written by the plugin and must not be captured as user inserts
+			pending.writing = true;
+			OffsetDateTime time = OffsetDateTime.now().truncatedTo(ChronoUnit.MILLIS);
+			try {
+				bulkLoader.load(file.stringValue(), context, time, pluginConnection);
+			} finally {
+				pending.writing = false;
+				// Chunks of the loaded versions are live already
+				resultCache.invalidate(time.toInstant().toEpochMilli());
+			}
+		}
+		// the control statement itself is never stored
+		return true;
+	}
 
-		getLogger().info("Add statement:" + s + " " + p + " " + o + " within context:" + c);
+	@Override
+	public void transactionStarted(PluginConnection pluginConnection) {
+		getLogger().info("Start transaction");
+		transactions.put(pluginConnection.getTransactionId(), new PendingTransaction());
+	}
 
-		if (!pluginUpdateRequestCommitted) {
+	@Override
+	public boolean statementAdded(long subject, long predicate, long object, long context, boolean explicit, PluginConnection pluginConnection) {
+		// Inferred statements, the plugin's own metadata and other contexts are skipped before anything is decoded
+		if (!filter.accept(subject, predicate, object, context, explicit)
+				|| !rules.accept(subject, predicate, context, pluginConnection.getEntities()))
+			return false;
+		PendingTransaction pending = pending(pluginConnection);
+		if (!pending.writing) {
 			//handle user request
-			URL res = getClass().getClassLoader().getResource("timestampedInsertTemplate");
-			assert res != null;
-			String template = "";
-			String cont = "default";
-			if (Objects.equals(c, null))
-				template = "timestampedInsertTemplate";
-			else {
-				template = "timestampedInsertWithContextTemplate";
-				cont = PluginUtils.entityToString(c);
-			}
-			updateStrings.put(MessageFormat.format(PluginUtils.readAllBytes(template),
-					cont, PluginUtils.entityToString(s), PluginUtils.entityToString(p), PluginUtils.entityToString(o)), true);
+			if (getLogger().isDebugEnabled())
+				getLogger().debug("Add statement:" + describe(subject, predicate, object, context, pluginConnection));
+			pending.changes.insert(subject, predicate, object, context);
 		}
 		return false;
 	}
 
 	@Override
-	public boolean statementRemoved(long subject, long predicate, long object, long context, boolean isAddition, PluginConnection pluginConnection) {
-		Value s = pluginConnection.getEntities().get(subject);
-		Value p = pluginConnection.getEntities().get(predicate);
-		Value o = pluginConnection.getEntities().get(object);
-		Value c = pluginConnection.getEntities().get(context);
-		getLogger().info("Remove statement:" + s + " " + p + " " + o + " within context:" + c);
-
-		statementRemoved = true;
+	public boolean statementRemoved(long subject, long predicate, long object, long context, boolean explicit, PluginConnection pluginConnection) {
+		if (!explicit)
+			return false;
+		PendingTransaction pending = pending(pluginConnection);
+		if (!pending.writing) {
+			if (getLogger().isDebugEnabled())
+				getLogger().debug("Remove statement:" + describe(subject, predicate, object, context, pluginConnection));
+			// Removing a plain triple the transaction inserted itself is the user's own delete, which counts
+			if (!pending.changes.wasInserted(subject, predicate, object, context))
+				pending.removed.add(subject, predicate, object, context);
+		}
 		return false;
 	}
 
 	@Override
 	public void transactionCommit(PluginConnection pluginConnection) {
 		getLogger().info("Commit transaction");
+		PendingTransaction pending = pending(pluginConnection);
+		if (pending.writing)
+			return;
 
-		if (!updateStrings.isEmpty() && !pluginUpdateRequestCommitted) {
-			//handle user request
-			executor.execute(() -> {
-				 repo = new SPARQLRepository(postEndpoint);
-				 try (RepositoryConnection connection = repo.getConnection()) {
-					 pluginUpdateRequestCommitted = true;
-					 connection.begin();
-					 for (Map.Entry<String, Boolean> entry : updateStrings.entrySet()) {
-						 if (entry.getValue())
-							 getLogger().info("Prepare timestamped insert statement");
-						 else
-							 getLogger().info("Prepare timestamped delete statement");
-						 connection.prepareUpdate(entry.getKey()).execute();
-					 }
-					 connection.commit();
-				 } finally {
-					 getLogger().info("Clear list of update strings and reset triplesTimestamped flag.");
-					 updateStrings.clear();
-					 pluginUpdateRequestCommitted = false;
-				 }
-			 });
+		if (!pending.patterns.isEmpty())
+			requestLiveMatches(pending, pluginConnection);
+		if (pending.changes.isEmpty())
+			return;
+
+		/* A delete request for a triple that was not actually removed targets a timestamped triple, as the
+		   underlying structure encompasses only nested triples. These are the deletes the plugin wants to capture.
+		   Simple triples that were actually removed without being inserted by this transaction can only appear due
+		   to an insert request where the plugin replaced the inserted triple, e.g. its own update in the SPARQL
+		   write mode, thus removed it. These we do not want to capture. A triple the user inserted and deleted
+		   again is not in removed, so deleting it still closes its live version.
+		*/
+		QuadSet deletes = pending.changes.deletes(pending.removed);
+		QuadSet inserts = new QuadSet();
+		List<CommitPipeline.Task> deferred;
+		// The plugin's own removals and additions must not be captured as user requests
+		pending.writing = true;
+		try {
+			QuadSet requested = pending.changes.inserts();
+			Statements statements = pluginConnection.getStatements();
+			for (int i = 0; i < requested.size(); i++) {
+				long s = requested.subject(i), p = requested.predicate(i), o = requested.object(i), c = requested.context(i);
+				// Inserting a live triple opens no new version, only the plain triple is dropped again
+				if (liveVersions.isLive(pluginConnection.getTransactionId(), s, p, o, c))
+					statements.remove(s, p, o, c);
+				else
+					inserts.add(s, p, o, c);
+			}
+			// One instant for all versions the transaction opens or closes
+			OffsetDateTime now = OffsetDateTime.now().truncatedTo(ChronoUnit.MILLIS);
+			TransactionBatch batch = new TransactionBatch(pluginConnection.getTransactionId(), now, inserts, deletes);
+			if (batch.isEmpty())
+				return;
+			deferred = writer.write(batch, pluginConnection);
+			pending.batch = batch;
+			liveVersions.checkLimit(pluginConnection.getTransactionId());
+		} finally {
+			pending.writing = false;
 		}
+
+		// Sent once the transaction completed, an aborted transaction leaves nothing to write
+		pending.deferred = deferred;
 	}
 
 	@Override
 	public void transactionCompleted(PluginConnection pluginConnection) {
 		getLogger().info("Complete transaction");
-		statementRemoved = false;
+		PendingTransaction pending = transactions.remove(pluginConnection.getTransactionId());
+		if (intervalStore != null)
+			intervalStore.commit(pluginConnection.getTransactionId());
+		if (pending != null && !pending.deferred.isEmpty()) {
+			// The versions are recorded as history once they are written, see submit
+			submit(pending.batch, pending.deferred,
+					liveVersions.completeDeferred(pluginConnection.getTransactionId(), pluginConnection.getEntities()));
+		} else {
+			// History before the earliest version the transaction opened or closed is unchanged
+			long changedFrom = liveVersions.complete(pluginConnection.getTransactionId(), pluginConnection.getEntities());
+			resultCache.invalidate(changedFrom);
+		}
+		if (pending != null && !pending.contextChanges.isEmpty()) {
+			versionedContexts.apply(pending.contextChanges);
+			// Cached plans and results were rewritten for the previous set of versioned graphs
+			timeTravel.clear();
+			resultCache.clear();
+		}
+		getLogger().debug(entityCache.toString());
+		getLogger().debug(resultCache.toString());
+		if (!rules.isEmpty())
+			getLogger().debug(rules.toString());
+		if (commitPipeline != null)
+			getLogger().debug(commitPipeline.toString());
 
 	}
 
 	@Override
 	public void transactionAborted(PluginConnection pluginConnection) {
 		getLogger().info("Abort transaction");
+		transactions.remove(pluginConnection.getTransactionId());
+		boolean unpublished = liveVersions.abort(pluginConnection.getTransactionId());
+		if (intervalStore != null)
+			intervalStore.abort(pluginConnection.getTransactionId());
+		if (!unpublished) {
+			// A bulk load made chunks of its versions live before the transaction was rolled back
+			getLogger().warn("Aborted transaction bulk loaded live versions, indexing the versions again");
+			indexLiveVersions(pluginConnection);
+			try {
+				rebuildTemporalIndex(pluginConnection);
+			} catch (IOException e) {
+				getLogger().error("Temporal index cannot be rebuilt", e);
+			}
+			resultCache.clear();
+		}
+		// IDs of entities created by the aborted transaction may be handed out again
+		entityCache.clear();
+	}
+
+	@Override
+	public void shutdown(ShutdownReason reason) {
+		if (!rules.isEmpty())
+			getLogger().info(rules.toString());
+		closeCommitPipeline();
+		if (temporalIndex != null)
+			temporalIndex.close();
+		if (changeLog != null) {
+			changeLog.close();
+			changeLog = null;
+		}
+		closeIntervalStore();
+		super.shutdown(reason);
+	}
+
+	/**
+	 * Records the start or end of versioning a graph, which takes effect once the transaction completed.
+	 */
+	private void requestVersionedGraph(long graph, boolean versioned, PluginConnection pluginConnection) {
+		if (versionedContexts.isAll())
+			throw new PluginException("All graphs are versioned, set " + PluginConfig.PROPERTY_PREFIX
+					+ "versionedGraphs to choose them");
+		String name;
+		try {
+			name = VersionedContexts.name(pluginConnection.getEntities().get(graph));
+		} catch (IllegalArgumentException e) {
+			throw new PluginException(e.getMessage());
+		}
+		long context = VersionedContexts.DEFAULT_GRAPH.equals(name) ? 0 : graph;
+		pending(pluginConnection).contextChanges.add(new VersionedContexts.Change(name, context, versioned));
+	}
+
+	/**
+	 * Reads the temporal index from the plugin's data directory and rebuilds it from the stored versions if it is
+	 * missing or does not match the live versions, e.g. after a crash. Jobs replayed from the journal afterwards are
+	 * recorded again.
+	 */
+	/**
+	 * @return the number of live versions
+	 */
+	private int indexLiveVersions(PluginConnection pluginConnection) {
+		long start = System.nanoTime();
+		int live = intervalStore != null ? liveVersions.load(intervalStore, pluginConnection.getEntities(), config.getLiveIndexLimit())
+				: liveVersions.load(pluginConnection.getEntities(), pluginConnection.getStatements(), config.getLiveIndexLimit());
+		getLogger().info("Indexed " + live + " live versions in " + (System.nanoTime() - start) / 1_000_000 + " ms, "
+				+ liveVersions.liveIndexBytes() / 1024 + " KB of index and "
+				+ liveVersions.liveTriplesBytes() / 1024 + " KB of live triple bitmaps");
+		if (live > config.getLiveIndexLimit())
+			getLogger().error("There are more live versions than the limit of " + config.getLiveIndexLimit()
+					+ ", commits that open versions are rejected. Raise " + PluginConfig.PROPERTY_PREFIX
+					+ "liveIndexLimit and the heap to match");
+		return live;
+	}
+
+	private void loadTemporalIndex(int live, PluginConnection pluginConnection) {
+		try {
+			if (temporalIndex.load() && temporalIndex.live() == live) {
+				getLogger().info("Temporal index with " + temporalIndex.size() + " versions, "
+						+ temporalIndex.historyPartitions() + " history partitions");
+				return;
+			}
+			rebuildTemporalIndex(pluginConnection);
+		} catch (IOException e) {
+			getLogger().error("Temporal index cannot be loaded, it holds only versions written from now on", e);
+		}
+	}
+
+	private void rebuildTemporalIndex(PluginConnection pluginConnection) throws IOException {
+		long start = System.nanoTime();
+		long versions = intervalStore != null ? temporalIndex.rebuild(intervalStore)
+				: temporalIndex.rebuild(pluginConnection.getEntities(), pluginConnection.getStatements());
+		getLogger().info("Rebuilt the temporal index with " + versions + " versions in "
+				+ (System.nanoTime() - start) / 1_000_000 + " ms");
+	}
 
+	/**
+	 * Opens the interval store in the plugin's data directory if the versions are kept as intervals.
+	 */
+	private void openIntervalStore() {
+		closeIntervalStore();
+		if (config.getStorage() != PluginConfig.Storage.INTERVALS)
+			return;
+		try {
+			intervalStore = IntervalStore.open(getDataDir() == null ? null : new File(getDataDir(), "intervals"), getLogger());
+		} catch (IOException e) {
+			throw new PluginException("Interval store cannot be opened: " + e.getMessage(), e);
+		}
+		intervalView = new IntervalView(intervalStore, temporalIndex, entityCache);
+	}
+
+	private void closeIntervalStore() {
+		if (intervalStore == null)
+			return;
+		try {
+			intervalStore.close();
+		} catch (IOException e) {
+			getLogger().error("Closing the interval store failed", e);
+		}
+		intervalStore = null;
+		intervalView = null;
+	}
+
+	/**
+	 * @return the change log in the plugin's data directory, null if it is disabled or cannot be opened
+	 */
+	private ChangeLog openChangeLog() {
+		if (!config.isChangeLog() || getDataDir() == null)
+			return null;
+		try {
+			ChangeLog opened = ChangeLog.open(new File(getDataDir(), "changes"), config.getChangeLogSegmentSize(),
+					entityCache, getLogger());
+			getLogger().info("Change log continues at offset " + opened.nextOffset());
+			return opened;
+		} catch (IOException e) {
+			getLogger().error("Change log cannot be opened, version events are not logged", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Drains the commit pipeline and closes the journal, if the SPARQL write mode opened them.
+	 */
+	private void closeCommitPipeline() {
+		// Timestamped triples still queued belong to transactions that are already committed
+		if (commitPipeline != null) {
+			commitPipeline.shutdown();
+			commitPipeline = null;
+		}
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				getLogger().error("Closing the timestamp journal failed", e);
+			}
+			journal = null;
+		}
+	}
+
+	/**
+	 * Opens the journal in the plugin's data directory and resubmits the jobs a crash or restart interrupted.
+	 * Inserts whose plain triple is gone already got their version before the interruption.
+	 */
+	private void openJournal(PluginConnection pluginConnection) {
+		Map<Long, TransactionBatch> unfinished = new LinkedHashMap<>();
+		try {
+			journal = TimestampJournal.open(new File(getDataDir(), "timestamping.journal"),
+					TimestampJournal.DEFAULT_INITIAL_SIZE, unfinished, getLogger());
+		} catch (IOException e) {
+			getLogger().error("Timestamp journal cannot be opened, pending timestamps are kept in memory only", e);
+			return;
+		}
+		Statements statements = pluginConnection.getStatements();
+		for (Map.Entry<Long, TransactionBatch> job : unfinished.entrySet()) {
+			TransactionBatch journaled = job.getValue();
+			QuadSet inserts = new QuadSet();
+			for (int i = 0; i < journaled.getInserts().size(); i++) {
+				QuadSet quads = journaled.getInserts();
+				long s = quads.subject(i), p = quads.predicate(i), o = quads.object(i), c = quads.context(i);
+				StatementIterator iter = statements.get(s, p, o, c);
+				try {
+					if (iter.next())
+						inserts.add(s, p, o, c);
+				} finally {
+					iter.close();
+				}
+			}
+			TransactionBatch batch = new TransactionBatch(journaled.getTransactionId(), journaled.getTime(), inserts,
+					journaled.getDeletes());
+			getLogger().info("Replay timestamp job " + job.getKey() + " of " + batch);
+			List<CommitPipeline.Task> tasks = writer.write(batch, pluginConnection);
+			submit(job.getKey(), tasks, liveVersions.completeDeferred(batch.getTransactionId(), pluginConnection.getEntities()));
+		}
+	}
+
+	private void submit(TransactionBatch batch, List<CommitPipeline.Task> tasks, LiveVersions.Deferred changes) {
+		long jobId = -1;
+		if (journal != null) {
+			try {
+				jobId = journal.append(batch);
+				journal.sync();
+			} catch (IOException e) {
+				getLogger().error("Journaling the timestamps of " + batch + " failed, they are kept in memory only", e);
+			}
+		}
+		submit(jobId, tasks, changes);
+	}
+
+	/**
+	 * Submits the tasks of a journal job. Once the versions of a context are written they are recorded as history,
+	 * if writing them is given up they are taken back from the live index. A shed task is dropped for good, so its
+	 * job may be completed, while the job of a task that failed is left in the journal and replayed on the next
+	 * initialize.
+	 *
+	 * @param changes the versions the tasks write, null if there are none
+	 */
+	private void submit(long jobId, List<CommitPipeline.Task> tasks, LiveVersions.Deferred changes) {
+		Runnable completeJob = () -> {
+			if (journal == null || jobId < 0)
+				return;
+			try {
+				journal.complete(jobId);
+			} catch (IOException e) {
+				getLogger().error("Completing timestamp job " + jobId + " in the journal failed", e);
+			}
+		};
+		if (tasks.isEmpty()) {
+			completeJob.run();
+			return;
+		}
+		AtomicInteger remaining = new AtomicInteger(tasks.size());
+		for (CommitPipeline.Task task : tasks) {
+			// The writer keys its tasks by the context they write
+			long context = task.laneKey();
+			commitPipeline.submit(task, new CommitPipeline.Listener() {
+				@Override
+				public void completed() {
+					if (changes != null)
+						resultCache.invalidate(liveVersions.publish(changes, context));
+					if (remaining.decrementAndGet() == 0)
+						completeJob.run();
+				}
+
+				@Override
+				public void givenUp(boolean shed) {
+					if (changes != null)
+						liveVersions.revert(changes, context);
+					if (shed && remaining.decrementAndGet() == 0)
+						completeJob.run();
+					else if (!shed && jobId >= 0)
+						getLogger().warn("Timestamp job " + jobId + " is kept in the journal and replayed on the next initialize");
+				}
+			});
+		}
+	}
+
+	private PendingTransaction pending(PluginConnection pluginConnection) {
+		return transactions.computeIfAbsent(pluginConnection.getTransactionId(), id -> new PendingTransaction());
+	}
+
+	private String describe(long subject, long predicate, long object, long context, PluginConnection pluginConnection) {
+		Entities entities = pluginConnection.getEntities();
+		return entityCache.get(subject, entities) + " " + entityCache.get(predicate, entities) + " "
+				+ entityCache.get(object, entities) + " within context:" + entityCache.get(context, entities);
+	}
+
+	@Override
+	public StatementIterator interpret(long subject, long predicate, long object, long context, PluginConnection pluginConnection, RequestContext requestContext) {
+		if (predicate == liveId)
+			return live(subject, object, context, pluginConnection.getEntities());
+		if (predicate == validUntilId && intervalView != null) {
+			Entities entities = pluginConnection.getEntities();
+			return intervalView.find(subject, object, contexts(context, entities, temporalIndex.contexts()),
+					pluginConnection.getTransactionId(), validUntilId, entities);
+		}
+		if (predicate != asOfId && predicate != duringId && predicate != addedId && predicate != removedId)
+			return null;
+		Entities entities = pluginConnection.getEntities();
+		long[] range;
+		try {
+			range = range(predicate, object, entities);
+		} catch (IllegalArgumentException e) {
+			throw new PluginException(e.getMessage());
+		}
+		long[] contexts = contexts(context, entities, temporalIndex.contexts());
+		if (range == null)
+			return versions(new long[0], new long[0], subject, predicate, object, entities);
+		if (predicate == addedId || predicate == removedId)
+			return diff(subject, predicate, object, contexts, range, entities);
+		// all versions are collected up front, their embedded triples are decoded while the results are consumed
+		long[][] found = new long[contexts.length][];
+		int count = 0;
+		for (int i = 0; i < contexts.length; i++) {
+			found[i] = temporalIndex.overlapping(contexts[i], range[0], range[1]);
+			count += found[i].length;
+		}
+		long[] versions = new long[count], versionContexts = new long[count];
+		int offset = 0;
+		for (int i = 0; i < contexts.length; i++) {
+			System.arraycopy(found[i], 0, versions, offset, found[i].length);
+			Arrays.fill(versionContexts, offset, offset + found[i].length, contexts[i]);
+			offset += found[i].length;
+		}
+		return versions(versions, versionContexts, subject, predicate, object, entities);
+	}
+
+	@Override
+	public double estimate(long subject, long predicate, long object, long context, PluginConnection pluginConnection, RequestContext requestContext) {
+		if (predicate == liveId) {
+			if (subject != 0)
+				return 1;
+			long estimate = 0;
+			for (long c : contexts(context, pluginConnection.getEntities(), liveVersions.liveContexts()))
+				estimate += liveVersions.liveTripleCount(c);
+			return Math.max(1, estimate);
+		}
+		if (predicate == validUntilId && intervalView != null)
+			return Math.max(1, intervalView.estimate(subject, object,
+					contexts(context, pluginConnection.getEntities(), temporalIndex.contexts()).length, pluginConnection.getEntities()));
+		// the time has to be bound before the index can be used
+		if (object == 0)
+			return UNBOUND_TIME_ESTIMATE;
+		if (subject != 0)
+			return 1;
+		Entities entities = pluginConnection.getEntities();
+		long[] range;
+		try {
+			range = range(predicate, object, entities);
+		} catch (IllegalArgumentException e) {
+			return UNBOUND_TIME_ESTIMATE;
+		}
+		if (range == null)
+			return 1;
+		long estimate = 0;
+		for (long c : contexts(context, entities, temporalIndex.contexts())) {
+			if (predicate == addedId || predicate == removedId)
+				estimate += temporalIndex.changeCount(c, range[0], range[1]);
+			else
+				estimate += temporalIndex.estimate(c, range[1]);
+		}
+		return Math.max(1, estimate);
+	}
+
+	/**
+	 * @return the {@code [start, end)} epoch millis an {@code asOf} or {@code during} object stands for, the start and
+	 * end of the interval of {@code added} or {@code removed}, null if unbound
+	 */
+	private long[] range(long predicate, long object, Entities entities) {
+		if (object == 0)
+			return null;
+		Value value = entities.get(object);
+		if (!(value instanceof Literal))
+			throw new IllegalArgumentException("A timestamp is expected, not " + value);
+		String label = value.stringValue();
+		ValueFactory vf = SimpleValueFactory.getInstance();
+		long start, end;
+		try {
+			if (predicate == asOfId) {
+				start = TemporalIndex.millis(value);
+				end = start + 1;
+			} else {
+				String[] interval = label.split("/", 2);
+				if (interval.length != 2)
+					throw new IllegalArgumentException("No interval");
+				start = TemporalIndex.millis(vf.createLiteral(interval[0], XSD.DATETIME));
+				end = TemporalIndex.millis(vf.createLiteral(interval[1], XSD.DATETIME));
+			}
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException((predicate == asOfId ? "Not an xsd:dateTime: " : "Not an ISO 8601 interval: ")
+					+ label, e);
+		}
+		if (end <= start)
+			throw new IllegalArgumentException("The interval " + label + " is empty");
+		return new long[]{start, end};
+	}
+
+	/**
+	 * Binds the embedded triples added or removed between the snapshots as of the start and the end of the range. Only
+	 * the versions opened or closed in between are looked at: per triple and context they alternate, so a triple was
+	 * added if it was opened once more than closed and removed if it was closed once more than opened.
+	 */
+	private StatementIterator diff(long boundSubject, long predicate, long object, long[] contexts, long[] range, Entities entities) {
+		int wanted = predicate == addedId ? 1 : -1;
+		long[] subjects = new long[16], subjectContexts = new long[16];
+		int count = 0;
+		for (long c : contexts) {
+			long[] changes = temporalIndex.changes(c, range[0], range[1]);
+			// net change of each embedded triple, in the order of first change
+			Map<Long, int[]> net = new LinkedHashMap<>();
+			for (int i = 0; i < changes.length; i += 2) {
+				long triple = embeddedTriple(changes[i], entities);
+				if (triple != 0 && (boundSubject == 0 || triple == boundSubject))
+					net.computeIfAbsent(triple, t -> new int[1])[0] += changes[i + 1] == TemporalIndex.OPENED ? 1 : -1;
+			}
+			for (Map.Entry<Long, int[]> entry : net.entrySet()) {
+				if (entry.getValue()[0] != wanted)
+					continue;
+				if (count == subjects.length) {
+					subjects = Arrays.copyOf(subjects, count * 2);
+					subjectContexts = Arrays.copyOf(subjectContexts, count * 2);
+				}
+				subjects[count] = entry.getKey();
+				subjectContexts[count++] = c;
+			}
+		}
+		return statements(Arrays.copyOf(subjects, count), Arrays.copyOf(subjectContexts, count), predicate, object);
+	}
+
+	/**
+	 * @return the entity ID of the embedded triple {@code <<s p o>>} of a version, 0 if the entity is no version
+	 */
+	private long embeddedTriple(long version, Entities entities) {
+		if (intervalView != null)
+			return intervalView.tripleId(version, entities);
+		// not cached: the version may be a request scope entity of the query
+		Value value = entities.get(version);
+		if (!(value instanceof Triple))
+			return 0;
+		Value embedded = ((Triple) value).getSubject();
+		long id = entities.resolve(embedded);
+		return id != 0 ? id : entities.put(embedded, Entities.Scope.REQUEST);
+	}
+
+	/**
+	 * Enumerates or checks the live embedded triples from the bitmaps, without touching the version metadata.
+	 */
+	private StatementIterator live(long subject, long object, long context, Entities entities) {
+		long trueId = entities.resolve(TRUE);
+		if (object != 0 && object != trueId)
+			return statements(new long[0], new long[0], liveId, object);
+		if (object == 0)
+			object = trueId != 0 ? trueId : entities.put(TRUE, Entities.Scope.REQUEST);
+		long[] contexts = contexts(context, entities, liveVersions.liveContexts());
+		if (subject != 0) {
+			long[] found = new long[contexts.length];
+			int count = 0;
+			for (long c : contexts) {
+				if (liveVersions.isLiveTriple(c, subject))
+					found[count++] = c;
+			}
+			long[] subjects = new long[count];
+			Arrays.fill(subjects, subject);
+			return statements(subjects, Arrays.copyOf(found, count), liveId, object);
+		}
+		long[][] found = new long[contexts.length][];
+		int count = 0;
+		for (int i = 0; i < contexts.length; i++) {
+			found[i] = liveVersions.liveTriples(contexts[i]);
+			count += found[i].length;
+		}
+		long[] triples = new long[count], tripleContexts = new long[count];
+		int offset = 0;
+		for (int i = 0; i < contexts.length; i++) {
+			System.arraycopy(found[i], 0, triples, offset, found[i].length);
+			Arrays.fill(tripleContexts, offset, offset + found[i].length, contexts[i]);
+			offset += found[i].length;
+		}
+		return statements(triples, tripleContexts, liveId, object);
+	}
+
+	/**
+	 * @param all the contexts to look at outside of a named graph
+	 * @return the contexts a pattern looks at
+	 */
+	private static long[] contexts(long context, Entities entities, long[] all) {
+		if (context == 0)
+			return all;
+		Value graph = entities.get(context);
+		if (graph instanceof IRI && VersionedContexts.DEFAULT_GRAPH.equals(VersionedContexts.name(graph)))
+			return new long[]{0};
+		return new long[]{context};
+	}
+
+	/**
+	 * @return statements {@code <<s p o>> predicate object} with the embedded triple of each version
+	 */
+	private StatementIterator versions(long[] versions, long[] contexts, long boundSubject, long boundPredicate, long boundObject, Entities entities) {
+		return new StatementIterator() {
+			int next;
+
+			@Override
+			public boolean next() {
+				while (next < versions.length) {
+					int i = next++;
+					long id = embeddedTriple(versions[i], entities);
+					if (id == 0 || boundSubject != 0 && id != boundSubject)
+						continue;
+					subject = id;
+					predicate = boundPredicate;
+					object = boundObject;
+					context = contexts[i];
+					return true;
+				}
+				return false;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	private static StatementIterator statements(long[] subjects, long[] contexts, long boundPredicate, long boundObject) {
+		return new StatementIterator() {
+			int next;
+
+			@Override
+			public boolean next() {
+				if (next == subjects.length)
+					return false;
+				subject = subjects[next];
+				predicate = boundPredicate;
+				object = boundObject;
+				context = contexts[next++];
+				return true;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
 	}
 
 	@Override
 	public RequestContext preprocess(Request request) {
-		if (request instanceof QueryRequest) {
-			getLogger().info(String.valueOf(((QueryRequest) request).getTupleExpr().getBindingNames()));
-			getLogger().info(String.valueOf(((QueryRequest) request).getBindings().getBindingNames()));
+		if (!(request instanceof QueryRequest))
+			return null;
+		QueryRequest query = (QueryRequest) request;
+		Value instant = query.getBindings() == null ? null : query.getBindings().getValue(TimeTravelRewriter.BINDING);
+		if (instant == null)
+			return null;
+		if (!(instant instanceof Literal))
+			throw new PluginException("Not a timestamp: " + instant);
+		long time;
+		try {
+			time = TemporalIndex.millis(instant);
+		} catch (IllegalArgumentException e) {
+			throw new PluginException("Not a timestamp: " + instant);
+		}
+		TupleExpr root = query.getTupleExpr();
+		HistoricalResultCache.Evaluation evaluation = null;
+		if (config.getResultCacheRows() > 0 && root instanceof UnaryTupleOperator) {
+			evaluation = resultCache.begin(HistoricalResultCache.key(root, query.getDataset(),
+					query.isIncludeInferred(), query.getBindings(), time), time);
+			if (evaluation.isCached()) {
+				// The rows are returned when the evaluation is flushed
+				((UnaryTupleOperator) root).setArg(new EmptySet());
+				evaluation.setRequest(request);
+				return evaluation;
+			}
 		}
-		return null;
+		if (timeTravel.rewrite(root, (Literal) instant))
+			getLogger().debug(timeTravel.toString());
+		if (evaluation == null || !HistoricalResultCache.isSnapshot(root))
+			return null;
+		evaluation.setRequest(request);
+		return evaluation;
+	}
+
+	@Override
+	public boolean shouldPostprocess(RequestContext requestContext) {
+		return requestContext instanceof HistoricalResultCache.Evaluation;
+	}
+
+	@Override
+	public BindingSet postprocess(BindingSet bindingSet, RequestContext requestContext) {
+		resultCache.record((HistoricalResultCache.Evaluation) requestContext, bindingSet);
+		return bindingSet;
+	}
+
+	@Override
+	public Iterator<BindingSet> flush(RequestContext requestContext) {
+		Iterator<BindingSet> cached = resultCache.finish((HistoricalResultCache.Evaluation) requestContext);
+		getLogger().debug(resultCache.toString());
+		return cached;
 	}
 
 }
@@ -0,0 +1,362 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.Entities;
+import com.ontotext.trree.sdk.PluginConnection;
+import org.eclipse.rdf4j.model.BNode;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Triple;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.sparql.SPARQLRepository;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the timestamped triples by sending the rendered update templates to the repository's own
+ * SPARQL endpoint. This is a second server transaction and thus runs after the user's commit.
+ * All changes of a transaction are sent as a single multi-operation update: one VALUES-driven operation
+ * per context for the inserts, so the server's parse and evaluation cost grows with the number of
+ * batches rather than with the number of triples. Deletes are resolved to their live version through the
+ * {@link LiveVersions} index while the user's transaction is open and replace its valid_until statement with
+ * DELETE DATA / INSERT DATA, without any pattern to evaluate. The new statement goes to the history graph if the
+ * {@link HistoryPartitions} are enabled.
+ */
+class SparqlTimestampWriter implements TimestampWriter {
+
+    // Upper bound of VALUES rows per operation to keep single operations at a reasonable size
+    static final int MAX_BATCH_SIZE = 5000;
+    // Queued updates are only coalesced up to this number of triples
+    static final int MAX_COALESCED_TRIPLES = 50_000;
+    // Pooled builders that grew beyond this are dropped instead of being kept for the next update
+    private static final int MAX_POOLED_CAPACITY = 1 << 22;
+
+    private static final ThreadLocal<StringBuilder> BUILDERS = ThreadLocal.withInitial(() -> new StringBuilder(4096));
+
+    private final ValueFactory vf = SimpleValueFactory.getInstance();
+    private final Repository repo;
+    private final LiveVersions liveVersions;
+    private final EntityCache entityCache;
+    private final HistoryPartitions partitions;
+    private final Logger logger;
+
+    private final UpdateTemplate insertTemplate = UpdateTemplate.load("timestampedInsertTemplate");
+    private final UpdateTemplate insertWithContextTemplate = UpdateTemplate.load("timestampedInsertWithContextTemplate");
+    private final UpdateTemplate batchInsertTemplate = UpdateTemplate.load("timestampedBatchInsertTemplate");
+    private final UpdateTemplate batchInsertWithContextTemplate = UpdateTemplate.load("timestampedBatchInsertWithContextTemplate");
+    private final UpdateTemplate batchCloseTemplate = UpdateTemplate.load("timestampedBatchCloseTemplate");
+    private final UpdateTemplate batchCloseWithContextTemplate = UpdateTemplate.load("timestampedBatchCloseWithContextTemplate");
+    private final UpdateTemplate batchCloseIntoHistoryTemplate = UpdateTemplate.load("timestampedBatchCloseIntoHistoryTemplate");
+    private final UpdateTemplate batchCloseIntoHistoryWithContextTemplate = UpdateTemplate.load("timestampedBatchCloseIntoHistoryWithContextTemplate");
+
+    /**
+     * A triple in its rendered form, decoded while the user's transaction was still open.
+     */
+    static class RenderedTriple {
+        final String subject;
+        final String predicate;
+        final String object;
+        // null for the default graph
+        final String context;
+        final boolean hasBlankNode;
+        final boolean hasEmbeddedTriple;
+        // valid_from of the live version a delete closes, null for inserts
+        final String validFrom;
+
+        RenderedTriple(String subject, String predicate, String object, String context,
+                       boolean hasBlankNode, boolean hasEmbeddedTriple, String validFrom) {
+            this.subject = subject;
+            this.predicate = predicate;
+            this.object = object;
+            this.context = context;
+            this.hasBlankNode = hasBlankNode;
+            this.hasEmbeddedTriple = hasEmbeddedTriple;
+            this.validFrom = validFrom;
+        }
+
+        @Override
+        public String toString() {
+            return subject + " " + predicate + " " + object;
+        }
+    }
+
+    /**
+     * The changes of one transaction within one context, stamped with the transaction's timestamp.
+     */
+    static class Segment {
+        final Literal timestamp;
+        final List<RenderedTriple> inserts = new ArrayList<>();
+        final List<RenderedTriple> deletes = new ArrayList<>();
+        // the history graph the deletes close their versions into, null to keep them in the context
+        String history;
+
+        Segment(Literal timestamp) {
+            this.timestamp = timestamp;
+        }
+
+        int size() {
+            return inserts.size() + deletes.size();
+        }
+    }
+
+    /**
+     * The update of one or more transactions that is sent after their commit. A transaction's changes are split
+     * by context, so the pipeline keeps the updates of a context in commit order while other contexts proceed.
+     */
+    class UpdateTask implements CommitPipeline.Task {
+        final long context;
+        // in commit order
+        final List<Segment> segments;
+
+        UpdateTask(long context, List<Segment> segments) {
+            this.context = context;
+            this.segments = segments;
+        }
+
+        @Override
+        public long laneKey() {
+            return context;
+        }
+
+        @Override
+        public void run() {
+            send(segments);
+        }
+
+        /**
+         * The operations of the later task are appended after the ones of this task, so the merged update
+         * still applies the transactions in commit order, each with its own timestamp.
+         */
+        @Override
+        public CommitPipeline.Task coalesce(CommitPipeline.Task later) {
+            if (!(later instanceof UpdateTask))
+                return null;
+            UpdateTask next = (UpdateTask) later;
+            if (size(segments) + size(next.segments) > MAX_COALESCED_TRIPLES)
+                return null;
+            List<Segment> merged = new ArrayList<>(segments.size() + next.segments.size());
+            merged.addAll(segments);
+            merged.addAll(next.segments);
+            return new UpdateTask(context, merged);
+        }
+    }
+
+    SparqlTimestampWriter(String postEndpoint, LiveVersions liveVersions, EntityCache entityCache, Logger logger) {
+        this(postEndpoint, liveVersions, entityCache, HistoryPartitions.none(), logger);
+    }
+
+    SparqlTimestampWriter(String postEndpoint, LiveVersions liveVersions, EntityCache entityCache,
+                          HistoryPartitions partitions, Logger logger) {
+        this.repo = new SPARQLRepository(postEndpoint);
+        this.liveVersions = liveVersions;
+        this.entityCache = entityCache;
+        this.partitions = partitions;
+        this.logger = logger;
+    }
+
+    /**
+     * Decodes the quads while the user's transaction is open and returns the per-context updates that are
+     * sent afterwards. The versions the updates will open or close are recorded in the live version index right
+     * away, so later transactions see them even while the updates are still queued.
+     */
+    @Override
+    public List<CommitPipeline.Task> write(TransactionBatch batch, PluginConnection pluginConnection) {
+        Map<Long, Segment> segments = new LinkedHashMap<>();
+        Entities entities = pluginConnection.getEntities();
+        long transactionId = batch.getTransactionId();
+        long time = batch.getTime().toInstant().toEpochMilli();
+        QuadSet inserts = batch.getInserts();
+        for (int i = 0; i < inserts.size(); i++) {
+            RenderedTriple rendered = decode(inserts, i, entities, null);
+            segment(segments, inserts.context(i), batch).inserts.add(rendered);
+            if (rendered.hasBlankNode)
+                continue;
+            long s = inserts.subject(i), p = inserts.predicate(i), o = inserts.object(i), c = inserts.context(i);
+            // the version entity the update creates on the server
+            Triple embedded = liveVersions.embeddedTriple(s, p, o, entities);
+            long triple = entities.put(embedded, Entities.Scope.DEFAULT);
+            long version = entities.put(vf.createTriple(embedded, VERS.VALID_FROM, batch.getTimestamp()), Entities.Scope.DEFAULT);
+            liveVersions.opened(transactionId, s, p, o, c, version, triple, time);
+        }
+        QuadSet deletes = batch.getDeletes();
+        for (int i = 0; i < deletes.size(); i++) {
+            long s = deletes.subject(i), p = deletes.predicate(i), o = deletes.object(i), c = deletes.context(i);
+            long version = liveVersions.find(transactionId, s, p, o, c);
+            if (version == 0) {
+                // the triple has no live version, so there is nothing to outdate
+                continue;
+            }
+            Triple versionTriple = (Triple) entityCache.get(version, entities);
+            Value validFrom = versionTriple.getObject();
+            Segment segment = segment(segments, c, batch);
+            if (segment.deletes.isEmpty() && partitions.isEnabled()) {
+                IRI history = partitions.graph(c == 0 ? null : entityCache.get(c, entities), time);
+                segment.history = history == null ? null : PluginUtils.entityToString(history);
+            }
+            segment.deletes.add(decode(deletes, i, entities, PluginUtils.entityToString(validFrom)));
+            long triple = entities.put(versionTriple.getSubject(), Entities.Scope.DEFAULT);
+            liveVersions.closed(transactionId, s, p, o, c, version, triple, time);
+        }
+        List<CommitPipeline.Task> tasks = new ArrayList<>(segments.size());
+        for (Map.Entry<Long, Segment> segment : segments.entrySet())
+            tasks.add(new UpdateTask(segment.getKey(), Collections.singletonList(segment.getValue())));
+        return tasks;
+    }
+
+    private static Segment segment(Map<Long, Segment> segments, long context, TransactionBatch batch) {
+        return segments.computeIfAbsent(context, c -> new Segment(batch.getTimestamp()));
+    }
+
+    void send(List<Segment> segments) {
+        String update = render(segments);
+        try (RepositoryConnection connection = repo.getConnection()) {
+            logger.info("Prepare timestamped update for " + size(segments) + " triples of "
+                    + segments.size() + " transactions");
+            connection.begin();
+            connection.prepareUpdate(update).execute();
+            connection.commit();
+        }
+    }
+
+    private RenderedTriple decode(QuadSet quads, int i, Entities entities, String validFrom) {
+        long s = quads.subject(i), o = quads.object(i), c = quads.context(i);
+        Value subject = entityCache.get(s, entities);
+        Value object = entityCache.get(o, entities);
+        return new RenderedTriple(entityCache.ntriples(s, entities), entityCache.ntriples(quads.predicate(i), entities),
+                entityCache.ntriples(o, entities), c == 0 ? null : entityCache.ntriples(c, entities),
+                hasBlankNode(subject) || hasBlankNode(object),
+                subject instanceof Triple || object instanceof Triple, validFrom);
+    }
+
+    String render(List<Segment> segments) {
+        StringBuilder out = BUILDERS.get();
+        try {
+            for (Segment segment : segments) {
+                appendOperations(out, segment.inserts, segment.timestamp, batchInsertTemplate,
+                        batchInsertWithContextTemplate, insertTemplate, insertWithContextTemplate);
+                appendCloses(out, segment.deletes, segment.timestamp, segment.history);
+            }
+            return out.toString();
+        } finally {
+            if (out.capacity() > MAX_POOLED_CAPACITY)
+                BUILDERS.remove();
+            else
+                out.setLength(0);
+        }
+    }
+
+    private void appendOperations(StringBuilder out, Collection<RenderedTriple> triples, Literal timestamp,
+                                  UpdateTemplate batchTemplate, UpdateTemplate batchTemplateWithContext,
+                                  UpdateTemplate template, UpdateTemplate templateWithContext) {
+        Map<String, List<RenderedTriple>> batches = new LinkedHashMap<>();
+        for (RenderedTriple t : triples) {
+            if (t.hasBlankNode) {
+                // blank nodes cannot be addressed by an update sent back to the server
+                logger.warn("Triple with blank node cannot be timestamped via SPARQL: " + t);
+            } else if (!t.hasEmbeddedTriple) {
+                batches.computeIfAbsent(t.context, c -> new ArrayList<>()).add(t);
+            } else {
+                // Embedded triples are kept out of VALUES blocks and rendered with the single triple templates
+                separate(out);
+                if (t.context == null)
+                    template.render(out, "default", t.subject, t.predicate, t.object, timestamp);
+                else
+                    templateWithContext.render(out, t.context, t.subject, t.predicate, t.object, timestamp);
+            }
+        }
+
+        for (Map.Entry<String, List<RenderedTriple>> batch : batches.entrySet()) {
+            String c = batch.getKey();
+            List<RenderedTriple> batchTriples = batch.getValue();
+            for (int from = 0; from < batchTriples.size(); from += MAX_BATCH_SIZE) {
+                UpdateTemplate.Argument rows = valuesRows(batchTriples.subList(from, Math.min(from + MAX_BATCH_SIZE, batchTriples.size())));
+                separate(out);
+                if (c == null)
+                    batchTemplate.render(out, "default", rows, timestamp);
+                else
+                    batchTemplateWithContext.render(out, c, rows, timestamp);
+            }
+        }
+    }
+
+    /**
+     * Replaces the open valid_until statement of each live version by one with the timestamp, in batches per context.
+     *
+     * @param history the graph the new statements go to, null for the context of the version
+     */
+    private void appendCloses(StringBuilder out, Collection<RenderedTriple> triples, Literal timestamp, String history) {
+        Map<String, List<RenderedTriple>> batches = new LinkedHashMap<>();
+        for (RenderedTriple t : triples) {
+            if (t.hasBlankNode)
+                logger.warn("Triple with blank node cannot be timestamped via SPARQL: " + t);
+            else
+                batches.computeIfAbsent(t.context, c -> new ArrayList<>()).add(t);
+        }
+        for (Map.Entry<String, List<RenderedTriple>> batch : batches.entrySet()) {
+            String c = batch.getKey();
+            List<RenderedTriple> batchTriples = batch.getValue();
+            for (int from = 0; from < batchTriples.size(); from += MAX_BATCH_SIZE) {
+                List<RenderedTriple> chunk = batchTriples.subList(from, Math.min(from + MAX_BATCH_SIZE, batchTriples.size()));
+                separate(out);
+                if (history != null)
+                    (c == null ? batchCloseIntoHistoryTemplate : batchCloseIntoHistoryWithContextTemplate).render(out,
+                            c == null ? "default" : c, versionRows(chunk, VERS.OPEN_END), versionRows(chunk, timestamp), history);
+                else if (c == null)
+                    batchCloseTemplate.render(out, "default", versionRows(chunk, VERS.OPEN_END), versionRows(chunk, timestamp));
+                else
+                    batchCloseWithContextTemplate.render(out, c, versionRows(chunk, VERS.OPEN_END), versionRows(chunk, timestamp));
+            }
+        }
+    }
+
+    private static UpdateTemplate.Argument versionRows(List<RenderedTriple> triples, Literal validUntil) {
+        return out -> {
+            for (RenderedTriple t : triples) {
+                out.append("        <<<<").append(t.subject).append(' ').append(t.predicate).append(' ').append(t.object)
+                        .append(">> ");
+                PluginUtils.appendEntity(VERS.VALID_FROM, out);
+                out.append(' ').append(t.validFrom).append(">> ");
+                PluginUtils.appendEntity(VERS.VALID_UNTIL, out);
+                out.append(' ');
+                PluginUtils.appendEntity(validUntil, out);
+                out.append(" .\n");
+            }
+        };
+    }
+
+    private static UpdateTemplate.Argument valuesRows(List<RenderedTriple> triples) {
+        return out -> {
+            for (RenderedTriple t : triples)
+                out.append("        (").append(t.subject).append(' ').append(t.predicate).append(' ').append(t.object).append(")\n");
+        };
+    }
+
+    private static int size(List<Segment> segments) {
+        int size = 0;
+        for (Segment segment : segments)
+            size += segment.size();
+        return size;
+    }
+
+    private static void separate(StringBuilder out) {
+        if (out.length() > 0)
+            out.append(";\n");
+    }
+
+    private static boolean hasBlankNode(Value value) {
+        if (value instanceof Triple) {
+            Triple t = (Triple) value;
+            return hasBlankNode(t.getSubject()) || hasBlankNode(t.getObject());
+        }
+        return value instanceof BNode;
+    }
+}
@@ -0,0 +1,55 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+/**
+ * Decides from a statement's entity IDs and status alone whether it is a user change that gets versioned, so the
+ * listeners skip everything else before any entity is decoded. Skipped are inferred statements, statements with
+ * one of the plugin's metadata predicates and statements outside the versioned contexts.
+ */
+class StatementFilter {
+
+    private final long[] metadataPredicates;
+    // replaced as a whole, the listeners of concurrent transactions read it without locking. Null versions all
+    private volatile LongSet versionedContexts;
+
+    /**
+     * @param metadataPredicates IDs of the predicates the plugin writes its versions with
+     * @param versionedContexts  IDs of the contexts whose statements are versioned, 0 being the default graph. Null
+     *                           versions the statements of all contexts
+     */
+    StatementFilter(long[] metadataPredicates, LongSet versionedContexts) {
+        this.metadataPredicates = metadataPredicates.clone();
+        this.versionedContexts = versionedContexts;
+    }
+
+    boolean accept(long subject, long predicate, long object, long context, boolean explicit) {
+        return explicit && !isMetadata(predicate) && isVersioned(context);
+    }
+
+    /**
+     * @return whether the predicate belongs to the plugin's own version metadata
+     */
+    boolean isMetadata(long predicate) {
+        // a handful of predicates, comparing them is cheaper than any lookup
+        for (long metadataPredicate : metadataPredicates) {
+            if (predicate == metadataPredicate)
+                return true;
+        }
+        return false;
+    }
+
+    boolean isVersioned(long context) {
+        LongSet contexts = versionedContexts;
+        return contexts == null || contexts.contains(context);
+    }
+
+    LongSet getVersionedContexts() {
+        return versionedContexts;
+    }
+
+    /**
+     * @param versionedContexts not modified afterwards, null for all contexts
+     */
+    void setVersionedContexts(LongSet versionedContexts) {
+        this.versionedContexts = versionedContexts;
+    }
+}
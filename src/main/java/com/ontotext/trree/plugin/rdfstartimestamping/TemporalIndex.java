@@ -0,0 +1,653 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.Entities;
+import com.ontotext.trree.sdk.StatementIterator;
+import com.ontotext.trree.sdk.Statements;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Triple;
+import org.eclipse.rdf4j.model.Value;
+import org.slf4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntConsumer;
+
+/**
+ * Secondary index of the versions by time, kept per context: the opened versions sorted by (valid_from, version) and
+ * the closed ones sorted by (valid_until, version), with times as epoch millis. Lookups are binary searches over these
+ * arrays, without decoding a single timestamp literal.
+ * <p>
+ * The index is updated by {@link LiveVersions} when a transaction completed and appended to a file of fixed-size
+ * records {@code kind, context, time, version}. Recording a version twice, e.g. when the journal replays a job, has
+ * no effect. If the file is missing or does not match the repository, it is rebuilt from the stored versions.
+ * <p>
+ * For {@link #overlapping} the live versions are kept apart from the closed ones, which are filed into partitions by
+ * the {@link HistoryPartitions.Period} their valid_until falls into and kept sorted by it. The live versions opened
+ * before {@code end} are found through a {@link MinTree} of their valid_from that skips the closed ones. Of the closed
+ * versions only the partitions of periods that do not end before {@code start} are looked at; in each a binary search
+ * finds those closed after {@code start}, and a tree of their valid_from those of them opened before {@code end}. A
+ * lookup visits the matching versions plus log(n) per partition, and versions closed long ago cost nothing once the
+ * history is partitioned.
+ */
+class TemporalIndex implements Closeable {
+
+    static final long OPENED = 0;
+    static final long CLOSED = 1;
+    // kind, context, time, version
+    private static final int RECORD_SIZE = 4 * 8;
+    // marks a live pair whose version was closed, versions are entity IDs or record numbers and never negative
+    private static final long DEAD = Long.MIN_VALUE;
+
+    private final File file;
+    private final HistoryPartitions partitions;
+    private final Logger logger;
+    private final Map<Long, Timeline> timelines = new HashMap<>();
+    private DataOutputStream out;
+    // set once the file missed records, it is no longer written then
+    private boolean discarded;
+    private long opened;
+    private long closed;
+
+    /**
+     * The versions of one context, the arrays hold (time, version) pairs.
+     */
+    private static class Timeline {
+        long[] opens = new long[32];
+        int openCount;
+        long[] closes = new long[32];
+        int closeCount;
+        // (valid_from, version) of the live versions, closed ones are marked DEAD until the array is compacted
+        long[] live = new long[32];
+        int liveCount;
+        int deadCount;
+        // valid_from of the live pairs, Long.MAX_VALUE for the DEAD ones
+        final MinTree liveFrom = new MinTree();
+        // valid_from of each live version, to find its pair when it is closed
+        final LongMap liveVersions = new LongMap();
+        // valid_until of the versions whose close was recorded before their opening
+        final LongMap earlyCloses = new LongMap();
+        // closed versions by the start of the period of their valid_until
+        final TreeMap<Long, Partition> history = new TreeMap<>();
+    }
+
+    /**
+     * Closed versions as (valid_until, valid_from, version) triples sorted by (valid_until, version), with a
+     * {@link MinTree} of their valid_from.
+     */
+    private static class Partition {
+        long[] versions = new long[3 * 16];
+        int count;
+        final MinTree from = new MinTree();
+
+        void add(long until, long from, long version) {
+            int position = count;
+            // versions are mostly closed in time order, so most triples are appended
+            if (count > 0 && compare(count - 1, until, version) > 0) {
+                int low = 0, high = count - 1;
+                while (low <= high) {
+                    int middle = (low + high) >>> 1;
+                    if (compare(middle, until, version) < 0)
+                        low = middle + 1;
+                    else
+                        high = middle - 1;
+                }
+                position = low;
+            }
+            if (3 * count == versions.length)
+                versions = Arrays.copyOf(versions, versions.length * 2);
+            System.arraycopy(versions, 3 * position, versions, 3 * position + 3, 3 * (count - position));
+            versions[3 * position] = until;
+            versions[3 * position + 1] = from;
+            versions[3 * position + 2] = version;
+            this.from.insert(position, count++, from);
+        }
+
+        /**
+         * Passes the versions closed after {@code start} and opened before {@code end} to the found ones.
+         */
+        void overlapping(long start, long end, Found found) {
+            int low = 0, high = count;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (versions[3 * middle] <= start)
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            from.below(low, count, end, i -> found.add(versions[3 * i + 2]));
+        }
+
+        private int compare(int index, long until, long version) {
+            int cmp = Long.compare(versions[3 * index], until);
+            return cmp != 0 ? cmp : Long.compare(versions[3 * index + 2], version);
+        }
+    }
+
+    /**
+     * Minimums of the values at the positions of an array, so the positions of a range whose value is below a bound
+     * are found in log(n) plus their number, without visiting the others.
+     */
+    private static class MinTree {
+        // the values are the leaves from nodes[leaves] on, node i is the minimum of nodes 2i and 2i + 1
+        long[] nodes = filled(64);
+        int leaves = 32;
+
+        private static long[] filled(int length) {
+            long[] nodes = new long[length];
+            Arrays.fill(nodes, Long.MAX_VALUE);
+            return nodes;
+        }
+
+        /**
+         * Inserts the value at the position, moving the {@code count - position} values after it up by one.
+         */
+        void insert(int position, int count, long value) {
+            int from = position;
+            if (count == leaves) {
+                long[] grown = filled(4 * leaves);
+                System.arraycopy(nodes, leaves, grown, 2 * leaves, leaves);
+                nodes = grown;
+                leaves *= 2;
+                from = 0;
+            }
+            System.arraycopy(nodes, leaves + position, nodes, leaves + position + 1, count - position);
+            nodes[leaves + position] = value;
+            update(from, count + 1);
+        }
+
+        void set(int position, long value) {
+            nodes[leaves + position] = value;
+            update(position, position + 1);
+        }
+
+        /**
+         * Replaces the values with the times of the pairs.
+         */
+        void reset(long[] pairs, int count, int previousCount) {
+            for (int i = 0; i < count; i++)
+                nodes[leaves + i] = pairs[2 * i];
+            Arrays.fill(nodes, leaves + count, leaves + Math.max(count, previousCount), Long.MAX_VALUE);
+            update(0, Math.max(count, previousCount));
+        }
+
+        /**
+         * Passes the positions in {@code [from, to)} whose value is below the bound to the consumer in order.
+         */
+        void below(int from, int to, long bound, IntConsumer consumer) {
+            below(1, 0, leaves, from, to, bound, consumer);
+        }
+
+        private void below(int node, int nodeFrom, int nodeTo, int from, int to, long bound, IntConsumer consumer) {
+            if (nodeTo <= from || to <= nodeFrom || nodes[node] >= bound)
+                return;
+            if (node >= leaves) {
+                consumer.accept(node - leaves);
+                return;
+            }
+            int middle = (nodeFrom + nodeTo) >>> 1;
+            below(2 * node, nodeFrom, middle, from, to, bound, consumer);
+            below(2 * node + 1, middle, nodeTo, from, to, bound, consumer);
+        }
+
+        /**
+         * Recomputes the nodes above the values in {@code [from, to)}.
+         */
+        private void update(int from, int to) {
+            for (int low = (leaves + from) >>> 1, high = (leaves + to - 1) >>> 1; low > 0; low >>>= 1, high >>>= 1) {
+                for (int node = low; node <= high; node++)
+                    nodes[node] = Math.min(nodes[2 * node], nodes[2 * node + 1]);
+            }
+        }
+    }
+
+    /**
+     * Versions found by a lookup.
+     */
+    private static class Found {
+        long[] versions = new long[16];
+        int count;
+
+        void add(long version) {
+            if (count == versions.length)
+                versions = Arrays.copyOf(versions, count * 2);
+            versions[count++] = version;
+        }
+    }
+
+    /**
+     * @param file where the index is kept, null for an index in memory only
+     */
+    TemporalIndex(File file, Logger logger) {
+        this(file, HistoryPartitions.none(), logger);
+    }
+
+    /**
+     * @param partitions the periods the closed versions are partitioned by, the versions of history graphs are filed
+     *                   under their versioned graph
+     */
+    TemporalIndex(File file, HistoryPartitions partitions, Logger logger) {
+        this.file = file;
+        this.partitions = partitions;
+        this.logger = logger;
+    }
+
+    /**
+     * Reads the index file, a torn record at its end is cut off.
+     *
+     * @return false if there is no index file to read
+     */
+    synchronized boolean load() throws IOException {
+        clear();
+        if (file == null || !file.exists())
+            return false;
+        long records = file.length() / RECORD_SIZE;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            for (long i = 0; i < records; i++)
+                add(in.readLong(), in.readLong(), in.readLong(), in.readLong());
+        } catch (EOFException e) {
+            // the file was cut while reading
+        }
+        if (records * RECORD_SIZE != file.length()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(records * RECORD_SIZE);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Indexes all versions stored in the repository and rewrites the index file.
+     *
+     * @return the number of versions
+     */
+    synchronized long rebuild(Entities entities, Statements statements) throws IOException {
+        clear();
+        long validUntil = entities.resolve(VERS.VALID_UNTIL);
+        long openEnd = entities.resolve(VERS.OPEN_END);
+        if (validUntil != 0) {
+            StatementIterator iter = statements.get(0, validUntil, 0);
+            try {
+                while (iter.next()) {
+                    Value version = entities.get(iter.subject);
+                    if (!(version instanceof Triple) || !VERS.VALID_FROM.equals(((Triple) version).getPredicate()))
+                        continue;
+                    long context = partitions.original(iter.context, entities);
+                    add(OPENED, context, millis(((Triple) version).getObject()), iter.subject);
+                    if (iter.object != openEnd)
+                        add(CLOSED, context, millis(entities.get(iter.object)), iter.subject);
+                }
+            } finally {
+                iter.close();
+            }
+        }
+        rewrite();
+        return opened;
+    }
+
+    /**
+     * Indexes all versions kept in the interval store and rewrites the index file.
+     *
+     * @return the number of versions
+     */
+    synchronized long rebuild(IntervalStore store) throws IOException {
+        clear();
+        store.forEach((record, s, p, o, c, from, until) -> {
+            add(OPENED, c, from, record);
+            if (until != IntervalStore.OPEN)
+                add(CLOSED, c, until, record);
+        });
+        rewrite();
+        return opened;
+    }
+
+    private void rewrite() throws IOException {
+        if (file != null) {
+            closeOutput();
+            File temporary = new File(file.getPath() + ".tmp");
+            try (DataOutputStream rewritten = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+                for (Map.Entry<Long, Timeline> timeline : timelines.entrySet()) {
+                    Timeline t = timeline.getValue();
+                    for (int i = 0; i < t.openCount; i++)
+                        write(rewritten, OPENED, timeline.getKey(), t.opens[2 * i], t.opens[2 * i + 1]);
+                    for (int i = 0; i < t.closeCount; i++)
+                        write(rewritten, CLOSED, timeline.getKey(), t.closes[2 * i], t.closes[2 * i + 1]);
+                }
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            discarded = false;
+        }
+    }
+
+    /**
+     * Records an opened or closed version, see {@link #flush}.
+     */
+    synchronized void record(long kind, long context, long time, long version) {
+        if (!add(kind, context, time, version) || file == null || discarded)
+            return;
+        try {
+            if (out == null)
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            write(out, kind, context, time, version);
+        } catch (IOException e) {
+            discard(e);
+        }
+    }
+
+    /**
+     * Hands the recorded versions to the file system.
+     */
+    synchronized void flush() {
+        if (out == null)
+            return;
+        try {
+            out.flush();
+        } catch (IOException e) {
+            discard(e);
+        }
+    }
+
+    /**
+     * @return the versions of the context valid at some time in {@code [start, end)}
+     */
+    synchronized long[] overlapping(long context, long start, long end) {
+        Timeline timeline = timelines.get(context);
+        if (timeline == null)
+            return new long[0];
+        Found found = new Found();
+        long[] live = timeline.live;
+        timeline.liveFrom.below(0, timeline.liveCount, end, i -> found.add(live[2 * i + 1]));
+        // the partitions of periods that ended at or before start only hold versions closed by then
+        for (Partition partition : timeline.history.tailMap(partitions.getPeriod().start(start), true).values())
+            partition.overlapping(start, end, found);
+        return Arrays.copyOf(found.versions, found.count);
+    }
+
+    /**
+     * @param kind {@link #OPENED} or {@link #CLOSED}
+     * @return the versions of the context opened or closed exactly at the time
+     */
+    synchronized long[] at(long kind, long context, long time) {
+        Timeline timeline = timelines.get(context);
+        if (timeline == null)
+            return new long[0];
+        long[] pairs = kind == OPENED ? timeline.opens : timeline.closes;
+        int count = kind == OPENED ? timeline.openCount : timeline.closeCount;
+        int from = upperBound(pairs, count, time - 1);
+        int to = upperBound(pairs, count, time);
+        long[] versions = new long[to - from];
+        for (int i = from; i < to; i++)
+            versions[i - from] = pairs[2 * i + 1];
+        return versions;
+    }
+
+    /**
+     * @return {@code version, kind} pairs of the versions of the context opened or closed in {@code (after, until]},
+     * the opened ones first
+     */
+    synchronized long[] changes(long context, long after, long until) {
+        Timeline timeline = timelines.get(context);
+        if (timeline == null)
+            return new long[0];
+        int opensFrom = upperBound(timeline.opens, timeline.openCount, after);
+        int opensTo = upperBound(timeline.opens, timeline.openCount, until);
+        int closesFrom = upperBound(timeline.closes, timeline.closeCount, after);
+        int closesTo = upperBound(timeline.closes, timeline.closeCount, until);
+        long[] changes = new long[2 * (opensTo - opensFrom + closesTo - closesFrom)];
+        int count = 0;
+        for (int i = opensFrom; i < opensTo; i++) {
+            changes[count++] = timeline.opens[2 * i + 1];
+            changes[count++] = OPENED;
+        }
+        for (int i = closesFrom; i < closesTo; i++) {
+            changes[count++] = timeline.closes[2 * i + 1];
+            changes[count++] = CLOSED;
+        }
+        return changes;
+    }
+
+    /**
+     * @return the number of versions of the context opened or closed in {@code (after, until]}
+     */
+    synchronized long changeCount(long context, long after, long until) {
+        Timeline timeline = timelines.get(context);
+        if (timeline == null)
+            return 0;
+        return upperBound(timeline.opens, timeline.openCount, until) - upperBound(timeline.opens, timeline.openCount, after)
+                + upperBound(timeline.closes, timeline.closeCount, until) - upperBound(timeline.closes, timeline.closeCount, after);
+    }
+
+    /**
+     * @return the contexts with versions
+     */
+    synchronized long[] contexts() {
+        long[] contexts = new long[timelines.size()];
+        int i = 0;
+        for (long context : timelines.keySet())
+            contexts[i++] = context;
+        return contexts;
+    }
+
+    /**
+     * @return the number of versions opened before {@code end}, which bounds the result of {@link #overlapping}
+     */
+    synchronized long estimate(long context, long end) {
+        Timeline timeline = timelines.get(context);
+        return timeline == null ? 0 : upperBound(timeline.opens, timeline.openCount, end - 1);
+    }
+
+    /**
+     * @return the number of versions that are not closed
+     */
+    synchronized long live() {
+        return opened - closed;
+    }
+
+    synchronized long size() {
+        return opened;
+    }
+
+    /**
+     * @return the number of partitions the closed versions of all contexts are filed into
+     */
+    synchronized int historyPartitions() {
+        int count = 0;
+        for (Timeline timeline : timelines.values())
+            count += timeline.history.size();
+        return count;
+    }
+
+    @Override
+    public synchronized void close() {
+        closeOutput();
+    }
+
+    /**
+     * @return the epoch millis of an {@code xsd:dateTime} literal
+     */
+    static long millis(Value value) {
+        if (!(value instanceof Literal))
+            throw new IllegalArgumentException("Not a timestamp: " + value);
+        return ((Literal) value).calendarValue().toGregorianCalendar().getTimeInMillis();
+    }
+
+    private boolean add(long kind, long context, long time, long version) {
+        Timeline timeline = timelines.computeIfAbsent(context, c -> new Timeline());
+        if (kind == OPENED) {
+            int position = insertionPoint(timeline.opens, timeline.openCount, time, version);
+            if (position < 0)
+                return false;
+            timeline.opens = insert(timeline.opens, timeline.openCount++, position, time, version);
+            opened++;
+            if (timeline.earlyCloses.containsKey(version)) {
+                long until = timeline.earlyCloses.get(version, 0);
+                timeline.earlyCloses.remove(version);
+                partition(timeline, until).add(until, time, version);
+            } else {
+                int livePosition = insertionPoint(timeline.live, timeline.liveCount, time, version);
+                timeline.liveFrom.insert(livePosition, timeline.liveCount, time);
+                timeline.live = insert(timeline.live, timeline.liveCount++, livePosition, time, version);
+                timeline.liveVersions.put(version, time);
+            }
+        } else {
+            int position = insertionPoint(timeline.closes, timeline.closeCount, time, version);
+            if (position < 0)
+                return false;
+            timeline.closes = insert(timeline.closes, timeline.closeCount++, position, time, version);
+            closed++;
+            if (timeline.liveVersions.containsKey(version)) {
+                long from = timeline.liveVersions.get(version, 0);
+                timeline.liveVersions.remove(version);
+                int livePosition = find(timeline.live, timeline.liveCount, from, version);
+                timeline.live[2 * livePosition + 1] |= DEAD;
+                timeline.liveFrom.set(livePosition, Long.MAX_VALUE);
+                if (++timeline.deadCount > 16 && timeline.deadCount > timeline.liveCount / 2)
+                    compact(timeline);
+                partition(timeline, time).add(time, from, version);
+            } else {
+                // a transaction that closes a version may complete before the one that opened it recorded it
+                timeline.earlyCloses.put(version, time);
+            }
+        }
+        return true;
+    }
+
+    private Partition partition(Timeline timeline, long until) {
+        return timeline.history.computeIfAbsent(partitions.getPeriod().start(until), start -> new Partition());
+    }
+
+    /**
+     * Drops the pairs of closed versions from the live ones.
+     */
+    private static void compact(Timeline timeline) {
+        int count = 0;
+        for (int i = 0; i < timeline.liveCount; i++) {
+            if (timeline.live[2 * i + 1] < 0)
+                continue;
+            timeline.live[2 * count] = timeline.live[2 * i];
+            timeline.live[2 * count + 1] = timeline.live[2 * i + 1];
+            count++;
+        }
+        timeline.liveFrom.reset(timeline.live, count, timeline.liveCount);
+        timeline.liveCount = count;
+        timeline.deadCount = 0;
+    }
+
+    /**
+     * @return the index of the pair, which must be there
+     */
+    private static int find(long[] pairs, int count, long time, long version) {
+        int low = 0, high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int cmp = compare(pairs, middle, time, version);
+            if (cmp < 0)
+                low = middle + 1;
+            else if (cmp > 0)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        throw new IllegalStateException("Version " + version + " is not indexed");
+    }
+
+    /**
+     * @return where the pair goes to keep the pairs sorted, -1 if it is there already
+     */
+    private static int insertionPoint(long[] pairs, int count, long time, long version) {
+        // versions are mostly recorded in time order, so most pairs are appended
+        if (count == 0 || compare(pairs, count - 1, time, version) < 0)
+            return count;
+        int low = 0, high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int cmp = compare(pairs, middle, time, version);
+            if (cmp < 0)
+                low = middle + 1;
+            else if (cmp > 0)
+                high = middle - 1;
+            else
+                return -1;
+        }
+        return low;
+    }
+
+    private static int compare(long[] pairs, int index, long time, long version) {
+        int cmp = Long.compare(pairs[2 * index], time);
+        // the pairs of closed live versions keep their place
+        return cmp != 0 ? cmp : Long.compare(pairs[2 * index + 1] & ~DEAD, version);
+    }
+
+    private static long[] insert(long[] pairs, int count, int position, long time, long version) {
+        if (2 * count == pairs.length)
+            pairs = Arrays.copyOf(pairs, pairs.length * 2);
+        System.arraycopy(pairs, 2 * position, pairs, 2 * position + 2, 2 * (count - position));
+        pairs[2 * position] = time;
+        pairs[2 * position + 1] = version;
+        return pairs;
+    }
+
+    /**
+     * @return the number of pairs with a time up to and including {@code time}
+     */
+    private static int upperBound(long[] pairs, int count, long time) {
+        int low = 0, high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (pairs[2 * middle] <= time)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    private static void write(DataOutputStream out, long kind, long context, long time, long version) throws IOException {
+        out.writeLong(kind);
+        out.writeLong(context);
+        out.writeLong(time);
+        out.writeLong(version);
+    }
+
+    /**
+     * Deletes an index file that lacks records, so it is rebuilt on restart. The index in memory stays complete.
+     */
+    private void discard(IOException e) {
+        logger.error("Temporal index " + file + " cannot be written, it is rebuilt on restart", e);
+        closeOutput();
+        discarded = true;
+        if (!file.delete())
+            logger.error("Temporal index " + file + " cannot be deleted");
+    }
+
+    private void clear() {
+        timelines.clear();
+        opened = 0;
+        closed = 0;
+    }
+
+    private void closeOutput() {
+        if (out == null)
+            return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            logger.error("Closing the temporal index " + file + " failed", e);
+        }
+        out = null;
+    }
+}
@@ -0,0 +1,162 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Triple;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.query.algebra.Join;
+import org.eclipse.rdf4j.query.algebra.StatementPattern;
+import org.eclipse.rdf4j.query.algebra.TripleRef;
+import org.eclipse.rdf4j.query.algebra.TupleExpr;
+import org.eclipse.rdf4j.query.algebra.UnaryTupleOperator;
+import org.eclipse.rdf4j.query.algebra.Var;
+import org.eclipse.rdf4j.query.algebra.helpers.AbstractQueryModelVisitor;
+import org.eclipse.rdf4j.query.algebra.helpers.StatementPatternCollector;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rewrites a query so that its statement patterns over versioned graphs are evaluated against the snapshot at an
+ * instant. The instant is given by binding {@value #BINDING} to an {@code xsd:dateTime} with the query, e.g. as
+ * {@code $vers_asOf} parameter of the SPARQL endpoint. Each pattern {@code ?s ?p ?o} becomes
+ * <pre>
+ * ?t vers:asOf "instant" . BIND(&lt;&lt;?s ?p ?o&gt;&gt; AS ?t)
+ * </pre>
+ * in the graph of the pattern, so the {@link TemporalIndex} finds the triples valid at that instant. Patterns on the
+ * plugin's own vocabulary or on versions themselves are left alone.
+ * <p>
+ * Rewritten plans are cached by the query's algebra, which does not include the instant, so repeating a historical
+ * query only copies the cached plan and fills in the instant.
+ */
+class TimeTravelRewriter {
+
+    static final String BINDING = "vers_asOf";
+    private static final String TRIPLE_VAR = "_vers_triple_";
+
+    private final VersionedContexts versionedContexts;
+    private final int capacity;
+    private final Map<String, TupleExpr> plans;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param capacity number of rewritten plans kept, 0 disables the cache
+     */
+    TimeTravelRewriter(VersionedContexts versionedContexts, int capacity) {
+        this.versionedContexts = versionedContexts;
+        this.capacity = capacity;
+        this.plans = new LinkedHashMap<String, TupleExpr>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TupleExpr> eldest) {
+                return size() > TimeTravelRewriter.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Rewrites the query in place.
+     *
+     * @param root    the query's root, the plan below it is replaced
+     * @param instant the {@code xsd:dateTime} to evaluate the query at
+     * @return false if no pattern had to be rewritten
+     */
+    boolean rewrite(TupleExpr root, Literal instant) {
+        TemporalIndex.millis(instant);
+        if (!(root instanceof UnaryTupleOperator) || capacity == 0)
+            return rewritePatterns(root, instant);
+        UnaryTupleOperator operator = (UnaryTupleOperator) root;
+        String shape = operator.getArg().toString();
+        TupleExpr cached;
+        synchronized (plans) {
+            cached = plans.get(shape);
+        }
+        if (cached != null) {
+            hits.increment();
+            TupleExpr plan = cached.clone();
+            setInstant(plan, instant);
+            operator.setArg(plan);
+            return true;
+        }
+        misses.increment();
+        if (!rewritePatterns(operator.getArg(), instant))
+            return false;
+        TupleExpr plan = operator.getArg().clone();
+        synchronized (plans) {
+            plans.put(shape, plan);
+        }
+        return true;
+    }
+
+    /**
+     * Drops the cached plans, e.g. once the versioned graphs changed.
+     */
+    void clear() {
+        synchronized (plans) {
+            plans.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        int size;
+        synchronized (plans) {
+            size = plans.size();
+        }
+        return "Time travel plans: " + size + " cached, " + hits.sum() + " hits, " + misses.sum() + " misses";
+    }
+
+    private boolean rewritePatterns(TupleExpr expr, Literal instant) {
+        List<StatementPattern> patterns = new ArrayList<>(StatementPatternCollector.process(expr));
+        int rewritten = 0;
+        for (StatementPattern pattern : patterns) {
+            if (!isVersioned(pattern))
+                continue;
+            Var triple = new Var(TRIPLE_VAR + rewritten++);
+            triple.setAnonymous(true);
+            Var asOf = new Var("_const_" + VERS.AS_OF.getLocalName(), VERS.AS_OF);
+            asOf.setConstant(true);
+            asOf.setAnonymous(true);
+            Var time = new Var(BINDING, instant);
+            time.setAnonymous(true);
+            StatementPattern snapshot = new StatementPattern(pattern.getScope(), triple, asOf, time,
+                    pattern.getContextVar() == null ? null : pattern.getContextVar().clone());
+            TripleRef components = new TripleRef();
+            components.setSubjectVar(pattern.getSubjectVar().clone());
+            components.setPredicateVar(pattern.getPredicateVar().clone());
+            components.setObjectVar(pattern.getObjectVar().clone());
+            components.setExprVar(triple.clone());
+            pattern.replaceWith(new Join(snapshot, components));
+        }
+        return rewritten > 0;
+    }
+
+    private boolean isVersioned(StatementPattern pattern) {
+        Value predicate = pattern.getPredicateVar().getValue();
+        if (predicate != null && predicate.stringValue().startsWith(VERS.NAMESPACE))
+            return false;
+        Value subject = pattern.getSubjectVar().getValue();
+        if (subject instanceof Triple)
+            return false;
+        Var context = pattern.getContextVar();
+        if (context == null || context.getValue() == null || versionedContexts.isAll())
+            return true;
+        try {
+            return versionedContexts.getGraphs().contains(VersionedContexts.name(context.getValue()));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static void setInstant(TupleExpr plan, Literal instant) {
+        plan.visit(new AbstractQueryModelVisitor<RuntimeException>() {
+            @Override
+            public void meet(Var var) {
+                if (BINDING.equals(var.getName()))
+                    var.setValue(instant);
+            }
+        });
+    }
+}
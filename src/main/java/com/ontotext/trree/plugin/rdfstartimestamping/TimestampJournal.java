@@ -0,0 +1,356 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, memory-mapped journal of the timestamp jobs that were committed by a user transaction but not yet
+ * written back. A job is the {@link TransactionBatch} of a transaction, stored as entity IDs with an op code per
+ * quad; it is followed by a done record once all its updates went through. Jobs without a done record are handed
+ * back by {@link #open} after a crash or restart.
+ * <p>
+ * Layout: a header (magic, format version, generation) followed by records of {@code length, crc, generation,
+ * type, job ID, transaction ID, epoch millis, offset seconds, quad count, count * (op, s, p, o, c)}. When no job is pending the journal starts
+ * over at the beginning with the next generation, so records of earlier generations are ignored. A torn record at
+ * the end (bad length or checksum) ends the replay.
+ * <p>
+ * Under sustained load, or with a job that failed and waits for the next restart, some job is always pending. So
+ * once the records of completed jobs take at least half of the journal and its initial size, the pending jobs are
+ * copied into a file of the next generation that replaces the journal.
+ * <p>
+ * Durability uses group commit: {@link #sync} forces the mapped file once for all records appended so far, so
+ * concurrently committing transactions share one flush.
+ */
+class TimestampJournal implements Closeable {
+
+    private static final int MAGIC = 0x52535453;
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+    // generation, type, job ID, transaction ID, epoch millis, offset seconds, quad count
+    private static final int RECORD_FIXED_SIZE = 8 + 1 + 8 + 8 + 8 + 4 + 4;
+    private static final int QUAD_SIZE = 1 + 4 * 8;
+    private static final byte TYPE_JOB = 1;
+    private static final byte TYPE_DONE = 2;
+    private static final byte OP_INSERT = 1;
+    private static final byte OP_DELETE = 2;
+    static final int DEFAULT_INITIAL_SIZE = 1 << 20;
+
+    private final File file;
+    private final int initialSize;
+    private final Logger logger;
+    private final Object flushLock = new Object();
+    private final CRC32 crc = new CRC32();
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long generation;
+    private int position;
+    private long nextJobId;
+    // position of the record of each pending job, in journal order
+    private final Map<Long, Integer> pendingJobs = new LinkedHashMap<>();
+    // size of those records
+    private long pendingBytes;
+    // number of changes made to the mapped file, and how many of them are known to be on disk
+    private long changes;
+    private volatile long durableChanges;
+
+    private TimestampJournal(File file, int initialSize, Logger logger) throws IOException {
+        this.file = file;
+        this.initialSize = initialSize;
+        this.logger = logger;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(initialSize, Math.max(HEADER_SIZE, (int) channel.size())));
+    }
+
+    /**
+     * Opens or creates the journal file.
+     *
+     * @param pending receives the jobs that were journaled but never completed by job ID, in journal order
+     */
+    static TimestampJournal open(File file, int initialSize, Map<Long, TransactionBatch> pending, Logger logger) throws IOException {
+        TimestampJournal journal = new TimestampJournal(file, initialSize, logger);
+        try {
+            journal.recover(pending);
+        } catch (IOException | RuntimeException e) {
+            journal.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    private void recover(Map<Long, TransactionBatch> pending) throws IOException {
+        if (buffer.getInt(0) != MAGIC) {
+            generation = 0;
+            startGeneration(1);
+            return;
+        }
+        if (buffer.getInt(4) != FORMAT_VERSION)
+            throw new IOException("Unsupported journal format " + buffer.getInt(4) + " in " + file);
+        generation = buffer.getLong(8);
+
+        Map<Long, TransactionBatch> jobs = new LinkedHashMap<>();
+        Map<Long, Integer> positions = new LinkedHashMap<>();
+        int pos = HEADER_SIZE;
+        while (pos + RECORD_HEADER_SIZE + RECORD_FIXED_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(pos);
+            if (length < RECORD_FIXED_SIZE || pos + RECORD_HEADER_SIZE + length > buffer.capacity())
+                break;
+            if (checksum(buffer, pos + RECORD_HEADER_SIZE, length) != buffer.getInt(pos + 4))
+                break;
+            int body = pos + RECORD_HEADER_SIZE;
+            if (buffer.getLong(body) != generation)
+                break;
+            byte type = buffer.get(body + 8);
+            long jobId = buffer.getLong(body + 9);
+            long transactionId = buffer.getLong(body + 17);
+            OffsetDateTime time = OffsetDateTime.ofInstant(Instant.ofEpochMilli(buffer.getLong(body + 25)),
+                    ZoneOffset.ofTotalSeconds(buffer.getInt(body + 33)));
+            int count = buffer.getInt(body + 37);
+            if (type == TYPE_JOB) {
+                QuadSet inserts = new QuadSet(), deletes = new QuadSet();
+                int quad = body + RECORD_FIXED_SIZE;
+                for (int i = 0; i < count; i++, quad += QUAD_SIZE) {
+                    QuadSet target = buffer.get(quad) == OP_INSERT ? inserts : deletes;
+                    target.add(buffer.getLong(quad + 1), buffer.getLong(quad + 9), buffer.getLong(quad + 17), buffer.getLong(quad + 25));
+                }
+                jobs.put(jobId, new TransactionBatch(transactionId, time, inserts, deletes));
+                positions.put(jobId, pos);
+            } else if (type == TYPE_DONE) {
+                jobs.remove(jobId);
+                positions.remove(jobId);
+            }
+            nextJobId = Math.max(nextJobId, jobId + 1);
+            pos += RECORD_HEADER_SIZE + length;
+        }
+        position = pos;
+        // whatever follows is a torn record or an earlier generation, it is overwritten by the next append
+        pendingJobs.putAll(positions);
+        for (int record : positions.values())
+            pendingBytes += RECORD_HEADER_SIZE + buffer.getInt(record);
+        pending.putAll(jobs);
+        if (jobs.isEmpty())
+            startGeneration(generation + 1);
+        logger.info("Timestamp journal " + file + " opened with " + jobs.size() + " unfinished jobs");
+    }
+
+    /**
+     * Appends the batch as a new job. The record is durable once {@link #sync} returned.
+     *
+     * @return the job ID
+     */
+    synchronized long append(TransactionBatch batch) throws IOException {
+        QuadSet inserts = batch.getInserts(), deletes = batch.getDeletes();
+        int count = inserts.size() + deletes.size();
+        long jobId = nextJobId++;
+        if (position + RECORD_HEADER_SIZE + RECORD_FIXED_SIZE + (long) count * QUAD_SIZE + RECORD_HEADER_SIZE > buffer.capacity()
+                && completedBytes() >= position / 2) {
+            // room the completed jobs take is reused before the journal grows
+            compact();
+        }
+        int body = beginRecord(TYPE_JOB, jobId, batch.getTransactionId(), batch.getTime(), count);
+        int quad = body + RECORD_FIXED_SIZE;
+        for (int i = 0; i < inserts.size(); i++, quad += QUAD_SIZE)
+            putQuad(quad, OP_INSERT, inserts, i);
+        for (int i = 0; i < deletes.size(); i++, quad += QUAD_SIZE)
+            putQuad(quad, OP_DELETE, deletes, i);
+        endRecord(body, RECORD_FIXED_SIZE + count * QUAD_SIZE);
+        pendingJobs.put(jobId, body - RECORD_HEADER_SIZE);
+        pendingBytes += RECORD_HEADER_SIZE + RECORD_FIXED_SIZE + count * QUAD_SIZE;
+        return jobId;
+    }
+
+    /**
+     * Marks the job as written back. Once no job is pending the journal starts over, once the completed jobs take
+     * most of it the pending ones are compacted.
+     */
+    synchronized void complete(long jobId) throws IOException {
+        Integer record = pendingJobs.remove(jobId);
+        if (record == null)
+            return;
+        pendingBytes -= RECORD_HEADER_SIZE + buffer.getInt(record);
+        if (pendingJobs.isEmpty()) {
+            startGeneration(generation + 1);
+        } else if (completedBytes() >= Math.max(initialSize, position / 2)) {
+            compact();
+        } else {
+            int body = beginRecord(TYPE_DONE, jobId, 0, null, 0);
+            endRecord(body, RECORD_FIXED_SIZE);
+        }
+    }
+
+    /**
+     * @return the size of the records of completed jobs and of the done records
+     */
+    private long completedBytes() {
+        return position - HEADER_SIZE - pendingBytes;
+    }
+
+    /**
+     * Copies the records of the pending jobs into a file of the next generation, which then replaces the journal.
+     * The done records are left behind, a crash before the replacement leaves the journal as it was.
+     */
+    private void compact() throws IOException {
+        long next = generation + 1;
+        long size = HEADER_SIZE + pendingBytes + RECORD_HEADER_SIZE;
+        File compacted = new File(file.getPath() + ".next");
+        Map<Long, Integer> positions = new LinkedHashMap<>();
+        int pos = HEADER_SIZE;
+        try (RandomAccessFile out = new RandomAccessFile(compacted, "rw")) {
+            out.setLength(0);
+            MappedByteBuffer target = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.min(Math.max(initialSize, 2 * size), Integer.MAX_VALUE));
+            target.putInt(0, MAGIC);
+            target.putInt(4, FORMAT_VERSION);
+            target.putLong(8, next);
+            for (Map.Entry<Long, Integer> job : pendingJobs.entrySet()) {
+                int record = job.getValue(), length = buffer.getInt(record);
+                ByteBuffer source = buffer.duplicate();
+                source.limit(record + RECORD_HEADER_SIZE + length);
+                source.position(record);
+                target.position(pos);
+                target.put(source);
+                target.putLong(pos + RECORD_HEADER_SIZE, next);
+                target.putInt(pos + 4, checksum(target, pos + RECORD_HEADER_SIZE, length));
+                positions.put(job.getKey(), pos);
+                pos += RECORD_HEADER_SIZE + length;
+            }
+            target.putInt(pos, 0);
+            target.force();
+        }
+        channel.close();
+        raf.close();
+        Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        logger.info("Compacted the timestamp journal from " + position + " to " + pos + " bytes with "
+                + pendingJobs.size() + " pending jobs");
+        generation = next;
+        position = pos;
+        pendingJobs.clear();
+        pendingJobs.putAll(positions);
+        changes++;
+    }
+
+    /**
+     * Forces everything appended so far to disk. Callers arriving while a flush is running wait for it and are
+     * usually covered by the next one, so one flush serves a whole group of commits.
+     */
+    void sync() {
+        long target;
+        synchronized (this) {
+            target = changes;
+        }
+        if (durableChanges >= target)
+            return;
+        synchronized (flushLock) {
+            if (durableChanges >= target)
+                return;
+            MappedByteBuffer toForce;
+            long covered;
+            synchronized (this) {
+                toForce = buffer;
+                covered = changes;
+            }
+            toForce.force();
+            durableChanges = covered;
+        }
+    }
+
+    synchronized int pendingJobs() {
+        return pendingJobs.size();
+    }
+
+    synchronized int size() {
+        return position;
+    }
+
+    private void putQuad(int offset, byte op, QuadSet quads, int i) {
+        buffer.put(offset, op);
+        buffer.putLong(offset + 1, quads.subject(i));
+        buffer.putLong(offset + 9, quads.predicate(i));
+        buffer.putLong(offset + 17, quads.object(i));
+        buffer.putLong(offset + 25, quads.context(i));
+    }
+
+    private int beginRecord(byte type, long jobId, long transactionId, OffsetDateTime time, int count) throws IOException {
+        ensureCapacity(position + RECORD_HEADER_SIZE + RECORD_FIXED_SIZE + (long) count * QUAD_SIZE + RECORD_HEADER_SIZE);
+        int body = position + RECORD_HEADER_SIZE;
+        buffer.putLong(body, generation);
+        buffer.put(body + 8, type);
+        buffer.putLong(body + 9, jobId);
+        buffer.putLong(body + 17, transactionId);
+        buffer.putLong(body + 25, time == null ? 0 : time.toInstant().toEpochMilli());
+        buffer.putInt(body + 33, time == null ? 0 : time.getOffset().getTotalSeconds());
+        buffer.putInt(body + 37, count);
+        return body;
+    }
+
+    private void endRecord(int body, int length) {
+        buffer.putInt(body - 4, checksum(buffer, body, length));
+        // the length is written last, and the next slot is cleared so a replay stops right after this record
+        buffer.putInt(body + length, 0);
+        buffer.putInt(body - RECORD_HEADER_SIZE, length);
+        position = body + length;
+        changes++;
+    }
+
+    private void startGeneration(long next) {
+        generation = next;
+        buffer.putInt(HEADER_SIZE, 0);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, FORMAT_VERSION);
+        buffer.putLong(8, generation);
+        position = HEADER_SIZE;
+        changes++;
+    }
+
+    private void ensureCapacity(long required) throws IOException {
+        if (required <= buffer.capacity())
+            return;
+        if (required > Integer.MAX_VALUE)
+            throw new IOException("Timestamp job of " + required + " bytes does not fit into the journal");
+        long capacity = buffer.capacity();
+        while (capacity < required)
+            capacity *= 2;
+        buffer.force();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(capacity, Integer.MAX_VALUE));
+    }
+
+    private int checksum(ByteBuffer records, int offset, int length) {
+        ByteBuffer range = records.duplicate();
+        range.limit(offset + length);
+        range.position(offset);
+        crc.reset();
+        crc.update(range);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            buffer.force();
+        } finally {
+            channel.close();
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.PluginConnection;
+
+import java.util.List;
+
+/**
+ * Turns the triples a user inserted or deleted into timestamped (double-nested) triples.
+ */
+interface TimestampWriter {
+
+    /**
+     * Called on the committing thread while the user's transaction is still open.
+     *
+     * @param batch the changes of the committing transaction
+     * @param pluginConnection connection of the user's transaction
+     * @return the parts of the write that have to run after the user's commit, empty if everything is written
+     */
+    List<CommitPipeline.Task> write(TransactionBatch batch, PluginConnection pluginConnection);
+}
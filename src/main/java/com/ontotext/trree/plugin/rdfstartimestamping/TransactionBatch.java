@@ -0,0 +1,66 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.eclipse.rdf4j.model.Literal;
+
+import java.time.OffsetDateTime;
+
+/**
+ * The changes of one committed user transaction, handed from the committing thread to the {@link TimestampWriter}.
+ * The batch takes over the quad sets it is built from; they are not modified afterwards. All versions the
+ * transaction opens or closes share the batch's timestamp.
+ */
+final class TransactionBatch {
+
+    private final long transactionId;
+    private final OffsetDateTime time;
+    private final Literal timestamp;
+    private final QuadSet inserts;
+    private final QuadSet deletes;
+
+    TransactionBatch(long transactionId, OffsetDateTime time, QuadSet inserts, QuadSet deletes) {
+        this.transactionId = transactionId;
+        this.time = time;
+        this.timestamp = VERS.timestamp(time);
+        this.inserts = inserts;
+        this.deletes = deletes;
+    }
+
+    long getTransactionId() {
+        return transactionId;
+    }
+
+    OffsetDateTime getTime() {
+        return time;
+    }
+
+    /**
+     * @return the transaction's time as xsd:dateTime literal
+     */
+    Literal getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return entity ID quads to be replaced by a new version that is valid from now on
+     */
+    QuadSet getInserts() {
+        return inserts;
+    }
+
+    /**
+     * @return entity ID quads whose live version is to be outdated
+     */
+    QuadSet getDeletes() {
+        return deletes;
+    }
+
+    boolean isEmpty() {
+        return inserts.isEmpty() && deletes.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "transaction " + transactionId + " at " + timestamp.getLabel() + ": " + inserts.size() + " inserts, "
+                + deletes.size() + " deletes";
+    }
+}
@@ -0,0 +1,100 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.eclipse.rdf4j.model.Value;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An update template resource, compiled once into literal text segments and argument slots. Templates use
+ * the {@link java.text.MessageFormat} syntax: {n} is replaced by the n-th argument, text within single quotes
+ * is taken literally and '' stands for a single quote. Rendering appends straight into the caller's builder
+ * without any resource I/O or pattern parsing.
+ */
+class UpdateTemplate {
+
+    /**
+     * An argument that writes itself into the rendered update, e.g. the rows of a VALUES block.
+     */
+    interface Argument {
+        void appendTo(StringBuilder out);
+    }
+
+    private final String name;
+    private final String[] segments;
+    // argument index rendered after segments[i], -1 after the last segment
+    private final int[] arguments;
+
+    private UpdateTemplate(String name, String[] segments, int[] arguments) {
+        this.name = name;
+        this.segments = segments;
+        this.arguments = arguments;
+    }
+
+    static UpdateTemplate load(String resourceName) {
+        return compile(resourceName, PluginUtils.readAllBytes(resourceName));
+    }
+
+    static UpdateTemplate compile(String name, String pattern) {
+        List<String> segments = new ArrayList<>();
+        List<Integer> arguments = new ArrayList<>();
+        StringBuilder segment = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            char ch = pattern.charAt(i);
+            if (ch == '\'') {
+                if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '\'') {
+                    segment.append('\'');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (ch == '{' && !quoted) {
+                int end = pattern.indexOf('}', i);
+                if (end < 0)
+                    throw new IllegalArgumentException("Unmatched braces in template " + name);
+                int argument;
+                try {
+                    argument = Integer.parseInt(pattern.substring(i + 1, end).trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Only plain argument indices are supported in template " + name, e);
+                }
+                segments.add(segment.toString());
+                arguments.add(argument);
+                segment.setLength(0);
+                i = end;
+            } else {
+                segment.append(ch);
+            }
+        }
+        segments.add(segment.toString());
+        arguments.add(-1);
+        return new UpdateTemplate(name, segments.toArray(new String[0]),
+                arguments.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    /**
+     * Appends the template with its arguments. {@link Value} arguments are written in their N-Triples(-star)
+     * form, {@link Argument}s write themselves and everything else is appended with its string form.
+     */
+    StringBuilder render(StringBuilder out, Object... args) {
+        for (int i = 0; i < segments.length; i++) {
+            out.append(segments[i]);
+            int argument = arguments[i];
+            if (argument < 0)
+                continue;
+            Object arg = args[argument];
+            if (arg instanceof Value)
+                PluginUtils.appendEntity((Value) arg, out);
+            else if (arg instanceof Argument)
+                ((Argument) arg).appendTo(out);
+            else
+                out.append(arg);
+        }
+        return out;
+    }
+
+    String getName() {
+        return name;
+    }
+}
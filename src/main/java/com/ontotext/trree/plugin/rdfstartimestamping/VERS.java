@@ -0,0 +1,91 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.XSD;
+
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Vocabulary of the versioning metadata written by the plugin.
+ */
+final class VERS {
+
+    static final String NAMESPACE = "http://example.com/metadata/versioning#";
+
+    static final IRI VALID_FROM;
+
+    static final IRI VALID_UNTIL;
+
+    /**
+     * The valid_until value of a version that has not been outdated yet.
+     */
+    static final Literal OPEN_END;
+
+    /**
+     * Control predicate: inserting {@code [] vers:bulkLoad "file.nq"} streams the file in as versions
+     * instead of storing the statement.
+     */
+    static final IRI BULK_LOAD;
+
+    /**
+     * Control predicate: inserting {@code <graph> vers:versioned true} starts versioning the graph, deleting it stops.
+     * {@code rdf4j:nil} stands for the default graph.
+     */
+    static final IRI VERSIONED;
+
+    /**
+     * Virtual predicate: {@code ?triple vers:asOf "2022-03-28T12:00:00Z"^^xsd:dateTime} binds the embedded triples
+     * whose version was valid at that time.
+     */
+    static final IRI AS_OF;
+
+    /**
+     * Virtual predicate: {@code ?triple vers:during "2022-03-01T00:00:00Z/2022-04-01T00:00:00Z"} binds the embedded
+     * triples whose version was valid at some time in the ISO 8601 interval, the end being excluded.
+     */
+    static final IRI DURING;
+
+    /**
+     * Virtual predicate: {@code ?triple vers:live true} binds or checks the embedded triples that are live now.
+     */
+    static final IRI LIVE;
+
+    /**
+     * Virtual predicates: {@code ?triple vers:added "2022-03-01T00:00:00Z/2022-04-01T00:00:00Z"} binds the embedded
+     * triples that are live as of the end of the ISO 8601 interval but were not as of its start,
+     * {@code vers:removed} those that were live at the start but no longer at the end.
+     */
+    static final IRI ADDED;
+    static final IRI REMOVED;
+
+    // Same lexical form as xsd:dateTime(NOW()) in GraphDB
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSxxx");
+
+    static {
+        ValueFactory vf = SimpleValueFactory.getInstance();
+        VALID_FROM = vf.createIRI(NAMESPACE, "valid_from");
+        VALID_UNTIL = vf.createIRI(NAMESPACE, "valid_until");
+        OPEN_END = vf.createLiteral("9999-12-31T00:00:00.000+00:00", XSD.DATETIME);
+        BULK_LOAD = vf.createIRI(NAMESPACE, "bulkLoad");
+        VERSIONED = vf.createIRI(NAMESPACE, "versioned");
+        AS_OF = vf.createIRI(NAMESPACE, "asOf");
+        DURING = vf.createIRI(NAMESPACE, "during");
+        LIVE = vf.createIRI(NAMESPACE, "live");
+        ADDED = vf.createIRI(NAMESPACE, "added");
+        REMOVED = vf.createIRI(NAMESPACE, "removed");
+    }
+
+    private VERS() {
+    }
+
+    /**
+     * @return the xsd:dateTime literal used as valid_from or valid_until value for the given instant
+     */
+    static Literal timestamp(OffsetDateTime time) {
+        return SimpleValueFactory.getInstance().createLiteral(time.format(TIMESTAMP_FORMAT), XSD.DATETIME);
+    }
+}
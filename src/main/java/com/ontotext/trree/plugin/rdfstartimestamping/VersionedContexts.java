@@ -0,0 +1,190 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.Entities;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.RDF4J;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of the graphs whose statements are versioned. The graphs come from the configuration and can be added or
+ * removed at runtime with the {@code vers:versioned} control predicate; such changes are kept in a file in the
+ * plugin's data directory and win over the configuration after a restart. The registry hands the entity IDs of
+ * the graphs to the {@link StatementFilter}, which the listeners check with a primitive set lookup.
+ */
+class VersionedContexts {
+
+    /**
+     * Configuration value that versions the statements of all graphs.
+     */
+    static final String ALL = "*";
+
+    /**
+     * Name of the default graph in the configuration and in the registry file.
+     */
+    static final String DEFAULT_GRAPH = "default";
+
+    // GraphDB's older name of the default graph, next to rdf4j:nil
+    private static final String SESAME_NIL = "http://www.openrdf.org/schema/sesame#nil";
+
+    // The contexts handleContextUpdate was called for before the graphs were configurable
+    private static final String[] LEGACY_UPDATE_CONTEXTS = {"", "http://example.com/testGraph"};
+
+    /**
+     * A change requested by a transaction, applied once the transaction completed.
+     */
+    static final class Change {
+        final String graph;
+        final long context;
+        final boolean added;
+
+        Change(String graph, long context, boolean added) {
+            this.graph = graph;
+            this.context = context;
+            this.added = added;
+        }
+    }
+
+    private final StatementFilter filter;
+    private final File file;
+    private final Logger logger;
+    // graph name to context ID in registration order, null if all graphs are versioned
+    private Map<String, Long> graphs;
+
+    /**
+     * @param graphs the configured graph IRIs and {@link #DEFAULT_GRAPH}, or just {@link #ALL}
+     * @param file   where runtime changes are kept, null to keep them in memory only
+     */
+    VersionedContexts(List<String> graphs, File file, StatementFilter filter, Entities entities, Logger logger) {
+        this.filter = filter;
+        this.file = file;
+        this.logger = logger;
+        List<String> initial = graphs;
+        if (file != null && file.isFile()) {
+            try {
+                initial = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+                logger.info("Versioned graphs changed at runtime are read from " + file);
+            } catch (IOException e) {
+                logger.error("Versioned graphs cannot be read from " + file + ", the configured ones are used", e);
+            }
+        }
+        if (!initial.contains(ALL)) {
+            this.graphs = new LinkedHashMap<>();
+            for (String graph : initial) {
+                if (!graph.trim().isEmpty())
+                    this.graphs.put(graph.trim(), context(graph.trim(), entities));
+            }
+        }
+        publish();
+        logger.info("Versioned graphs: " + (this.graphs == null ? "all" : this.graphs.keySet()));
+    }
+
+    /**
+     * Parses a comma or whitespace separated list of graphs.
+     */
+    static List<String> parse(String graphs) {
+        List<String> result = new ArrayList<>();
+        for (String graph : graphs.split("[,\\s]+")) {
+            if (!graph.isEmpty())
+                result.add(graph);
+        }
+        return result.isEmpty() ? Collections.singletonList(ALL) : result;
+    }
+
+    /**
+     * @return the registry name of a graph given as subject of the control predicate
+     */
+    static String name(Value graph) {
+        if (RDF4J.NIL.equals(graph) || graph instanceof IRI && SESAME_NIL.equals(graph.stringValue()))
+            return DEFAULT_GRAPH;
+        if (!(graph instanceof IRI))
+            throw new IllegalArgumentException("Only IRIs can be versioned graphs: " + graph);
+        return graph.stringValue();
+    }
+
+    synchronized void apply(List<Change> changes) {
+        // refused when requested, see RDFStarTimestampingPlugin.interpretUpdate
+        if (graphs == null)
+            return;
+        boolean changed = false;
+        for (Change change : changes) {
+            if (change.added)
+                changed |= graphs.put(change.graph, change.context) == null;
+            else
+                changed |= graphs.remove(change.graph) != null;
+            logger.info((change.added ? "Versioning graph " : "Stopped versioning graph ") + change.graph);
+        }
+        if (!changed)
+            return;
+        publish();
+        store();
+    }
+
+    synchronized boolean isAll() {
+        return graphs == null;
+    }
+
+    synchronized List<String> getGraphs() {
+        return graphs == null ? Collections.singletonList(ALL) : new ArrayList<>(graphs.keySet());
+    }
+
+    /**
+     * @return the contexts for {@code ContextUpdateHandler.getUpdateContexts()}, the default graph as empty IRI
+     */
+    synchronized Resource[] updateContexts() {
+        List<String> names = new ArrayList<>();
+        if (graphs == null)
+            Collections.addAll(names, LEGACY_UPDATE_CONTEXTS);
+        else
+            for (String graph : graphs.keySet())
+                names.add(DEFAULT_GRAPH.equals(graph) ? "" : graph);
+        Resource[] contexts = new Resource[names.size()];
+        for (int i = 0; i < contexts.length; i++) {
+            String name = names.get(i);
+            contexts[i] = () -> name;
+        }
+        return contexts;
+    }
+
+    private void publish() {
+        if (graphs == null) {
+            filter.setVersionedContexts(null);
+            return;
+        }
+        LongSet contexts = new LongSet();
+        for (long context : graphs.values())
+            contexts.add(context);
+        filter.setVersionedContexts(contexts);
+    }
+
+    private void store() {
+        if (file == null)
+            return;
+        File temporary = new File(file.getPath() + ".tmp");
+        try {
+            Files.write(temporary.toPath(), graphs.keySet(), StandardCharsets.UTF_8);
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("Versioned graphs cannot be stored in " + file + ", the change is lost on restart", e);
+        }
+    }
+
+    private static long context(String graph, Entities entities) {
+        if (DEFAULT_GRAPH.equals(graph))
+            return 0;
+        return entities.put(SimpleValueFactory.getInstance().createIRI(graph), Entities.Scope.DEFAULT);
+    }
+}
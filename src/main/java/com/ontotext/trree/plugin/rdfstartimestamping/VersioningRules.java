@@ -0,0 +1,162 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.Entities;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Include and exclude rules that keep high-churn data, such as counters, out of the version history. A rule matches
+ * statements by predicate IRI, subject namespace or graph, e.g. {@code exclude predicate http://example.com/counter}.
+ * The first matching rule decides; a statement no rule matches is versioned unless there are include rules.
+ * Predicate and graph rules are compiled to entity IDs and compared without decoding anything; only subject
+ * namespace rules look at the subject's IRI, through the entity cache. Each rule counts the statements it decided.
+ */
+class VersioningRules {
+
+    enum Kind {
+        PREDICATE, SUBJECT, GRAPH
+    }
+
+    static final class Rule {
+        final boolean include;
+        final Kind kind;
+        final String value;
+        // entity ID of the predicate or graph, 0 for the default graph
+        final long id;
+        final LongAdder matched = new LongAdder();
+
+        Rule(boolean include, Kind kind, String value, long id) {
+            this.include = include;
+            this.kind = kind;
+            this.value = value;
+            this.id = id;
+        }
+
+        @Override
+        public String toString() {
+            return (include ? "include " : "exclude ") + kind.name().toLowerCase(Locale.ROOT) + " " + value;
+        }
+    }
+
+    private final Rule[] rules;
+    private final boolean hasIncludes;
+    private final EntityCache entityCache;
+    // statements excluded because no include rule matched
+    private final LongAdder unmatched = new LongAdder();
+
+    private VersioningRules(List<Rule> rules, EntityCache entityCache) {
+        this.rules = rules.toArray(new Rule[0]);
+        boolean includes = false;
+        for (Rule rule : rules)
+            includes |= rule.include;
+        this.hasIncludes = includes;
+        this.entityCache = entityCache;
+    }
+
+    /**
+     * Compiles rules separated by semicolons or line breaks, each of the form
+     * {@code (include|exclude) (predicate|subject|graph) <IRI>}. A subject rule matches IRIs starting with the
+     * namespace, a graph rule takes {@code default} for the default graph.
+     */
+    static VersioningRules compile(String definition, Entities entities, EntityCache entityCache) {
+        List<Rule> rules = new ArrayList<>();
+        for (String line : definition.split("[;\\n]")) {
+            if (line.trim().isEmpty())
+                continue;
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length != 3)
+                throw new IllegalArgumentException("Versioning rule must be '(include|exclude) (predicate|subject|graph) <IRI>': " + line.trim());
+            boolean include;
+            if (parts[0].equalsIgnoreCase("include"))
+                include = true;
+            else if (parts[0].equalsIgnoreCase("exclude"))
+                include = false;
+            else
+                throw new IllegalArgumentException("Versioning rule must start with include or exclude: " + line.trim());
+            Kind kind;
+            try {
+                kind = Kind.valueOf(parts[1].toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Versioning rule must match a predicate, subject or graph: " + line.trim());
+            }
+            String value = parts[2].startsWith("<") && parts[2].endsWith(">") ? parts[2].substring(1, parts[2].length() - 1) : parts[2];
+            long id = 0;
+            if (kind == Kind.PREDICATE || kind == Kind.GRAPH && !VersionedContexts.DEFAULT_GRAPH.equals(value))
+                id = entities.put(SimpleValueFactory.getInstance().createIRI(value), Entities.Scope.DEFAULT);
+            rules.add(new Rule(include, kind, value, id));
+        }
+        return new VersioningRules(rules, entityCache);
+    }
+
+    static VersioningRules none() {
+        return new VersioningRules(Collections.emptyList(), null);
+    }
+
+    boolean isEmpty() {
+        return rules.length == 0;
+    }
+
+    /**
+     * @return whether the statement is versioned according to the rules
+     */
+    boolean accept(long subject, long predicate, long context, Entities entities) {
+        if (rules.length == 0)
+            return true;
+        // decoded at most once, and only if a subject rule is reached
+        String subjectIri = null;
+        for (Rule rule : rules) {
+            boolean matches;
+            switch (rule.kind) {
+                case PREDICATE:
+                    matches = predicate == rule.id;
+                    break;
+                case GRAPH:
+                    matches = context == rule.id;
+                    break;
+                default:
+                    if (subjectIri == null) {
+                        Value value = entityCache.get(subject, entities);
+                        subjectIri = value == null ? "" : value.stringValue();
+                    }
+                    matches = subjectIri.startsWith(rule.value);
+            }
+            if (matches) {
+                rule.matched.increment();
+                return rule.include;
+            }
+        }
+        if (hasIncludes) {
+            unmatched.increment();
+            return false;
+        }
+        return true;
+    }
+
+    List<Rule> getRules() {
+        List<Rule> result = new ArrayList<>(rules.length);
+        Collections.addAll(result, rules);
+        return result;
+    }
+
+    long getUnmatched() {
+        return unmatched.sum();
+    }
+
+    @Override
+    public String toString() {
+        if (rules.length == 0)
+            return "versioning rules: none";
+        StringBuilder report = new StringBuilder("versioning rules:");
+        for (Rule rule : rules)
+            report.append(" [").append(rule).append("] ").append(rule.matched.sum());
+        if (hasIncludes)
+            report.append(" [no include rule matched] ").append(unmatched.sum());
+        return report.toString();
+    }
+}
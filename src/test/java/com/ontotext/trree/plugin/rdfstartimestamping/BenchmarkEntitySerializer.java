@@ -0,0 +1,96 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleBNode;
+import org.eclipse.rdf4j.model.impl.SimpleIRI;
+import org.eclipse.rdf4j.model.impl.SimpleLiteral;
+import org.eclipse.rdf4j.model.impl.SimpleTriple;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.XSD;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH comparison of the streaming serializer in {@link PluginUtils} against the former instanceof chain on the
+ * Simple* classes. Run the main method from the test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BenchmarkEntitySerializer {
+
+    private Value[] values;
+    private StringBuilder out;
+
+    @Setup
+    public void setup() {
+        ValueFactory vf = SimpleValueFactory.getInstance();
+        Value s = vf.createIRI("http://example.com/s/subject");
+        Value p = vf.createIRI("http://example.com/p/predicate");
+        values = new Value[]{
+                s,
+                p,
+                vf.createLiteral("a plain literal with some text"),
+                vf.createLiteral("2022-03-28T12:00:00.000+01:00", XSD.DATETIME),
+                vf.createBNode("node1"),
+                vf.createTriple((Resource) s, vf.createIRI(p.stringValue()), vf.createLiteral("o")),
+                vf.createTriple(vf.createTriple((Resource) s, vf.createIRI(p.stringValue()), s),
+                        VERS.VALID_FROM, vf.createLiteral("2022-03-28T12:00:00.000+01:00", XSD.DATETIME))
+        };
+        out = new StringBuilder(256);
+    }
+
+    @Benchmark
+    public void legacyEntityToString(Blackhole blackhole) {
+        for (Value value : values)
+            blackhole.consume(legacyEntityToString(value));
+    }
+
+    @Benchmark
+    public void entityToString(Blackhole blackhole) {
+        for (Value value : values)
+            blackhole.consume(PluginUtils.entityToString(value));
+    }
+
+    @Benchmark
+    public void appendEntity(Blackhole blackhole) {
+        for (Value value : values) {
+            out.setLength(0);
+            PluginUtils.appendEntity(value, out);
+            blackhole.consume(out.length());
+        }
+    }
+
+    // The serializer as it was before, kept as the baseline
+    private static String legacyEntityToString(Value value) {
+        if (value instanceof SimpleIRI)
+            return "<" + value + ">";
+        if (value instanceof SimpleLiteral)
+            return value.toString();
+        if (value instanceof SimpleBNode)
+            return value.toString();
+        if (value instanceof SimpleTriple) {
+            Value s = ((SimpleTriple) value).getSubject();
+            Value p = ((SimpleTriple) value).getPredicate();
+            Value o = ((SimpleTriple) value).getObject();
+            return "<<" + legacyEntityToString(s) + " " + legacyEntityToString(p) + " " + legacyEntityToString(o) + ">>";
+        }
+        if (value instanceof Resource)
+            return "<" + value + ">";
+        throw new IllegalArgumentException("The entity's type is not support. It is none of: IRI, literal, BNode, Triple");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(BenchmarkEntitySerializer.class.getSimpleName()).build()).run();
+    }
+}
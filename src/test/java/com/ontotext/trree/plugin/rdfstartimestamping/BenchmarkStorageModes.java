@@ -0,0 +1,115 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.sparql.SPARQLRepository;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares insert throughput and disk footprint of versions stored as RDF-star statements against versions kept in
+ * the plugin's interval store. Not part of the regular test run; execute with mvn test -Dtest=BenchmarkStorageModes.
+ * Each storage gets a freshly preloaded server with -Drdf-star-timestamping.storage set accordingly. The footprint is
+ * the growth of the repository directory, plugin data included, from the start of the server until it was stopped.
+ */
+public class BenchmarkStorageModes {
+
+    private static final int TRANSACTIONS = Integer.getInteger("benchmark.transactions", 500);
+    private static final int TRIPLES_PER_TRANSACTION = Integer.getInteger("benchmark.triplesPerTransaction", 100);
+    // every n-th triple is deleted again, which closes its version
+    private static final int DELETE_EVERY = Integer.getInteger("benchmark.deleteEvery", 10);
+    private static final Path REPOSITORY_DIR = new File("target/graphdb-data/data/repositories/" + GraphDBDocker.REPO_ID).toPath();
+
+    @Test
+    public void compareStorageModes() throws Exception {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-10s %14s %14s %14s %16s %14s%n",
+                "storage", "inserts/s", "deletes/s", "footprint KB", "bytes/version", "plugin KB"));
+        for (String storage : new String[]{"rdf", "intervals"}) {
+            GraphDBDocker.start(Collections.singletonMap("TIMESTAMPING_STORAGE", storage));
+            long before = size(REPOSITORY_DIR);
+            double[] throughput;
+            try {
+                throughput = run(storage);
+            } finally {
+                GraphDBDocker.stop();
+            }
+            long footprint = size(REPOSITORY_DIR) - before;
+            long versions = (long) TRANSACTIONS * TRIPLES_PER_TRANSACTION;
+            report.append(String.format("%-10s %14.1f %14.1f %14d %16.1f %14d%n", storage, throughput[0], throughput[1],
+                    footprint / 1024, (double) footprint / versions, pluginSize() / 1024));
+        }
+        System.out.println(report);
+    }
+
+    /**
+     * @return inserted and deleted triples per second
+     */
+    private double[] run(String storage) {
+        SPARQLRepository repo = GraphDBDocker.repository();
+        try (RepositoryConnection connection = repo.getConnection()) {
+            long start = System.nanoTime();
+            for (int tx = 0; tx < TRANSACTIONS; tx++) {
+                StringBuilder triples = new StringBuilder();
+                for (int i = 0; i < TRIPLES_PER_TRANSACTION; i++)
+                    triples.append(triple(storage, tx, i)).append(" . ");
+                connection.begin();
+                connection.prepareUpdate(String.format("insert data { %s }", triples)).execute();
+                connection.commit();
+            }
+            double inserts = (double) TRANSACTIONS * TRIPLES_PER_TRANSACTION / ((System.nanoTime() - start) / 1e9);
+
+            start = System.nanoTime();
+            int deleted = 0;
+            for (int tx = 0; tx < TRANSACTIONS; tx++) {
+                StringBuilder triples = new StringBuilder();
+                for (int i = 0; i < TRIPLES_PER_TRANSACTION; i += DELETE_EVERY, deleted++)
+                    triples.append(triple(storage, tx, i)).append(" . ");
+                connection.begin();
+                connection.prepareUpdate(String.format("delete data { %s }", triples)).execute();
+                connection.commit();
+            }
+            double deletes = deleted / ((System.nanoTime() - start) / 1e9);
+
+            String count = String.format("select (count(*) as ?n) { <<<<?s ?p ?o>> <%s> ?from>> <%s> ?until "
+                    + "filter(strstarts(str(?s), \"http://example.com/benchmark/%s/\")) }", VERS.VALID_FROM, VERS.VALID_UNTIL, storage);
+            assertEquals("Every version is visible", TRANSACTIONS * TRIPLES_PER_TRANSACTION,
+                    Integer.parseInt(connection.prepareTupleQuery(count).evaluate().next().getValue("n").stringValue()));
+            return new double[]{inserts, deletes};
+        } finally {
+            repo.shutDown();
+        }
+    }
+
+    private static String triple(String storage, int tx, int i) {
+        return String.format("<http://example.com/benchmark/%s/s%d> <http://example.com/benchmark/p> \"%d\"",
+                storage, tx, i);
+    }
+
+    /**
+     * @return the size of the plugin's data directory within the repository
+     */
+    private static long pluginSize() throws IOException {
+        try (Stream<Path> paths = Files.walk(REPOSITORY_DIR)) {
+            return paths.filter(path -> path.getFileName().toString().equals("rdf-star-timestamping") && Files.isDirectory(path))
+                    .mapToLong(BenchmarkStorageModes::size).sum();
+        }
+    }
+
+    private static long size(Path directory) {
+        if (!Files.exists(directory))
+            return 0;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            return paths.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot measure " + directory, e);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.sparql.SPARQLRepository;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares commit latency and throughput of the in-process write path against the SPARQL loopback path.
+ * Not part of the regular test run; execute with mvn test -Dtest=BenchmarkWriteModes.
+ * Each mode gets a freshly preloaded server with -Drdf-star-timestamping.writeMode set accordingly.
+ */
+public class BenchmarkWriteModes {
+
+    private static final int TRANSACTIONS = Integer.getInteger("benchmark.transactions", 200);
+    private static final int TRIPLES_PER_TRANSACTION = Integer.getInteger("benchmark.triplesPerTransaction", 10);
+    private static final long VISIBILITY_TIMEOUT_MILLIS = 120_000;
+
+    @Test
+    public void compareWriteModes() throws Exception {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-12s %14s %14s %14s %16s%n",
+                "mode", "commit avg ms", "commit p99 ms", "visible avg ms", "triples/s"));
+        for (String mode : new String[]{"in-process", "sparql"}) {
+            GraphDBDocker.start(Collections.singletonMap("TIMESTAMPING_WRITE_MODE", mode));
+            try {
+                report.append(run(mode));
+            } finally {
+                GraphDBDocker.stop();
+            }
+        }
+        System.out.println(report);
+    }
+
+    private String run(String mode) throws InterruptedException {
+        SPARQLRepository repo = GraphDBDocker.repository();
+        try (RepositoryConnection connection = repo.getConnection()) {
+            long[] commitNanos = new long[TRANSACTIONS];
+            long[] visibleNanos = new long[TRANSACTIONS];
+            long start = System.nanoTime();
+            for (int tx = 0; tx < TRANSACTIONS; tx++) {
+                StringBuilder triples = new StringBuilder();
+                for (int i = 0; i < TRIPLES_PER_TRANSACTION; i++)
+                    triples.append(triple(mode, tx, i)).append(" . ");
+
+                long txStart = System.nanoTime();
+                connection.begin();
+                connection.prepareUpdate(String.format("insert data { %s }", triples)).execute();
+                connection.commit();
+                commitNanos[tx] = System.nanoTime() - txStart;
+
+                // The version of the transaction's last triple is written last
+                waitForVersion(connection, triple(mode, tx, TRIPLES_PER_TRANSACTION - 1));
+                visibleNanos[tx] = System.nanoTime() - txStart;
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            Arrays.sort(commitNanos);
+            return String.format("%-12s %14.2f %14.2f %14.2f %16.1f%n", mode,
+                    average(commitNanos) / 1e6, commitNanos[(int) (TRANSACTIONS * 0.99)] / 1e6,
+                    average(visibleNanos) / 1e6, TRANSACTIONS * TRIPLES_PER_TRANSACTION / seconds);
+        } finally {
+            repo.shutDown();
+        }
+    }
+
+    private static void waitForVersion(RepositoryConnection connection, String triple) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + VISIBILITY_TIMEOUT_MILLIS;
+        String ask = String.format("ask { <<<<%s>> ?x ?y>> ?a ?b }", triple);
+        while (!connection.prepareBooleanQuery(ask).evaluate()) {
+            assertTrue("Timestamped triple did not become visible: " + triple, System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static String triple(String mode, int tx, int i) {
+        return String.format("<http://example.com/benchmark/%s/s%d> <http://example.com/benchmark/p> <http://example.com/benchmark/o%d>",
+                mode, tx, i);
+    }
+
+    private static double average(long[] values) {
+        return Arrays.stream(values).average().orElse(0);
+    }
+}
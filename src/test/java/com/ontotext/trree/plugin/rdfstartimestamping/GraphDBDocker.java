@@ -0,0 +1,65 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.RepositoryException;
+import org.eclipse.rdf4j.repository.sparql.SPARQLRepository;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Starts and stops the dockerized GraphDB server with the plugin for the benchmarks. The repository is
+ * (re-)created by the preload service before the server is started, exactly as in the tests.
+ */
+class GraphDBDocker {
+
+    static final String REPO_ID = "testTimestamping";
+    static final String QUERY_ENDPOINT = String.format("http://localhost:7200/repositories/%s", REPO_ID);
+    static final String UPDATE_ENDPOINT = String.format("http://localhost:7200/repositories/%s/statements", REPO_ID);
+
+    private static final File DOCKER_DIR = new File("src/test/resources/graphdb-docker-master");
+
+    /**
+     * @param environment variables substituted in docker-compose.yml, e.g. TIMESTAMPING_WRITE_MODE
+     */
+    static void start(Map<String, String> environment) throws IOException, InterruptedException {
+        run(new File(DOCKER_DIR, "preload"), environment, "docker-compose", "up", "-d");
+        run(DOCKER_DIR, environment, "docker-compose", "up", "-d", "--force-recreate");
+        waitForRepository(120_000);
+    }
+
+    static void stop() throws IOException, InterruptedException {
+        run(DOCKER_DIR, null, "docker-compose", "down");
+    }
+
+    static SPARQLRepository repository() {
+        return new SPARQLRepository(QUERY_ENDPOINT, UPDATE_ENDPOINT);
+    }
+
+    private static void run(File dir, Map<String, String> environment, String... command) throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder(command).directory(dir).inheritIO();
+        if (environment != null)
+            pb.environment().putAll(environment);
+        pb.start().waitFor();
+    }
+
+    private static void waitForRepository(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        SPARQLRepository repo = repository();
+        try {
+            while (true) {
+                try (RepositoryConnection connection = repo.getConnection()) {
+                    connection.prepareBooleanQuery("ask { ?s ?p ?o }").evaluate();
+                    return;
+                } catch (RepositoryException | org.eclipse.rdf4j.query.QueryEvaluationException e) {
+                    if (System.currentTimeMillis() > deadline)
+                        throw new IllegalStateException("GraphDB did not come up within " + timeoutMillis + " ms", e);
+                    Thread.sleep(1000);
+                }
+            }
+        } finally {
+            repo.shutDown();
+        }
+    }
+}
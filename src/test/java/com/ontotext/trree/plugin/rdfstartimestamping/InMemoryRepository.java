@@ -0,0 +1,205 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.Entities;
+import com.ontotext.trree.sdk.PluginConnection;
+import com.ontotext.trree.sdk.StatementIterator;
+import com.ontotext.trree.sdk.Statements;
+import org.eclipse.rdf4j.model.BNode;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Triple;
+import org.eclipse.rdf4j.model.Value;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Thread-safe in-memory entity pool and statement store behind the plugin SDK interfaces, for tests that drive the
+ * plugin without a GraphDB server. ID 0 is a wildcard for subject, predicate and object; the context given to
+ * {@code get(s, p, o, c)} is matched exactly, 0 being the default graph.
+ */
+class InMemoryRepository {
+
+    private final Map<Value, Long> ids = new HashMap<>();
+    private final List<Value> values = new ArrayList<>();
+    private final Set<List<Long>> quads = new LinkedHashSet<>();
+
+    private final Entities entities = proxy(Entities.class, (method, args) -> {
+        switch (method) {
+            case "put":
+                return put((Value) args[0]);
+            case "resolve":
+                return resolve((Value) args[0]);
+            case "get":
+                return value((Long) args[0]);
+            case "getType":
+                return type(value((Long) args[0]));
+            case "size":
+                return entityCount();
+            default:
+                throw new UnsupportedOperationException(method);
+        }
+    });
+
+    private final Statements statements = proxy(Statements.class, (method, args) -> {
+        switch (method) {
+            case "put":
+                return add((Long) args[0], (Long) args[1], (Long) args[2], (Long) args[3]);
+            case "remove":
+                return remove((Long) args[0], (Long) args[1], (Long) args[2], (Long) args[3]);
+            case "get":
+                return match((Long) args[0], (Long) args[1], (Long) args[2], args.length > 3 ? (Long) args[3] : null);
+            default:
+                throw new UnsupportedOperationException(method);
+        }
+    });
+
+    Entities entities() {
+        return entities;
+    }
+
+    Statements statements() {
+        return statements;
+    }
+
+    PluginConnection connection(long transactionId) {
+        return proxy(PluginConnection.class, (method, args) -> {
+            switch (method) {
+                case "getEntities":
+                    return entities;
+                case "getStatements":
+                    return statements;
+                case "getTransactionId":
+                    return transactionId;
+                case "isTesting":
+                    return false;
+                default:
+                    throw new UnsupportedOperationException(method);
+            }
+        });
+    }
+
+    synchronized long put(Value value) {
+        Long id = ids.get(value);
+        if (id == null) {
+            // like GraphDB, the components of an embedded triple become entities as well
+            if (value instanceof Triple) {
+                put(((Triple) value).getSubject());
+                put(((Triple) value).getPredicate());
+                put(((Triple) value).getObject());
+            }
+            values.add(value);
+            id = (long) values.size();
+            ids.put(value, id);
+        }
+        return id;
+    }
+
+    synchronized long resolve(Value value) {
+        return ids.getOrDefault(value, 0L);
+    }
+
+    synchronized Value value(long id) {
+        return id <= 0 || id > values.size() ? null : values.get((int) id - 1);
+    }
+
+    synchronized long entityCount() {
+        return values.size();
+    }
+
+    synchronized int size() {
+        return quads.size();
+    }
+
+    synchronized boolean add(long s, long p, long o, long c) {
+        return quads.add(quad(s, p, o, c));
+    }
+
+    synchronized boolean remove(long s, long p, long o, long c) {
+        return quads.remove(quad(s, p, o, c));
+    }
+
+    synchronized boolean contains(long s, long p, long o, long c) {
+        return quads.contains(quad(s, p, o, c));
+    }
+
+    /**
+     * @return the matching quads as {s, p, o, c} arrays, a null context matches all contexts
+     */
+    synchronized List<long[]> find(long s, long p, long o, Long c) {
+        List<long[]> result = new ArrayList<>();
+        for (List<Long> quad : quads) {
+            if ((s == 0 || quad.get(0) == s) && (p == 0 || quad.get(1) == p) && (o == 0 || quad.get(2) == o)
+                    && (c == null || quad.get(3).longValue() == c))
+                result.add(new long[]{quad.get(0), quad.get(1), quad.get(2), quad.get(3)});
+        }
+        return result;
+    }
+
+    private StatementIterator match(long s, long p, long o, Long c) {
+        Iterator<long[]> matches = find(s, p, o, c).iterator();
+        return new StatementIterator() {
+            @Override
+            public boolean next() {
+                if (!matches.hasNext())
+                    return false;
+                long[] quad = matches.next();
+                subject = quad[0];
+                predicate = quad[1];
+                object = quad[2];
+                context = quad[3];
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static List<Long> quad(long s, long p, long o, long c) {
+        List<Long> quad = new ArrayList<>(4);
+        quad.add(s);
+        quad.add(p);
+        quad.add(o);
+        quad.add(c);
+        return quad;
+    }
+
+    private static Entities.Type type(Value value) {
+        if (value instanceof IRI)
+            return Entities.Type.URI;
+        if (value instanceof BNode)
+            return Entities.Type.BNODE;
+        if (value instanceof Literal)
+            return Entities.Type.LITERAL;
+        return Entities.Type.TRIPLE;
+    }
+
+    private interface Handler {
+        Object invoke(String method, Object[] args);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(InMemoryRepository.class.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return type.getSimpleName() + " of an in-memory repository";
+                        default:
+                            return handler.invoke(method.getName(), args == null ? new Object[0] : args);
+                    }
+                });
+    }
+}
@@ -0,0 +1,176 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.InitReason;
+import com.ontotext.trree.sdk.PluginConnection;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Triple;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests closing all live versions matched by a CLEAR GRAPH or a DELETE WHERE through the plugin's listeners in
+ * in-process mode.
+ */
+public class TestBulkClose {
+
+    private static final ValueFactory vf = SimpleValueFactory.getInstance();
+
+    private final InMemoryRepository repository = new InMemoryRepository();
+    private final IRI p = vf.createIRI("http://example.com/p");
+    private final IRI q = vf.createIRI("http://example.com/q");
+    private RDFStarTimestampingPlugin plugin;
+    private long transactionId;
+
+    @Before
+    public void initialize() {
+        plugin = new RDFStarTimestampingPlugin();
+        plugin.setLogger(LoggerFactory.getLogger(TestBulkClose.class));
+        plugin.initialize(InitReason.DEFAULT, repository.connection(0));
+    }
+
+    @After
+    public void shutdown() {
+        plugin.shutdown(null);
+    }
+
+    @Test
+    public void clearGraphClosesAllLiveVersionsAtOneTimestamp() {
+        int n = 10_000;
+        PluginConnection first = begin();
+        for (int i = 0; i < n; i++)
+            insert(first, i % 2 == 0 ? p : q, i);
+        complete(first);
+        assertEquals(n, versions(VERS.OPEN_END).size());
+
+        PluginConnection second = begin();
+        plugin.handleContextUpdate(null, null, null, null, false, second);
+        complete(second);
+
+        assertTrue(versions(VERS.OPEN_END).isEmpty());
+        Set<Value> closedAt = new HashSet<>();
+        for (long[] version : repository.find(0, repository.resolve(VERS.VALID_UNTIL), 0, null))
+            closedAt.add(repository.value(version[2]));
+        assertEquals("All versions are closed at once", 1, closedAt.size());
+    }
+
+    @Test
+    public void patternDeleteClosesOnlyMatchingVersions() {
+        PluginConnection first = begin();
+        insert(first, p, 1);
+        insert(first, q, 2);
+        insert(first, q, 3);
+        complete(first);
+
+        PluginConnection second = begin();
+        plugin.handleContextUpdate(null, q, null, null, false, second);
+        complete(second);
+
+        List<long[]> live = versions(VERS.OPEN_END);
+        assertEquals(1, live.size());
+        Triple version = (Triple) repository.value(live.get(0)[0]);
+        assertEquals(p, ((Triple) version.getSubject()).getPredicate());
+    }
+
+    @Test
+    public void patternDeleteOfAnUnknownEntityClosesNothing() {
+        PluginConnection first = begin();
+        insert(first, p, 1);
+        complete(first);
+
+        PluginConnection second = begin();
+        plugin.handleContextUpdate(null, vf.createIRI("http://example.com/unknown"), null, null, false, second);
+        complete(second);
+
+        assertEquals(1, versions(VERS.OPEN_END).size());
+    }
+
+    @Test
+    public void deleteWhereMatchingALiveVersionClosesIt() {
+        PluginConnection first = begin();
+        insert(first, p, 1);
+        insert(first, p, 2);
+        complete(first);
+
+        // DELETE WHERE { ?s ?p ?o } hands the version statements it matched to the context update handler
+        PluginConnection second = begin();
+        for (long[] version : versions(VERS.OPEN_END))
+            plugin.handleContextUpdate((Resource) repository.value(version[0]), VERS.VALID_UNTIL, VERS.OPEN_END, null,
+                    false, second);
+        complete(second);
+
+        assertTrue(versions(VERS.OPEN_END).isEmpty());
+        assertEquals(2, repository.find(0, repository.resolve(VERS.VALID_UNTIL), 0, null).size());
+    }
+
+    @Test
+    public void tripleInsertedAgainAfterClearGraphStaysLive() {
+        PluginConnection first = begin();
+        insert(first, p, 1);
+        insert(first, p, 2);
+        complete(first);
+
+        PluginConnection second = begin();
+        plugin.handleContextUpdate(null, null, null, null, false, second);
+        insert(second, p, 1);
+        complete(second);
+
+        List<long[]> live = versions(VERS.OPEN_END);
+        assertEquals(1, live.size());
+        Triple version = (Triple) repository.value(live.get(0)[0]);
+        assertEquals(vf.createIRI("http://example.com/s/1"), ((Triple) version.getSubject()).getSubject());
+    }
+
+    @Test
+    public void severalPatternDeletesOfATransactionAreAllApplied() {
+        PluginConnection first = begin();
+        for (int i = 0; i < 6; i++)
+            insert(first, i < 3 ? p : q, i);
+        complete(first);
+
+        PluginConnection second = begin();
+        plugin.handleContextUpdate(null, q, null, null, false, second);
+        plugin.handleContextUpdate(vf.createIRI("http://example.com/s/0"), null, null, null, false, second);
+        plugin.handleContextUpdate(null, null, vf.createLiteral(1), null, false, second);
+        complete(second);
+
+        List<long[]> live = versions(VERS.OPEN_END);
+        assertEquals(1, live.size());
+        Triple version = (Triple) repository.value(live.get(0)[0]);
+        assertEquals(vf.createIRI("http://example.com/s/2"), ((Triple) version.getSubject()).getSubject());
+    }
+
+    private List<long[]> versions(Value validUntil) {
+        return repository.find(0, repository.resolve(VERS.VALID_UNTIL), repository.resolve(validUntil), null);
+    }
+
+    private PluginConnection begin() {
+        PluginConnection connection = repository.connection(++transactionId);
+        plugin.transactionStarted(connection);
+        return connection;
+    }
+
+    private void insert(PluginConnection connection, IRI predicate, int i) {
+        long s = repository.put(vf.createIRI("http://example.com/s/" + i));
+        long o = repository.put(vf.createLiteral(i));
+        long pid = repository.put(predicate);
+        repository.add(s, pid, o, 0);
+        plugin.statementAdded(s, pid, o, 0, true, connection);
+    }
+
+    private void complete(PluginConnection connection) {
+        plugin.transactionCommit(connection);
+        plugin.transactionCompleted(connection);
+    }
+}
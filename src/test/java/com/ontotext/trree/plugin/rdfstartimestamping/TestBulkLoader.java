@@ -0,0 +1,202 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.PluginException;
+import org.eclipse.rdf4j.model.Triple;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests streaming files into an in-memory repository as versions with a single load timestamp.
+ */
+public class TestBulkLoader {
+
+    private static final ValueFactory vf = SimpleValueFactory.getInstance();
+    private static final OffsetDateTime TIME = OffsetDateTime.parse("2022-03-28T12:00:00.000+02:00");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final InMemoryRepository repository = new InMemoryRepository();
+
+    private BulkLoader loader() {
+        return new BulkLoader(folder.getRoot().toPath(), LoggerFactory.getLogger(TestBulkLoader.class));
+    }
+
+    private List<long[]> liveVersions() {
+        return repository.find(0, repository.resolve(VERS.VALID_UNTIL), repository.resolve(VERS.OPEN_END), null);
+    }
+
+    @Test
+    public void loadsQuadsAsVersionsWithoutPlainTriples() throws IOException {
+        Files.write(folder.getRoot().toPath().resolve("data.nq"), (
+                "<http://example.com/a> <http://example.com/p> \"a\" .\n"
+                        + "<http://example.com/b> <http://example.com/p> <http://example.com/c> <http://example.com/g> .\n"
+                        + "_:x <http://example.com/p> \"x\"@en <http://example.com/g> .\n").getBytes(StandardCharsets.UTF_8));
+        long defaultContext = repository.put(vf.createIRI("http://example.com/default"));
+
+        assertEquals(3, loader().load("data.nq", defaultContext, TIME, repository.connection(1)));
+
+        List<long[]> versions = liveVersions();
+        assertEquals(3, versions.size());
+        assertEquals("Nothing but the versions is stored", 3, repository.size());
+        long g = repository.resolve(vf.createIRI("http://example.com/g"));
+        int inNamedGraph = 0;
+        for (long[] version : versions) {
+            Triple triple = (Triple) repository.value(version[0]);
+            assertEquals(VERS.VALID_FROM, triple.getPredicate());
+            assertEquals(VERS.timestamp(TIME), triple.getObject());
+            if (version[3] == g)
+                inNamedGraph++;
+            else
+                assertEquals(defaultContext, version[3]);
+        }
+        assertEquals(2, inNamedGraph);
+    }
+
+    @Test
+    public void loadsGzippedNTriples() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("data.nt.gz");
+        int statements = 50_000;
+        try (Writer out = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(file)), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < statements; i++)
+                out.write("<http://example.com/s" + i + "> <http://example.com/p> \"" + i + "\" .\n");
+        }
+        long start = System.nanoTime();
+        assertEquals(statements, loader().load(file.toUri().toString(), 0, TIME, repository.connection(1)));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Bulk loaded %d statements in %.2f s: %.0f statements/s%n", statements, seconds, statements / seconds);
+        assertEquals(statements, repository.size());
+    }
+
+    @Test
+    public void loadsIntoTheIntervalStore() throws IOException {
+        Files.write(folder.getRoot().toPath().resolve("data.nt"), (
+                "<http://example.com/a> <http://example.com/p> \"a\" .\n"
+                        + "<http://example.com/b> <http://example.com/p> <http://example.com/c> .\n").getBytes(StandardCharsets.UTF_8));
+        LiveVersions liveVersions = new LiveVersions(new EntityCache(100));
+        try (IntervalStore store = IntervalStore.open(null, LoggerFactory.getLogger(TestBulkLoader.class))) {
+            assertEquals(2, new BulkLoader(folder.getRoot().toPath(), liveVersions, store, LoggerFactory.getLogger(TestBulkLoader.class))
+                    .load("data.nt", 0, TIME, repository.connection(1)));
+            assertEquals("Nothing is stored as statements", 0, repository.size());
+            store.commit(1);
+            liveVersions.complete(1, repository.entities());
+            long a = repository.resolve(vf.createIRI("http://example.com/a"));
+            long p = repository.resolve(vf.createIRI("http://example.com/p"));
+            long record = liveVersions.find(2, a, p, repository.resolve(vf.createLiteral("a")), 0);
+            long[] values = new long[6];
+            assertTrue(store.read(2, record, values));
+            assertEquals(TIME.toInstant().toEpochMilli(), values[4]);
+            assertEquals(IntervalStore.OPEN, values[5]);
+        }
+    }
+
+    @Test
+    public void skipsStatementsThatAreAlreadyLive() throws IOException {
+        String a = "<http://example.com/a> <http://example.com/p> \"a\" .\n";
+        Files.write(folder.getRoot().toPath().resolve("first.nt"), a.getBytes(StandardCharsets.UTF_8));
+        Files.write(folder.getRoot().toPath().resolve("second.nt"),
+                (a + "<http://example.com/b> <http://example.com/p> \"b\" .\n" + a).getBytes(StandardCharsets.UTF_8));
+        LiveVersions liveVersions = new LiveVersions(new EntityCache(100));
+        BulkLoader loader = new BulkLoader(folder.getRoot().toPath(), liveVersions, null, LoggerFactory.getLogger(TestBulkLoader.class));
+        assertEquals(1, loader.load("first.nt", 0, TIME, repository.connection(1)));
+        liveVersions.complete(1, repository.entities());
+
+        assertEquals("Only b gets a version", 1, loader.load("second.nt", 0, TIME.plusHours(1), repository.connection(2)));
+        assertEquals(2, liveVersions().size());
+
+        try (IntervalStore store = IntervalStore.open(null, LoggerFactory.getLogger(TestBulkLoader.class))) {
+            LiveVersions intervals = new LiveVersions(new EntityCache(100));
+            assertEquals("A repeated statement is versioned once", 2,
+                    new BulkLoader(folder.getRoot().toPath(), intervals, store, LoggerFactory.getLogger(TestBulkLoader.class))
+                            .load("second.nt", 0, TIME, repository.connection(3)));
+        }
+    }
+
+    @Test
+    public void publishesTheVersionsInChunksWhileLoading() throws IOException {
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 35; i++)
+            data.append("<http://example.com/s").append(i).append("> <http://example.com/p> \"").append(i).append("\" .\n");
+        Files.write(folder.getRoot().toPath().resolve("data.nt"), data.toString().getBytes(StandardCharsets.UTF_8));
+        TemporalIndex temporalIndex = new TemporalIndex(null, LoggerFactory.getLogger(TestBulkLoader.class));
+        LiveVersions liveVersions = new LiveVersions(new EntityCache(100), temporalIndex, null);
+        BulkLoader loader = new BulkLoader(folder.getRoot().toPath(), liveVersions, null, 10,
+                LoggerFactory.getLogger(TestBulkLoader.class));
+
+        assertEquals(35, loader.load("data.nt", 0, TIME, repository.connection(1)));
+        assertEquals("Three chunks are live before the load completed", 30, liveVersions.size());
+        assertEquals(30, temporalIndex.size());
+        long p = repository.resolve(vf.createIRI("http://example.com/p"));
+        assertTrue(liveVersions.isLive(2, repository.resolve(vf.createIRI("http://example.com/s0")), p,
+                repository.resolve(vf.createLiteral("0")), 0));
+        assertFalse(liveVersions.isLive(2, repository.resolve(vf.createIRI("http://example.com/s34")), p,
+                repository.resolve(vf.createLiteral("34")), 0));
+
+        liveVersions.complete(1, repository.entities());
+        assertEquals(35, liveVersions.size());
+        assertEquals(35, temporalIndex.size());
+        assertTrue("A completed load is not published anymore", liveVersions.abort(1));
+    }
+
+    @Test
+    public void abortAfterAPublishedChunkCallsForReindexing() throws IOException {
+        Files.write(folder.getRoot().toPath().resolve("data.nt"), (
+                "<http://example.com/a> <http://example.com/p> \"a\" .\n"
+                        + "<http://example.com/b> <http://example.com/p> \"b\" .\n").getBytes(StandardCharsets.UTF_8));
+        LiveVersions liveVersions = new LiveVersions(new EntityCache(100));
+        BulkLoader loader = new BulkLoader(folder.getRoot().toPath(), liveVersions, null, 1,
+                LoggerFactory.getLogger(TestBulkLoader.class));
+        loader.load("data.nt", 0, TIME, repository.connection(1));
+
+        assertFalse("The index keeps the published versions of the aborted load", liveVersions.abort(1));
+        assertTrue(liveVersions.abort(1));
+    }
+
+    @Test
+    public void rejectsALoadBeyondTheLimitOfTheLiveIndex() throws IOException {
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 25; i++)
+            data.append("<http://example.com/s").append(i).append("> <http://example.com/p> \"").append(i).append("\" .\n");
+        Files.write(folder.getRoot().toPath().resolve("data.nt"), data.toString().getBytes(StandardCharsets.UTF_8));
+        LiveVersions liveVersions = new LiveVersions(new EntityCache(100));
+        liveVersions.load(repository.entities(), repository.statements(), 15);
+        BulkLoader loader = new BulkLoader(folder.getRoot().toPath(), liveVersions, null, 10,
+                LoggerFactory.getLogger(TestBulkLoader.class));
+        try {
+            loader.load("data.nt", 0, TIME, repository.connection(1));
+            fail("The load must not grow the live index beyond its limit");
+        } catch (PluginException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("liveIndexLimit"));
+        }
+        assertEquals("The second chunk was rejected", 10, liveVersions.size());
+    }
+
+    @Test(expected = PluginException.class)
+    public void refusesFilesOutsideTheLoadDirectory() throws IOException {
+        Path outside = folder.newFolder("outside").toPath().resolve("data.nt");
+        Files.write(outside, new byte[0]);
+        new BulkLoader(folder.newFolder("import").toPath(), LoggerFactory.getLogger(TestBulkLoader.class))
+                .load("../outside/data.nt", 0, TIME, repository.connection(1));
+    }
+
+    @Test(expected = PluginException.class)
+    public void isDisabledWithoutLoadDirectory() {
+        new BulkLoader(null, LoggerFactory.getLogger(TestBulkLoader.class)).load("data.nt", 0, TIME, repository.connection(1));
+    }
+}
@@ -0,0 +1,146 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests appending to, rolling, recovering and tailing the change log.
+ */
+public class TestChangeLog {
+
+    private static final ValueFactory vf = SimpleValueFactory.getInstance();
+    private static final Logger logger = LoggerFactory.getLogger(TestChangeLog.class);
+    // 2022-03-28T10:00:00.000+00:00
+    private static final long T1 = 1648461600000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final InMemoryRepository repository = new InMemoryRepository();
+    private final EntityCache entityCache = new EntityCache(100);
+
+    private long triple(int i) {
+        return repository.put(vf.createTriple(vf.createIRI("http://example.com/s" + i), vf.createIRI("http://example.com/p"),
+                vf.createLiteral(i)));
+    }
+
+    private ChangeLog open(long segmentSize) throws IOException {
+        return ChangeLog.open(new File(folder.getRoot(), "changes"), segmentSize, entityCache, logger);
+    }
+
+    private void append(ChangeLog changeLog, int from, int to) {
+        for (int i = from; i < to; i++)
+            changeLog.append(i % 2 == 0 ? TemporalIndex.OPENED : TemporalIndex.CLOSED, 0, T1 + i, triple(i),
+                    repository.entities());
+        changeLog.flush();
+    }
+
+    /**
+     * @return the lines of all events from the offset on
+     */
+    private static List<String> tail(ChangeLog changeLog, long offset) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (offset < changeLog.nextOffset())
+            offset = changeLog.transferTo(offset, Channels.newChannel(out));
+        String lines = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        return lines.isEmpty() ? Arrays.asList() : Arrays.asList(lines.split("\n"));
+    }
+
+    @Test
+    public void eventsAreNQuadsStarLinesReadFromAnOffset() throws IOException {
+        try (ChangeLog changeLog = open(1 << 20)) {
+            long graph = repository.put(vf.createIRI("http://example.com/g"));
+            changeLog.append(TemporalIndex.OPENED, graph, T1, triple(1), repository.entities());
+            changeLog.append(TemporalIndex.CLOSED, 0, T1 + 1, triple(2), repository.entities());
+            assertEquals("Events are visible once flushed", 0, changeLog.nextOffset());
+            changeLog.flush();
+            assertEquals(2, changeLog.nextOffset());
+
+            assertEquals(Arrays.asList(
+                    "<<<http://example.com/s1> <http://example.com/p> \"1\"^^<http://www.w3.org/2001/XMLSchema#int>>> "
+                            + "<" + VERS.VALID_FROM + "> \"2022-03-28T10:00:00.000+00:00\"^^<http://www.w3.org/2001/XMLSchema#dateTime> "
+                            + "<http://example.com/g> .",
+                    "<<<http://example.com/s2> <http://example.com/p> \"2\"^^<http://www.w3.org/2001/XMLSchema#int>>> "
+                            + "<" + VERS.VALID_UNTIL + "> \"2022-03-28T10:00:00.001+00:00\"^^<http://www.w3.org/2001/XMLSchema#dateTime> ."),
+                    tail(changeLog, 0));
+            assertEquals(1, tail(changeLog, 1).size());
+            assertTrue(tail(changeLog, 2).isEmpty());
+            try {
+                changeLog.transferTo(3, Channels.newChannel(new ByteArrayOutputStream()));
+                fail("There is no event at offset 3 yet");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("3"));
+            }
+        }
+    }
+
+    @Test
+    public void segmentsAreRolledAndReadInOrder() throws IOException {
+        try (ChangeLog changeLog = open(1000)) {
+            append(changeLog, 0, 50);
+            assertEquals(50, changeLog.nextOffset());
+            List<String> lines = tail(changeLog, 0);
+            assertEquals(50, lines.size());
+            for (int i = 0; i < 50; i++)
+                assertTrue(lines.get(i), lines.get(i).startsWith("<<<http://example.com/s" + i + ">"));
+            assertEquals(lines.subList(37, 50), tail(changeLog, 37));
+        }
+        String[] logs = new File(folder.getRoot(), "changes").list((dir, name) -> name.endsWith(".log"));
+        assertTrue(Arrays.toString(logs), logs.length > 5);
+        assertTrue(Arrays.asList(logs).contains("00000000000000000000.log"));
+    }
+
+    @Test
+    public void reopenedLogContinuesAfterTheLastCompleteEvent() throws IOException {
+        try (ChangeLog changeLog = open(1000)) {
+            append(changeLog, 0, 20);
+        }
+        File[] logs = new File(folder.getRoot(), "changes").listFiles((dir, name) -> name.endsWith(".log"));
+        Arrays.sort(logs);
+        try (FileOutputStream out = new FileOutputStream(logs[logs.length - 1], true)) {
+            out.write("<<<http://example.com/torn".getBytes(StandardCharsets.UTF_8));
+        }
+
+        try (ChangeLog changeLog = open(1000)) {
+            assertEquals(20, changeLog.nextOffset());
+            append(changeLog, 20, 25);
+            List<String> lines = tail(changeLog, 0);
+            assertEquals(25, lines.size());
+            assertTrue(lines.get(20), lines.get(20).startsWith("<<<http://example.com/s20>"));
+            assertEquals(lines.subList(19, 25), tail(changeLog, 19));
+        }
+    }
+
+    @Test
+    public void completedTransactionsAreLogged() throws IOException {
+        try (ChangeLog changeLog = open(1 << 20)) {
+            LiveVersions liveVersions = new LiveVersions(entityCache, null, changeLog);
+            liveVersions.opened(1, 1, 2, 3, 0, 99, triple(1), T1);
+            liveVersions.closed(1, 4, 2, 5, 0, 98, triple(2), T1);
+            liveVersions.opened(2, 6, 2, 7, 0, 97, triple(3), T1);
+            liveVersions.abort(2);
+            assertEquals(0, changeLog.nextOffset());
+            liveVersions.complete(1, repository.entities());
+            List<String> lines = tail(changeLog, 0);
+            assertEquals(2, lines.size());
+            assertTrue(lines.get(0), lines.get(0).contains(VERS.VALID_FROM.stringValue()));
+            assertTrue(lines.get(1), lines.get(1).contains(VERS.VALID_UNTIL.stringValue()));
+        }
+    }
+}
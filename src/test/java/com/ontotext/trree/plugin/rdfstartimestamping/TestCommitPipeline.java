@@ -0,0 +1,192 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the backpressure policies and the draining shutdown of the commit pipeline. A single worker is held
+ * on a latch so that the queue fills up deterministically.
+ */
+public class TestCommitPipeline {
+
+    private static final Logger logger = LoggerFactory.getLogger(TestCommitPipeline.class);
+
+    private final List<String> written = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private class Write implements CommitPipeline.Task {
+        final String label;
+
+        Write(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public void run() {
+            written.add(label);
+        }
+
+        @Override
+        public CommitPipeline.Task coalesce(CommitPipeline.Task later) {
+            return new Write(label + "+" + ((Write) later).label);
+        }
+    }
+
+    private CommitPipeline pipeline(CommitPipeline.BackpressurePolicy policy) {
+        return new CommitPipeline(1, 2, policy, 0, 10_000, logger);
+    }
+
+    private void blockWorker(CommitPipeline pipeline) {
+        pipeline.submit(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    @Test
+    public void shedDropsWhenFull() {
+        CommitPipeline pipeline = pipeline(CommitPipeline.BackpressurePolicy.SHED);
+        blockWorker(pipeline);
+        for (int i = 0; i < 5; i++)
+            pipeline.submit(new Write("t" + i));
+        release.countDown();
+        pipeline.shutdown();
+        assertEquals(3, pipeline.getShed());
+        assertEquals(2, written.size());
+        assertEquals(6 - 3, pipeline.getCompleted());
+    }
+
+    @Test
+    public void coalesceMergesIntoLastQueuedTask() {
+        CommitPipeline pipeline = pipeline(CommitPipeline.BackpressurePolicy.COALESCE);
+        blockWorker(pipeline);
+        for (int i = 0; i < 5; i++)
+            pipeline.submit(new Write("t" + i));
+        release.countDown();
+        pipeline.shutdown();
+        assertEquals(3, pipeline.getCoalesced());
+        assertEquals(2, pipeline.getMaxQueueDepth());
+        assertEquals(Arrays.asList("t0", "t1+t2+t3+t4"), written);
+    }
+
+    @Test
+    public void blockWaitsForRoomAndShutdownDrains() throws InterruptedException {
+        CommitPipeline pipeline = pipeline(CommitPipeline.BackpressurePolicy.BLOCK);
+        blockWorker(pipeline);
+        pipeline.submit(new Write("t0"));
+        pipeline.submit(new Write("t1"));
+        Thread committer = new Thread(() -> pipeline.submit(new Write("t2")));
+        committer.start();
+        committer.join(200);
+        assertTrue("The committing thread must wait while the queue is full", committer.isAlive());
+        release.countDown();
+        committer.join();
+        pipeline.shutdown();
+        assertEquals(Arrays.asList("t0", "t1", "t2"), written);
+        assertEquals(0, pipeline.getQueueDepth());
+        assertEquals(0, pipeline.getFailed());
+    }
+
+    @Test
+    public void tasksWithTheSameLaneKeyRunInSubmissionOrder() throws InterruptedException {
+        CommitPipeline pipeline = new CommitPipeline(4, 8, CommitPipeline.BackpressurePolicy.BLOCK, 0, 10_000, logger);
+        int producers = 8, tasksPerProducer = 2000, keys = 16;
+        // last sequence number seen per key and producer
+        int[][] lastSeen = new int[keys][producers];
+        AtomicInteger outOfOrder = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads.add(new Thread(() -> {
+                for (int seq = 1; seq <= tasksPerProducer; seq++) {
+                    int key = seq % keys, current = seq;
+                    pipeline.submit(new CommitPipeline.Task() {
+                        @Override
+                        public long laneKey() {
+                            return key;
+                        }
+
+                        @Override
+                        public void run() {
+                            // only the key's lane thread touches this slot
+                            if (lastSeen[key][producer] >= current)
+                                outOfOrder.incrementAndGet();
+                            lastSeen[key][producer] = current;
+                        }
+                    });
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        pipeline.shutdown();
+        assertEquals(0, outOfOrder.get());
+        assertEquals(producers * tasksPerProducer, pipeline.getCompleted());
+    }
+
+    @Test
+    public void failuresAreCountedAndDoNotStopTheWorker() {
+        CommitPipeline pipeline = pipeline(CommitPipeline.BackpressurePolicy.BLOCK);
+        pipeline.submit(() -> {
+            throw new IllegalStateException("endpoint down");
+        });
+        pipeline.submit(new Write("after"));
+        pipeline.shutdown();
+        assertEquals(1, pipeline.getFailed());
+        assertEquals(Collections.singletonList("after"), written);
+    }
+
+    @Test
+    public void listenersAreToldOfShedAndFailedTasks() {
+        List<String> givenUp = Collections.synchronizedList(new ArrayList<>());
+        CommitPipeline shedding = pipeline(CommitPipeline.BackpressurePolicy.SHED);
+        blockWorker(shedding);
+        for (int i = 0; i < 3; i++) {
+            String label = "t" + i;
+            shedding.submit(new Write(label), new CommitPipeline.Listener() {
+                @Override
+                public void completed() {
+                }
+
+                @Override
+                public void givenUp(boolean shed) {
+                    givenUp.add(label + (shed ? " shed" : " failed"));
+                }
+            });
+        }
+        release.countDown();
+        shedding.shutdown();
+
+        CommitPipeline failing = pipeline(CommitPipeline.BackpressurePolicy.BLOCK);
+        failing.submit(() -> {
+            throw new IllegalStateException("endpoint down");
+        }, new CommitPipeline.Listener() {
+            @Override
+            public void completed() {
+                givenUp.add("completed");
+            }
+
+            @Override
+            public void givenUp(boolean shed) {
+                givenUp.add("t3" + (shed ? " shed" : " failed"));
+            }
+        });
+        failing.shutdown();
+        assertEquals(Arrays.asList("t2 shed", "t3 failed"), givenUp);
+    }
+}
@@ -0,0 +1,171 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.InitReason;
+import com.ontotext.trree.sdk.PluginConnection;
+import org.eclipse.rdf4j.model.Triple;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Stress test driving the plugin's listener callbacks from many threads at once, each thread running its own
+ * transactions against an in-memory repository. Every inserted triple has to end up as exactly one live version,
+ * no matter how the transactions interleave. Reports the throughput.
+ */
+public class TestConcurrentCommits {
+
+    private static final ValueFactory vf = SimpleValueFactory.getInstance();
+    private static final int THREADS = 16;
+    private static final int TRANSACTIONS_PER_THREAD = 200;
+    private static final int STATEMENTS_PER_TRANSACTION = 10;
+
+    private final InMemoryRepository repository = new InMemoryRepository();
+    private final AtomicLong transactionIds = new AtomicLong();
+    private RDFStarTimestampingPlugin plugin;
+
+    @Before
+    public void initialize() {
+        plugin = new RDFStarTimestampingPlugin();
+        plugin.setLogger(LoggerFactory.getLogger(TestConcurrentCommits.class));
+        plugin.initialize(InitReason.DEFAULT, repository.connection(0));
+    }
+
+    @After
+    public void shutdown() {
+        plugin.shutdown(null);
+    }
+
+    @Test
+    public void concurrentTransactionsKeepTheirOwnChanges() throws InterruptedException {
+        long p = repository.put(vf.createIRI("http://example.com/p"));
+        long[] contexts = {0, repository.put(vf.createIRI("http://example.com/g1")), repository.put(vf.createIRI("http://example.com/g2"))};
+        List<Throwable> failures = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int tx = 0; tx < TRANSACTIONS_PER_THREAD; tx++)
+                        commit(thread, tx, p, contexts[tx % contexts.length]);
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }));
+        }
+
+        long start = System.nanoTime();
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertTrue("Transactions failed: " + failures, failures.isEmpty());
+
+        int expected = THREADS * TRANSACTIONS_PER_THREAD * STATEMENTS_PER_TRANSACTION;
+        System.out.printf("%d concurrent transactions with %d statements in %.2f s: %.0f transactions/s, %.0f statements/s%n",
+                THREADS * TRANSACTIONS_PER_THREAD, expected, seconds,
+                THREADS * TRANSACTIONS_PER_THREAD / seconds, expected / seconds);
+
+        assertTrue("Inserted triples must be replaced by their versions", repository.find(0, p, 0, null).isEmpty());
+        long validUntil = repository.resolve(VERS.VALID_UNTIL);
+        long openEnd = repository.resolve(VERS.OPEN_END);
+        List<long[]> versions = repository.find(0, validUntil, openEnd, null);
+        assertEquals(expected, versions.size());
+        Set<Value> versioned = new HashSet<>();
+        for (long[] version : versions)
+            assertTrue("One live version per triple", versioned.add(((Triple) repository.value(version[0])).getSubject()));
+    }
+
+    @Test
+    public void coalescedSparqlUpdatesKeepTheCommitOrderOfEachContext() throws InterruptedException {
+        long p = repository.put(vf.createIRI("http://example.com/p"));
+        LiveVersions liveVersions = new LiveVersions(new EntityCache(10_000));
+        // the context and commit number of each transaction's segment, and the commit numbers sent per context
+        Map<SparqlTimestampWriter.Segment, long[]> submitted = Collections.synchronizedMap(new IdentityHashMap<>());
+        Map<Long, List<Long>> sent = new ConcurrentHashMap<>();
+        SparqlTimestampWriter writer = new SparqlTimestampWriter("http://localhost:7200/repositories/test", liveVersions,
+                new EntityCache(10_000), LoggerFactory.getLogger(TestConcurrentCommits.class)) {
+            @Override
+            void send(List<Segment> segments) {
+                for (Segment segment : segments) {
+                    long[] commit = submitted.get(segment);
+                    sent.computeIfAbsent(commit[0], c -> new ArrayList<>()).add(commit[1]);
+                }
+            }
+        };
+        // few lanes and a short queue, so that most updates are coalesced
+        CommitPipeline pipeline = new CommitPipeline(2, 2, CommitPipeline.BackpressurePolicy.COALESCE, 0, 30_000,
+                LoggerFactory.getLogger(TestConcurrentCommits.class));
+        int commits = 500;
+        OffsetDateTime time = OffsetDateTime.parse("2022-03-28T12:00:00.000+02:00");
+        List<Thread> threads = new ArrayList<>();
+        AtomicInteger subjects = new AtomicInteger();
+        for (int t = 0; t < THREADS; t++) {
+            long context = repository.put(vf.createIRI("http://example.com/g" + t));
+            long object = repository.put(vf.createLiteral(t));
+            threads.add(new Thread(() -> {
+                for (int commit = 0; commit < commits; commit++) {
+                    long s = repository.put(vf.createIRI("http://example.com/s/" + subjects.incrementAndGet()));
+                    repository.add(s, p, object, context);
+                    QuadSet inserts = new QuadSet();
+                    inserts.add(s, p, object, context);
+                    long id = transactionIds.incrementAndGet();
+                    List<CommitPipeline.Task> tasks = writer.write(new TransactionBatch(id, time, inserts, new QuadSet()),
+                            repository.connection(id));
+                    liveVersions.complete(id, repository.entities());
+                    for (CommitPipeline.Task task : tasks) {
+                        submitted.put(((SparqlTimestampWriter.UpdateTask) task).segments.get(0), new long[]{context, commit});
+                        pipeline.submit(task);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        pipeline.shutdown();
+
+        assertTrue("Updates were coalesced", pipeline.getCoalesced() > 0);
+        assertEquals(THREADS, sent.size());
+        for (List<Long> order : sent.values()) {
+            assertEquals(commits, order.size());
+            for (int i = 0; i < commits; i++)
+                assertEquals("The updates of a context are sent in commit order", i, (long) order.get(i));
+        }
+    }
+
+    // A user transaction inserting fresh triples, as GraphDB would run it through the plugin's listeners
+    private void commit(int thread, int tx, long p, long context) {
+        PluginConnection connection = repository.connection(transactionIds.incrementAndGet());
+        plugin.transactionStarted(connection);
+        for (int i = 0; i < STATEMENTS_PER_TRANSACTION; i++) {
+            long s = repository.put(vf.createIRI("http://example.com/s/" + thread + "/" + tx + "/" + i));
+            long o = repository.put(vf.createLiteral(i));
+            repository.add(s, p, o, context);
+            plugin.statementAdded(s, p, o, context, true, connection);
+        }
+        plugin.transactionCommit(connection);
+        plugin.transactionCompleted(connection);
+    }
+}
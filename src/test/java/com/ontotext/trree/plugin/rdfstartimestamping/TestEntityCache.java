@@ -0,0 +1,65 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.Entities;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the CLOCK entity cache against an entity pool that decodes ID n to the IRI http://example.com/n.
+ */
+public class TestEntityCache {
+
+    private static final ValueFactory vf = SimpleValueFactory.getInstance();
+
+    private final AtomicInteger decoded = new AtomicInteger();
+
+    private final Entities entities = (Entities) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[]{Entities.class}, (proxy, method, args) -> {
+                if (!method.getName().equals("get"))
+                    throw new UnsupportedOperationException(method.getName());
+                decoded.incrementAndGet();
+                return vf.createIRI("http://example.com/" + args[0]);
+            });
+
+    @Test
+    public void decodesOncePerDistinctEntity() {
+        EntityCache cache = new EntityCache(10);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(vf.createIRI("http://example.com/1"), cache.get(1, entities));
+            assertEquals("<http://example.com/2>", cache.ntriples(2, entities));
+        }
+        assertNull("ID 0 is the default graph", cache.get(0, entities));
+        assertEquals(2, decoded.get());
+        assertEquals(2, cache.getMisses());
+        assertEquals(8, cache.getHits());
+    }
+
+    @Test
+    public void staysBoundedAndCorrectUnderEviction() {
+        EntityCache cache = new EntityCache(64);
+        Random random = new Random(42);
+        for (int i = 0; i < 200_000; i++) {
+            // a few hot IDs and a long tail
+            long id = random.nextInt(4) == 0 ? 1 + random.nextInt(100_000) : 1 + random.nextInt(16);
+            assertEquals("<http://example.com/" + id + ">", cache.ntriples(id, entities));
+        }
+        assertEquals(64, cache.size());
+        assertTrue("Hot entities should mostly be served from the cache", cache.getHits() > cache.getMisses());
+    }
+
+    @Test
+    public void clearDropsEntries() {
+        EntityCache cache = new EntityCache(4);
+        cache.get(7, entities);
+        cache.clear();
+        cache.get(7, entities);
+        assertEquals(2, decoded.get());
+    }
+}
@@ -0,0 +1,130 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.XSD;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.algebra.TupleExpr;
+import org.eclipse.rdf4j.query.impl.MapBindingSet;
+import org.eclipse.rdf4j.query.parser.sparql.SPARQLParser;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests which time travel queries are cached and when their results are dropped.
+ */
+public class TestHistoricalResultCache {
+
+    private static final ValueFactory vf = SimpleValueFactory.getInstance();
+    private static final Logger logger = LoggerFactory.getLogger(TestHistoricalResultCache.class);
+    private static final Literal T1 = vf.createLiteral("2022-03-28T12:00:00.000+02:00", XSD.DATETIME);
+    private static final long MILLIS = TemporalIndex.millis(T1);
+
+    private final InMemoryRepository repository = new InMemoryRepository();
+
+    private static TupleExpr parse(String query) {
+        return new SPARQLParser().parseQuery(query, null).getTupleExpr();
+    }
+
+    private static String key(String query, long instant) {
+        return HistoricalResultCache.key(parse(query), null, true, new MapBindingSet(), instant);
+    }
+
+    private boolean isSnapshot(String query, String... versionedGraphs) {
+        TupleExpr expr = parse(query);
+        new TimeTravelRewriter(new VersionedContexts(Arrays.asList(versionedGraphs), null,
+                new StatementFilter(new long[0], null), repository.entities(), logger), 0).rewrite(expr, T1);
+        return HistoricalResultCache.isSnapshot(expr);
+    }
+
+    /**
+     * Evaluates a query through the cache.
+     *
+     * @return the rows served from the cache, null if the query had to be evaluated
+     */
+    private static List<BindingSet> evaluate(HistoricalResultCache cache, String key, long instant, int rows) {
+        HistoricalResultCache.Evaluation evaluation = cache.begin(key, instant);
+        if (evaluation.isCached()) {
+            List<BindingSet> cached = new ArrayList<>();
+            for (Iterator<BindingSet> iter = cache.finish(evaluation); iter.hasNext(); )
+                cached.add(iter.next());
+            return cached;
+        }
+        for (int i = 0; i < rows; i++) {
+            MapBindingSet row = new MapBindingSet();
+            row.addBinding("i", vf.createLiteral(i));
+            cache.record(evaluation, row);
+        }
+        assertFalse(cache.finish(evaluation).hasNext());
+        return null;
+    }
+
+    @Test
+    public void queriesAreKeyedByAlgebraAndInstant() {
+        assertEquals(key("select * { ?s ?p ?o }", MILLIS), key("SELECT *\nWHERE { ?s ?p ?o . }", MILLIS));
+        assertNotEquals(key("select * { ?s ?p ?o }", MILLIS), key("select * { ?s ?p ?o }", MILLIS + 1));
+        assertNotEquals(key("select * { ?s ?p ?o }", MILLIS), key("select * { ?s ?p 1 }", MILLIS));
+    }
+
+    @Test
+    public void onlyQueriesOverSnapshotsAreCached() {
+        assertTrue(isSnapshot("select * { ?s ?p ?o . filter(?o > 1) }", VersionedContexts.ALL));
+        assertFalse(isSnapshot("select * { ?s ?p ?o bind(now() as ?n) }", VersionedContexts.ALL));
+        assertFalse(isSnapshot("select * { ?s ?p ?o bind(bnode() as ?b) }", VersionedContexts.ALL));
+        assertFalse("The version metadata changes when versions are closed",
+                isSnapshot("select * { ?t <" + VERS.VALID_UNTIL + "> ?until }", VersionedContexts.ALL));
+        assertFalse("Unversioned graphs change at any time",
+                isSnapshot("select * { graph <http://example.com/g2> { ?s ?p ?o } }", "http://example.com/g1"));
+    }
+
+    @Test
+    public void resultsAreServedUntilAnEarlierChange() {
+        HistoricalResultCache cache = new HistoricalResultCache(100);
+        String key = key("select * { ?s ?p ?o }", MILLIS);
+        assertNull(evaluate(cache, key, MILLIS, 3));
+        assertEquals(3, evaluate(cache, key, MILLIS, 0).size());
+        assertEquals(vf.createLiteral(2), evaluate(cache, key, MILLIS, 0).get(2).getValue("i"));
+
+        cache.invalidate(MILLIS + 1);
+        assertNotNull("A later change leaves the snapshot alone", evaluate(cache, key, MILLIS, 0));
+        cache.invalidate(MILLIS);
+        assertNull(evaluate(cache, key, MILLIS, 3));
+        assertTrue(cache.toString(), cache.toString().contains("3 hits, 2 misses, 1 invalidated"));
+    }
+
+    @Test
+    public void resultsOfAnEvaluationAcrossAChangeAreNotKept() {
+        HistoricalResultCache cache = new HistoricalResultCache(100);
+        HistoricalResultCache.Evaluation evaluation = cache.begin("q", MILLIS);
+        cache.record(evaluation, new MapBindingSet());
+        cache.invalidate(MILLIS - 1);
+        cache.finish(evaluation);
+        assertFalse(cache.begin("q", MILLIS).isCached());
+    }
+
+    @Test
+    public void leastRecentlyUsedResultsAreEvictedBeyondTheRowLimit() {
+        HistoricalResultCache cache = new HistoricalResultCache(10);
+        evaluate(cache, "a", MILLIS, 4);
+        evaluate(cache, "b", MILLIS, 4);
+        evaluate(cache, "a", MILLIS, 0);
+        evaluate(cache, "c", MILLIS, 4);
+        assertTrue(cache.begin("a", MILLIS).isCached());
+        assertFalse(cache.begin("b", MILLIS).isCached());
+        assertTrue(cache.begin("c", MILLIS).isCached());
+
+        evaluate(cache, "large", MILLIS, 11);
+        assertFalse("Results beyond the limit are not cached", cache.begin("large", MILLIS).isCached());
+        cache.invalidate(0);
+        assertTrue(cache.toString(), cache.toString().contains("0 queries, 0/10 rows"));
+    }
+}
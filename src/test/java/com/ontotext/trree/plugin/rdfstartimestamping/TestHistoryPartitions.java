@@ -0,0 +1,124 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.stream.LongStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the history graphs closed versions are moved to and the temporal index built from them.
+ */
+public class TestHistoryPartitions {
+
+    private static final ValueFactory vf = SimpleValueFactory.getInstance();
+    private static final Logger logger = LoggerFactory.getLogger(TestHistoryPartitions.class);
+    private static final OffsetDateTime T1 = OffsetDateTime.parse("2022-03-28T12:00:00.000+02:00");
+    // still March 31 at its own offset, in April in UTC
+    private static final OffsetDateTime T2 = OffsetDateTime.parse("2022-03-31T23:00:00.000-02:00");
+    private static final IRI GRAPH = vf.createIRI("http://example.com/g?x=1");
+
+    private final InMemoryRepository repository = new InMemoryRepository();
+    private final HistoryPartitions monthly = new HistoryPartitions(HistoryPartitions.Period.MONTH);
+    private final LiveVersions liveVersions = new LiveVersions(new EntityCache(100));
+    private final InProcessTimestampWriter writer = new InProcessTimestampWriter(liveVersions, monthly, logger);
+    private final long p = repository.put(vf.createIRI("http://example.com/p"));
+    private long transactionId;
+
+    private long[] insert(String subject, long context) {
+        long s = repository.put(vf.createIRI("http://example.com/" + subject));
+        long o = repository.put(vf.createLiteral(subject));
+        repository.add(s, p, o, context);
+        return new long[]{s, p, o, context};
+    }
+
+    private void commit(OffsetDateTime time, long[][] inserts, long[][] deletes) {
+        QuadSet insertQuads = new QuadSet(), deleteQuads = new QuadSet();
+        for (long[] q : inserts)
+            insertQuads.add(q[0], q[1], q[2], q[3]);
+        for (long[] q : deletes)
+            deleteQuads.add(q[0], q[1], q[2], q[3]);
+        long id = ++transactionId;
+        assertTrue(writer.write(new TransactionBatch(id, time, insertQuads, deleteQuads), repository.connection(id)).isEmpty());
+        liveVersions.complete(id, repository.entities());
+    }
+
+    private List<long[]> versions(Long context) {
+        return repository.find(0, repository.resolve(VERS.VALID_UNTIL), 0, context);
+    }
+
+    @Test
+    public void periodsAreNamedAndStartInUtc() {
+        long t2 = T2.toInstant().toEpochMilli();
+        assertEquals("2022", HistoryPartitions.Period.YEAR.name(t2));
+        assertEquals("2022-03", HistoryPartitions.Period.MONTH.name(T1.toInstant().toEpochMilli()));
+        assertEquals("2022-04-01", HistoryPartitions.Period.DAY.name(t2));
+        assertEquals(OffsetDateTime.parse("2022-04-01T00:00:00Z").toInstant().toEpochMilli(), HistoryPartitions.Period.MONTH.start(t2));
+        assertEquals(Long.MIN_VALUE, HistoryPartitions.Period.NONE.start(t2));
+        assertEquals(Long.MIN_VALUE, HistoryPartitions.Period.YEAR.start(Long.MIN_VALUE));
+        assertNull(HistoryPartitions.none().graph(GRAPH, t2));
+        assertNull("Blank node graphs are not partitioned", monthly.graph(vf.createBNode(), t2));
+        assertEquals(vf.createIRI(VERS.NAMESPACE + "history/2022-04"), monthly.graph(null, t2));
+        assertEquals(vf.createIRI(VERS.NAMESPACE + "history/2022-04/http%3A%2F%2Fexample.com%2Fg%3Fx%3D1"), monthly.graph(GRAPH, t2));
+    }
+
+    @Test
+    public void closedVersionsMoveToTheHistoryGraphOfTheirPeriod() {
+        long g = repository.put(GRAPH);
+        long[] a = insert("a", 0), b = insert("b", 0), c = insert("c", g);
+        commit(T1, new long[][]{a, b, c}, new long[0][]);
+        commit(T2, new long[0][], new long[][]{a, c});
+
+        assertEquals("Only the live version is left in the default graph", 1, versions(0L).size());
+        assertTrue(versions(g).isEmpty());
+        long history = repository.resolve(monthly.graph(null, T2.toInstant().toEpochMilli()));
+        long graphHistory = repository.resolve(monthly.graph(GRAPH, T2.toInstant().toEpochMilli()));
+        assertEquals(1, versions(history).size());
+        assertEquals(repository.resolve(VERS.timestamp(T2)), versions(graphHistory).get(0)[2]);
+        assertEquals(0, monthly.original(history, repository.entities()));
+        assertEquals(g, monthly.original(graphHistory, repository.entities()));
+        assertEquals(g, monthly.original(g, repository.entities()));
+    }
+
+    @Test
+    public void temporalIndexFilesHistoryUnderTheVersionedGraph() throws IOException {
+        long g = repository.put(GRAPH);
+        long[] a = insert("a", 0), c = insert("c", g);
+        commit(T1, new long[][]{a, c}, new long[0][]);
+        commit(T2, new long[0][], new long[][]{a, c});
+
+        TemporalIndex index = new TemporalIndex(null, monthly, logger);
+        assertEquals(2, index.rebuild(repository.entities(), repository.statements()));
+        assertEquals(0, index.live());
+        assertEquals(2, index.historyPartitions());
+        assertArrayEquals(new long[]{0, g}, LongStream.of(index.contexts()).sorted().toArray());
+        long t1 = T1.toInstant().toEpochMilli(), t2 = T2.toInstant().toEpochMilli();
+        assertEquals(1, index.overlapping(g, t1, t1 + 1).length);
+        assertEquals(0, index.overlapping(g, t2, t2 + 1).length);
+    }
+
+    @Test
+    public void sparqlClosesInsertIntoTheHistoryGraph() {
+        long g = repository.put(GRAPH);
+        long[] c = insert("c", g);
+        commit(T1, new long[][]{c}, new long[0][]);
+        SparqlTimestampWriter sparql = new SparqlTimestampWriter("http://localhost:7200/repositories/test", liveVersions,
+                new EntityCache(100), monthly, logger);
+        QuadSet deletes = new QuadSet();
+        deletes.add(c[0], c[1], c[2], c[3]);
+
+        List<CommitPipeline.Task> tasks = sparql.write(new TransactionBatch(2, T2, new QuadSet(), deletes), repository.connection(2));
+        String update = sparql.render(((SparqlTimestampWriter.UpdateTask) tasks.get(0)).segments);
+        int delete = update.indexOf("delete data {"), insert = update.indexOf("insert data {");
+        assertTrue(update, update.substring(delete, insert).contains("graph <" + GRAPH + ">"));
+        assertTrue(update, update.substring(insert).contains("graph <" + monthly.graph(GRAPH, T2.toInstant().toEpochMilli()) + ">"));
+    }
+}
@@ -0,0 +1,72 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the compressed entity ID set against a {@link TreeSet}.
+ */
+public class TestIdBitmap {
+
+    @Test
+    public void addRemoveAndContains() {
+        IdBitmap bitmap = new IdBitmap();
+        assertTrue(bitmap.add(5));
+        assertFalse(bitmap.add(5));
+        assertTrue(bitmap.add(1L << 40));
+        assertTrue(bitmap.contains(5));
+        assertFalse(bitmap.contains(6));
+        assertEquals(2, bitmap.size());
+        assertArrayEquals(new long[]{5, 1L << 40}, bitmap.toArray());
+        assertTrue(bitmap.remove(5));
+        assertFalse(bitmap.remove(5));
+        assertTrue(bitmap.remove(1L << 40));
+        assertTrue(bitmap.isEmpty());
+        assertEquals(0, bitmap.toArray().length);
+    }
+
+    @Test
+    public void denseGroupsTurnIntoBitmapsAndBack() {
+        IdBitmap bitmap = new IdBitmap();
+        for (long id = 0; id < 65536; id++)
+            bitmap.add(id);
+        assertEquals(65536, bitmap.size());
+        assertTrue("A full group takes a bit per ID", bitmap.sizeInBytes() < 10_000);
+        for (long id = 0; id < 65536; id += 2)
+            bitmap.remove(id);
+        for (long id = 1; id < 65536 - 2 * 4096; id += 2)
+            bitmap.remove(id);
+        assertEquals(4096, bitmap.size());
+        for (long id = 65536 - 2 * 4096 + 1; id < 65536; id += 2)
+            assertTrue(bitmap.contains(id));
+        assertFalse(bitmap.contains(65536 - 2 * 4096 - 1));
+    }
+
+    @Test
+    public void behavesLikeASortedSetUnderRandomChanges() {
+        IdBitmap bitmap = new IdBitmap();
+        TreeSet<Long> expected = new TreeSet<>();
+        Random random = new Random(11);
+        for (int i = 0; i < 300_000; i++) {
+            // a few groups of varying density
+            long id = random.nextInt(4) * 100_000L + random.nextInt(i % 3 == 0 ? 60_000 : 9_000);
+            if (random.nextInt(3) > 0)
+                assertEquals(expected.add(id), bitmap.add(id));
+            else
+                assertEquals(expected.remove(id), bitmap.remove(id));
+        }
+        assertEquals(expected.size(), bitmap.size());
+        long[] ids = bitmap.toArray();
+        assertEquals(expected.size(), ids.length);
+        int i = 0;
+        for (long id : expected) {
+            assertEquals(id, ids[i++]);
+            assertTrue(bitmap.contains(id));
+        }
+        assertFalse(bitmap.contains(-1));
+    }
+}
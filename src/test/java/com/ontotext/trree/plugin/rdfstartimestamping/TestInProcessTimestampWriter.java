@@ -0,0 +1,75 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.eclipse.rdf4j.model.Triple;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.time.OffsetDateTime;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the versions the in-process writer creates in an in-memory repository.
+ */
+public class TestInProcessTimestampWriter {
+
+    private static final ValueFactory vf = SimpleValueFactory.getInstance();
+    private static final OffsetDateTime T1 = OffsetDateTime.parse("2022-03-28T12:00:00.000+02:00");
+    private static final OffsetDateTime T2 = OffsetDateTime.parse("2022-03-28T13:00:00.000+02:00");
+
+    private final InMemoryRepository repository = new InMemoryRepository();
+    private final InProcessTimestampWriter writer = new InProcessTimestampWriter(new EntityCache(100),
+            LoggerFactory.getLogger(TestInProcessTimestampWriter.class));
+    private final long p = repository.put(vf.createIRI("http://example.com/p"));
+
+    private long[] insert(String subject, long context) {
+        long s = repository.put(vf.createIRI("http://example.com/" + subject));
+        long o = repository.put(vf.createLiteral(subject));
+        repository.add(s, p, o, context);
+        return new long[]{s, p, o, context};
+    }
+
+    private void commit(OffsetDateTime time, long[][] inserts, long[][] deletes) {
+        QuadSet insertQuads = new QuadSet(), deleteQuads = new QuadSet();
+        for (long[] q : inserts)
+            insertQuads.add(q[0], q[1], q[2], q[3]);
+        for (long[] q : deletes)
+            deleteQuads.add(q[0], q[1], q[2], q[3]);
+        assertTrue(writer.write(new TransactionBatch(1, time, insertQuads, deleteQuads), repository.connection(1)).isEmpty());
+    }
+
+    private List<long[]> versions(Value validUntil) {
+        return repository.find(0, repository.resolve(VERS.VALID_UNTIL), repository.resolve(validUntil), null);
+    }
+
+    @Test
+    public void versionsOfATransactionShareOneTimestamp() {
+        long[][] inserts = {insert("a", 0), insert("b", 0), insert("c", 0)};
+        commit(T1, inserts, new long[0][]);
+
+        List<long[]> live = versions(VERS.OPEN_END);
+        assertEquals(3, live.size());
+        for (long[] version : live)
+            assertEquals(VERS.timestamp(T1), ((Triple) repository.value(version[0])).getObject());
+        for (long[] q : inserts)
+            assertFalse("The plain triple is replaced by its version", repository.contains(q[0], q[1], q[2], q[3]));
+    }
+
+    @Test
+    public void deleteClosesTheLiveVersionWithTheTransactionTimestamp() {
+        long[] a = insert("a", 0), b = insert("b", 0);
+        commit(T1, new long[][]{a, b}, new long[0][]);
+        commit(T2, new long[0][], new long[][]{a});
+
+        assertEquals(1, versions(VERS.OPEN_END).size());
+        List<long[]> closed = versions(VERS.timestamp(T2));
+        assertEquals(1, closed.size());
+        Triple version = (Triple) repository.value(closed.get(0)[0]);
+        assertEquals(repository.value(a[0]), ((Triple) version.getSubject()).getSubject());
+        assertEquals(VERS.timestamp(T1), version.getObject());
+    }
+}
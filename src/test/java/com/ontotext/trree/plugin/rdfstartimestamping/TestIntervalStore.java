@@ -0,0 +1,124 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests writing, committing, aborting and reopening version records.
+ */
+public class TestIntervalStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(TestIntervalStore.class);
+    // 2022-03-28T10:00:00.000+00:00
+    private static final long T1 = 1648461600000L;
+    private static final long T2 = T1 + 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private IntervalStore open() throws IOException {
+        return IntervalStore.open(new File(folder.getRoot(), "intervals"), logger);
+    }
+
+    private static List<long[]> records(IntervalStore store) {
+        List<long[]> records = new ArrayList<>();
+        store.forEach((record, s, p, o, c, from, until) -> records.add(new long[]{record, s, p, o, c, from, until}));
+        return records;
+    }
+
+    @Test
+    public void recordsAreVisibleToOtherTransactionsOnceCommitted() throws IOException {
+        try (IntervalStore store = open()) {
+            long record = store.open(1, 10, 11, 12, 0, T1);
+            assertEquals(1, record);
+            long[] values = new long[6];
+            assertTrue(store.read(1, record, values));
+            assertArrayEquals(new long[]{10, 11, 12, 0, T1, IntervalStore.OPEN}, values);
+            assertFalse(store.read(2, record, values));
+            assertTrue(records(store).isEmpty());
+
+            store.commit(1);
+            assertTrue(store.read(2, record, values));
+            store.close(3, record, T2);
+            assertTrue(store.read(2, record, values));
+            assertEquals("Pending closes are not seen by others", IntervalStore.OPEN, values[5]);
+            assertTrue(store.read(3, record, values));
+            assertEquals(T2, values[5]);
+            store.commit(3);
+            assertEquals(1, records(store).size());
+            assertEquals(T2, records(store).get(0)[6]);
+        }
+    }
+
+    @Test
+    public void abortVoidsOpenedAndReopensClosedRecords() throws IOException {
+        try (IntervalStore store = open()) {
+            long kept = store.open(1, 10, 11, 12, 0, T1);
+            store.commit(1);
+            long aborted = store.open(2, 20, 11, 22, 5, T2);
+            store.close(2, kept, T2);
+            store.abort(2);
+
+            long[] values = new long[6];
+            assertFalse(store.read(2, aborted, values));
+            assertTrue(store.read(0, kept, values));
+            assertEquals(IntervalStore.OPEN, values[5]);
+            assertEquals(1, records(store).size());
+            assertEquals("Void records keep their place", 2, store.size());
+        }
+    }
+
+    @Test
+    public void reopenedStoreKeepsTheRecords() throws IOException {
+        try (IntervalStore store = open()) {
+            for (int i = 1; i <= 100; i++)
+                store.open(1, i, 11, 12, 0, T1 + i);
+            store.close(1, 7, T2);
+            store.commit(1);
+        }
+        try (IntervalStore store = open()) {
+            assertEquals(100, store.size());
+            List<long[]> records = records(store);
+            assertEquals(100, records.size());
+            assertArrayEquals(new long[]{7, 7, 11, 12, 0, T1 + 7, T2}, records.get(6));
+            assertEquals(101, store.open(2, 101, 11, 12, 0, T2));
+            assertEquals("A header and 48 bytes per record", 16 + 101 * 48, store.sizeInBytes());
+        }
+    }
+
+    @Test
+    public void findsTheVersionOfAQuadByItsValidFrom() throws IOException {
+        long t3 = T2 + 1000;
+        try (IntervalStore store = open()) {
+            long first = store.open(1, 10, 11, 12, 0, T1);
+            // versions of other quads opened at the same time
+            for (int i = 0; i < 100; i++)
+                store.open(1, 100 + i, 11, 12, 0, T1);
+            store.commit(1);
+            store.close(2, first, T2);
+            long second = store.open(2, 10, 11, 12, 0, T2);
+            store.commit(2);
+            store.open(3, 10, 11, 12, 0, t3);
+            store.abort(3);
+
+            assertEquals(first, store.find(4, 10, 11, 12, 0, T1));
+            assertEquals(second, store.find(4, 10, 11, 12, 0, T2));
+            assertEquals("An aborted version is not found", 0, store.find(4, 10, 11, 12, 0, t3));
+            assertEquals("Another context", 0, store.find(4, 10, 11, 12, 5, T1));
+        }
+        try (IntervalStore store = open()) {
+            assertEquals("The chains are rebuilt on open", 1, store.find(4, 10, 11, 12, 0, T1));
+            assertEquals(102, store.find(4, 10, 11, 12, 0, T2));
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.StatementIterator;
+import org.eclipse.rdf4j.model.Triple;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the version records the interval writer creates and the statements they are exposed as.
+ */
+public class TestIntervalTimestampWriter {
+
+    private static final ValueFactory vf = SimpleValueFactory.getInstance();
+    private static final Logger logger = LoggerFactory.getLogger(TestIntervalTimestampWriter.class);
+    private static final OffsetDateTime T1 = OffsetDateTime.parse("2022-03-28T12:00:00.000+02:00");
+    private static final OffsetDateTime T2 = OffsetDateTime.parse("2022-03-28T13:00:00.000+02:00");
+
+    private final InMemoryRepository repository = new InMemoryRepository();
+    private final EntityCache entityCache = new EntityCache(100);
+    private final TemporalIndex temporalIndex = new TemporalIndex(null, logger);
+    private final LiveVersions liveVersions = new LiveVersions(entityCache, temporalIndex, null);
+    private final IntervalStore store;
+    private final IntervalTimestampWriter writer;
+    private final IntervalView view;
+    private final long p = repository.put(vf.createIRI("http://example.com/p"));
+    private final long validUntil = repository.put(VERS.VALID_UNTIL);
+    private long transactionId;
+
+    public TestIntervalTimestampWriter() throws IOException {
+        store = IntervalStore.open(null, logger);
+        writer = new IntervalTimestampWriter(store, liveVersions, logger);
+        view = new IntervalView(store, temporalIndex, entityCache);
+    }
+
+    @After
+    public void close() throws IOException {
+        store.close();
+    }
+
+    private long[] insert(String subject, long context) {
+        long s = repository.put(vf.createIRI("http://example.com/" + subject));
+        long o = repository.put(vf.createLiteral(subject));
+        repository.add(s, p, o, context);
+        return new long[]{s, p, o, context};
+    }
+
+    private void commit(OffsetDateTime time, long[][] inserts, long[][] deletes) {
+        QuadSet insertQuads = new QuadSet(), deleteQuads = new QuadSet();
+        for (long[] q : inserts)
+            insertQuads.add(q[0], q[1], q[2], q[3]);
+        for (long[] q : deletes)
+            deleteQuads.add(q[0], q[1], q[2], q[3]);
+        long id = ++transactionId;
+        assertTrue(writer.write(new TransactionBatch(id, time, insertQuads, deleteQuads), repository.connection(id)).isEmpty());
+        store.commit(id);
+        liveVersions.complete(id, repository.entities());
+    }
+
+    /**
+     * @return subject and object of the valid_until statements the view returns
+     */
+    private List<Value[]> find(long subject, long object) {
+        List<Value[]> found = new ArrayList<>();
+        StatementIterator iter = view.find(subject, object, temporalIndex.contexts(), 0, validUntil, repository.entities());
+        while (iter.next()) {
+            assertEquals(validUntil, iter.predicate);
+            found.add(new Value[]{repository.value(iter.subject), repository.value(iter.object)});
+        }
+        return found;
+    }
+
+    private static Triple version(String subject, OffsetDateTime from) {
+        return vf.createTriple(vf.createTriple(vf.createIRI("http://example.com/" + subject), vf.createIRI("http://example.com/p"),
+                vf.createLiteral(subject)), VERS.VALID_FROM, VERS.timestamp(from));
+    }
+
+    @Test
+    public void versionsAreRecordsInsteadOfStatements() {
+        long[] a = insert("a", 0), b = insert("b", 0);
+        commit(T1, new long[][]{a, b}, new long[0][]);
+
+        assertEquals("The plain triples are removed and nothing else is stored", 0, repository.size());
+        assertEquals(2, store.size());
+        assertEquals(2, liveVersions.size());
+        long triple = repository.resolve(version("a", T1).getSubject());
+        assertNotEquals(0, triple);
+        assertTrue(liveVersions.isLiveTriple(0, triple));
+        assertEquals(triple, view.tripleId(liveVersions.find(0, a[0], a[1], a[2], a[3]), repository.entities()));
+    }
+
+    @Test
+    public void recordsAreExposedAsVersionStatements() {
+        long[] a = insert("a", 0), b = insert("b", 0);
+        commit(T1, new long[][]{a, b}, new long[0][]);
+        commit(T2, new long[0][], new long[][]{a});
+        long openEnd = repository.put(VERS.OPEN_END);
+
+        List<Value[]> live = find(0, openEnd);
+        assertEquals(1, live.size());
+        assertEquals("Timestamps are given in UTC", version("b", T1.withOffsetSameInstant(ZoneOffset.UTC)), live.get(0)[0]);
+        assertEquals(2, find(0, 0).size());
+
+        List<Value[]> closed = find(0, repository.put(VERS.timestamp(T2)));
+        assertEquals(1, closed.size());
+        assertEquals(version("a", T1.withOffsetSameInstant(ZoneOffset.UTC)), closed.get(0)[0]);
+
+        List<Value[]> bySubject = find(repository.put(version("a", T1)), 0);
+        assertEquals(1, bySubject.size());
+        assertEquals(T2.toInstant().toEpochMilli(), TemporalIndex.millis(bySubject.get(0)[1]));
+        assertTrue(find(repository.put(version("a", T2)), 0).isEmpty());
+        assertTrue(find(repository.put(version("b", T1)), repository.put(VERS.timestamp(T2))).isEmpty());
+    }
+
+    @Test
+    public void liveVersionsAndTemporalIndexAreRebuiltFromTheRecords() throws IOException {
+        long[] a = insert("a", 0), b = insert("b", 7);
+        commit(T1, new long[][]{a, b}, new long[0][]);
+        commit(T2, new long[0][], new long[][]{a});
+
+        LiveVersions reloaded = new LiveVersions(entityCache);
+        assertEquals(1, reloaded.load(store, repository.entities()));
+        assertNotEquals(0, reloaded.find(0, b[0], b[1], b[2], b[3]));
+        TemporalIndex rebuilt = new TemporalIndex(null, logger);
+        assertEquals(2, rebuilt.rebuild(store));
+        assertEquals(1, rebuilt.live());
+        assertArrayEquals(temporalIndex.overlapping(0, 0, Long.MAX_VALUE), rebuilt.overlapping(0, 0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void fewerEntitiesAndNoStatementsThanRdfStarVersions() {
+        InMemoryRepository rdf = new InMemoryRepository();
+        InProcessTimestampWriter rdfWriter = new InProcessTimestampWriter(new EntityCache(100), logger);
+        QuadSet rdfInserts = new QuadSet();
+        long[][] inserts = new long[100][];
+        for (int i = 0; i < inserts.length; i++) {
+            inserts[i] = insert("s" + i, 0);
+            Value s = repository.value(inserts[i][0]), o = repository.value(inserts[i][2]);
+            rdfInserts.add(rdf.put(s), rdf.put(repository.value(p)), rdf.put(o), 0);
+        }
+        long entitiesBefore = repository.entityCount(), rdfEntitiesBefore = rdf.entityCount();
+        commit(T1, inserts, new long[0][]);
+        rdfWriter.write(new TransactionBatch(1, T1, rdfInserts, new QuadSet()), rdf.connection(1));
+
+        assertEquals(0, repository.size());
+        assertEquals(100, rdf.size());
+        assertEquals("One embedded triple per version", 100, repository.entityCount() - entitiesBefore);
+        assertTrue(rdf.entityCount() - rdfEntitiesBefore > 200);
+    }
+}
@@ -0,0 +1,276 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.InitReason;
+import com.ontotext.trree.sdk.PluginConnection;
+import com.ontotext.trree.sdk.PluginException;
+import com.ontotext.trree.sdk.StatementIterator;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Triple;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the index of live versions, the bitmaps of live triples and the writers closing versions through it.
+ */
+public class TestLiveVersions {
+
+    private static final ValueFactory vf = SimpleValueFactory.getInstance();
+    private static final OffsetDateTime T1 = OffsetDateTime.parse("2022-03-28T12:00:00.000+02:00");
+    private static final OffsetDateTime T2 = OffsetDateTime.parse("2022-03-28T13:00:00.000+02:00");
+
+    private final InMemoryRepository repository = new InMemoryRepository();
+    private final EntityCache entityCache = new EntityCache(1000);
+    private final LiveVersions liveVersions = new LiveVersions(entityCache);
+    private final long p = repository.put(vf.createIRI("http://example.com/p"));
+
+    private long[] triple(int i) {
+        return new long[]{repository.put(vf.createIRI("http://example.com/s/" + i)), p, repository.put(vf.createLiteral(i)), 0};
+    }
+
+    private long openVersion(long[] q, OffsetDateTime time) {
+        Triple embedded = liveVersions.embeddedTriple(q[0], q[1], q[2], repository.entities());
+        long version = repository.put(vf.createTriple(embedded, VERS.VALID_FROM, VERS.timestamp(time)));
+        repository.add(version, repository.put(VERS.VALID_UNTIL), repository.put(VERS.OPEN_END), q[3]);
+        return version;
+    }
+
+    @Test
+    public void loadsTheLiveVersionsOfTheRepository() {
+        long[] a = triple(1), b = triple(2);
+        long version = openVersion(a, T1);
+        // a closed version is not live
+        long closed = openVersion(b, T1);
+        repository.remove(closed, repository.resolve(VERS.VALID_UNTIL), repository.resolve(VERS.OPEN_END), 0);
+        repository.add(closed, repository.resolve(VERS.VALID_UNTIL), repository.put(VERS.timestamp(T2)), 0);
+
+        assertEquals(1, liveVersions.load(repository.entities(), repository.statements()));
+        assertEquals(version, liveVersions.find(1, a[0], a[1], a[2], a[3]));
+        assertFalse(liveVersions.isLive(1, b[0], b[1], b[2], b[3]));
+    }
+
+    @Test
+    public void transactionsCannotGrowTheIndexBeyondItsLimit() {
+        long[] a = triple(1), b = triple(2), c = triple(3);
+        openVersion(a, T1);
+        openVersion(b, T1);
+        assertEquals("An index over the limit is still loaded", 2, liveVersions.load(repository.entities(), repository.statements(), 1));
+
+        liveVersions.opened(1, c[0], c[1], c[2], c[3], 99, 98, 1);
+        try {
+            liveVersions.checkLimit(1);
+            fail("The index must not grow beyond its limit");
+        } catch (PluginException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("liveIndexLimit"));
+        }
+        liveVersions.abort(1);
+
+        liveVersions.closed(2, a[0], a[1], a[2], a[3], 97, 96, 2);
+        liveVersions.checkLimit(2);
+        liveVersions.complete(2, repository.entities());
+        liveVersions.closed(3, b[0], b[1], b[2], b[3], 95, 94, 3);
+        liveVersions.opened(3, c[0], c[1], c[2], c[3], 99, 98, 3);
+        liveVersions.checkLimit(3);
+        liveVersions.complete(3, repository.entities());
+        assertEquals(1, liveVersions.size());
+    }
+
+    @Test
+    public void patternsOnlyMatchTheLiveVersionsOfTheirContexts() {
+        long[] a = triple(1), b = triple(2), c = triple(3);
+        long g = repository.put(vf.createIRI("http://example.com/g"));
+        b[3] = g;
+        c[3] = repository.put(vf.createIRI("http://example.com/h"));
+        liveVersions.opened(1, a[0], a[1], a[2], a[3], 91, 90, 1);
+        liveVersions.opened(1, b[0], b[1], b[2], b[3], 93, 92, 1);
+        liveVersions.opened(1, c[0], c[1], c[2], c[3], 95, 94, 1);
+        liveVersions.complete(1, repository.entities());
+
+        DeletePatterns patterns = new DeletePatterns();
+        patterns.add(0, 0, 0, g, 0);
+        patterns.add(a[0], 0, 0, 0, 0);
+        QuadSet matches = new QuadSet();
+        liveVersions.match(2, patterns, matches);
+        assertEquals(2, matches.size());
+        assertTrue(matches.contains(a[0], a[1], a[2], a[3]));
+        assertTrue(matches.contains(b[0], b[1], b[2], b[3]));
+
+        liveVersions.closed(2, b[0], b[1], b[2], b[3], 93, 92, 2);
+        liveVersions.complete(2, repository.entities());
+        matches = new QuadSet();
+        liveVersions.match(3, patterns, matches);
+        assertEquals(1, matches.size());
+        assertEquals(2, liveVersions.size());
+    }
+
+    @Test
+    public void stagedChangesAreVisibleToOtherTransactionsOnceCompleted() {
+        long[] a = triple(1);
+        liveVersions.opened(1, a[0], a[1], a[2], a[3], 99, 98, 1);
+        assertTrue(liveVersions.isLive(1, a[0], a[1], a[2], a[3]));
+        assertFalse(liveVersions.isLive(2, a[0], a[1], a[2], a[3]));
+        assertEquals("The time of the earliest change", 1, liveVersions.complete(1, repository.entities()));
+        assertEquals(99, liveVersions.find(2, a[0], a[1], a[2], a[3]));
+        assertEquals(Long.MAX_VALUE, liveVersions.complete(2, repository.entities()));
+
+        liveVersions.closed(3, a[0], a[1], a[2], a[3], 99, 98, 2);
+        assertFalse(liveVersions.isLive(3, a[0], a[1], a[2], a[3]));
+        liveVersions.abort(3);
+        assertTrue("An aborted close leaves the version live", liveVersions.isLive(4, a[0], a[1], a[2], a[3]));
+    }
+
+    @Test
+    public void deferredChangesAreRecordedOncePublishedAndRevertedIfGivenUp() {
+        TemporalIndex temporalIndex = new TemporalIndex(null, LoggerFactory.getLogger(TestLiveVersions.class));
+        LiveVersions deferredVersions = new LiveVersions(entityCache, temporalIndex, null);
+        long[] a = triple(1), b = triple(2);
+        deferredVersions.opened(1, a[0], a[1], a[2], 5, 99, 98, 1);
+        deferredVersions.opened(1, b[0], b[1], b[2], 6, 97, 96, 1);
+        LiveVersions.Deferred first = deferredVersions.completeDeferred(1, repository.entities());
+        assertTrue("Later transactions see the versions right away", deferredVersions.isLive(2, a[0], a[1], a[2], 5));
+        assertEquals(0, temporalIndex.size());
+
+        assertEquals(1, deferredVersions.publish(first, 5));
+        assertEquals(1, temporalIndex.size());
+        deferredVersions.revert(first, 6);
+        assertFalse(deferredVersions.isLive(2, b[0], b[1], b[2], 6));
+        assertFalse(deferredVersions.isLiveTriple(6, 96));
+        assertEquals(1, temporalIndex.size());
+
+        deferredVersions.closed(2, a[0], a[1], a[2], 5, 99, 98, 2);
+        deferredVersions.revert(deferredVersions.completeDeferred(2, repository.entities()), 5);
+        assertEquals("A close given up leaves the version live", 99, deferredVersions.find(3, a[0], a[1], a[2], 5));
+        assertTrue(deferredVersions.isLiveTriple(5, 98));
+        assertNull(deferredVersions.completeDeferred(3, repository.entities()));
+    }
+
+    @Test
+    public void liveTriplesFollowTheCompletedTransactions() {
+        long[] a = triple(1), b = triple(2);
+        long tripleA = liveVersions.tripleId(a[0], a[1], a[2], repository.entities());
+        long tripleB = liveVersions.tripleId(b[0], b[1], b[2], repository.entities());
+        openVersion(a, T1);
+        liveVersions.load(repository.entities(), repository.statements());
+        assertArrayEquals(new long[]{tripleA}, liveVersions.liveTriples(0));
+
+        liveVersions.opened(2, b[0], b[1], b[2], 5, 99, tripleB, 1);
+        liveVersions.closed(2, a[0], a[1], a[2], 0, 98, tripleA, 1);
+        assertTrue("Staged changes are not visible yet", liveVersions.isLiveTriple(0, tripleA));
+        liveVersions.complete(2, repository.entities());
+        assertFalse(liveVersions.isLiveTriple(0, tripleA));
+        assertArrayEquals(new long[]{5}, liveVersions.liveContexts());
+        assertTrue(liveVersions.isLiveTriple(5, tripleB));
+        assertEquals(1, liveVersions.liveTripleCount(5));
+
+        liveVersions.closed(3, b[0], b[1], b[2], 5, 99, tripleB, 2);
+        liveVersions.abort(3);
+        assertTrue(liveVersions.isLiveTriple(5, tripleB));
+    }
+
+    @Test
+    public void livePredicateEnumeratesAndChecksTheLiveTriples() {
+        RDFStarTimestampingPlugin plugin = new RDFStarTimestampingPlugin();
+        plugin.setLogger(LoggerFactory.getLogger(TestLiveVersions.class));
+        plugin.initialize(InitReason.DEFAULT, repository.connection(0));
+        try {
+            long[] a = triple(1), b = triple(2);
+            PluginConnection first = repository.connection(1);
+            plugin.transactionStarted(first);
+            for (long[] q : new long[][]{a, b}) {
+                repository.add(q[0], q[1], q[2], q[3]);
+                plugin.statementAdded(q[0], q[1], q[2], q[3], true, first);
+            }
+            plugin.transactionCommit(first);
+            plugin.transactionCompleted(first);
+            PluginConnection second = repository.connection(2);
+            plugin.transactionStarted(second);
+            plugin.handleContextUpdate((Resource) repository.value(a[0]), (IRI) repository.value(a[1]),
+                    repository.value(a[2]), null, false, second);
+            plugin.transactionCommit(second);
+            plugin.transactionCompleted(second);
+
+            long live = repository.resolve(VERS.LIVE);
+            long tripleA = repository.resolve(vf.createTriple((Resource) repository.value(a[0]), (IRI) repository.value(a[1]),
+                    repository.value(a[2])));
+            long tripleB = repository.resolve(vf.createTriple((Resource) repository.value(b[0]), (IRI) repository.value(b[1]),
+                    repository.value(b[2])));
+            PluginConnection query = repository.connection(0);
+            assertEquals(Collections.singletonList(tripleB), subjects(plugin.interpret(0, live, 0, 0, query, null)));
+            assertEquals(1, plugin.estimate(0, live, 0, 0, query, null), 0);
+            assertEquals(Collections.singletonList(tripleB), subjects(plugin.interpret(tripleB, live, 0, 0, query, null)));
+            assertTrue(subjects(plugin.interpret(tripleA, live, 0, 0, query, null)).isEmpty());
+            long falseId = repository.put(vf.createLiteral(false));
+            assertTrue(subjects(plugin.interpret(0, live, falseId, 0, query, null)).isEmpty());
+        } finally {
+            plugin.shutdown(null);
+        }
+    }
+
+    private static List<Long> subjects(StatementIterator iter) {
+        List<Long> subjects = new ArrayList<>();
+        while (iter.next())
+            subjects.add(iter.subject);
+        iter.close();
+        return subjects;
+    }
+
+    @Test
+    public void inProcessDeletesCloseTheIndexedVersions() {
+        int n = 20_000;
+        InProcessTimestampWriter writer = new InProcessTimestampWriter(liveVersions, LoggerFactory.getLogger(TestLiveVersions.class));
+        QuadSet inserts = new QuadSet(n);
+        for (int i = 0; i < n; i++) {
+            long[] q = triple(i);
+            repository.add(q[0], q[1], q[2], q[3]);
+            inserts.add(q[0], q[1], q[2], q[3]);
+        }
+        writer.write(new TransactionBatch(1, T1, inserts, new QuadSet()), repository.connection(1));
+        liveVersions.complete(1, repository.entities());
+        assertEquals(n, liveVersions.size());
+
+        long start = System.nanoTime();
+        writer.write(new TransactionBatch(2, T2, new QuadSet(), inserts), repository.connection(2));
+        liveVersions.complete(2, repository.entities());
+        System.out.printf("Closed %d versions in %.1f ms%n", n, (System.nanoTime() - start) / 1e6);
+
+        assertEquals(0, liveVersions.size());
+        assertTrue(repository.find(0, repository.resolve(VERS.VALID_UNTIL), repository.resolve(VERS.OPEN_END), null).isEmpty());
+        assertEquals(n, repository.find(0, repository.resolve(VERS.VALID_UNTIL), repository.resolve(VERS.timestamp(T2)), null).size());
+    }
+
+    @Test
+    public void sparqlDeletesReplaceTheVersionStatementDirectly() {
+        long[] a = triple(1);
+        openVersion(a, T1);
+        liveVersions.load(repository.entities(), repository.statements());
+        SparqlTimestampWriter writer = new SparqlTimestampWriter("http://localhost:7200/repositories/test", liveVersions,
+                entityCache, LoggerFactory.getLogger(TestLiveVersions.class));
+        QuadSet deletes = new QuadSet();
+        deletes.add(a[0], a[1], a[2], a[3]);
+
+        List<CommitPipeline.Task> tasks = writer.write(new TransactionBatch(2, T2, new QuadSet(), deletes), repository.connection(2));
+        String update = writer.render(((SparqlTimestampWriter.UpdateTask) tasks.get(0)).segments);
+        String version = "<<<<<http://example.com/s/1> <http://example.com/p> " + PluginUtils.entityToString(vf.createLiteral(1))
+                + ">> <http://example.com/metadata/versioning#valid_from> " + PluginUtils.entityToString(VERS.timestamp(T1))
+                + ">> <http://example.com/metadata/versioning#valid_until> ";
+        int delete = update.indexOf("delete data {"), insert = update.indexOf("insert data {");
+        assertTrue(update, delete >= 0 && insert > delete);
+        assertTrue(update, update.substring(delete, insert).contains(version + PluginUtils.entityToString(VERS.OPEN_END)));
+        assertTrue(update, update.substring(insert).contains(version + PluginUtils.entityToString(VERS.timestamp(T2))));
+        assertFalse("No pattern is evaluated", update.contains("where"));
+        assertFalse(liveVersions.isLive(2, a[0], a[1], a[2], a[3]));
+        liveVersions.complete(2, repository.entities());
+
+        assertEquals("Nothing is left to close", Collections.emptyList(),
+                writer.write(new TransactionBatch(3, T2, new QuadSet(), deletes), repository.connection(3)));
+    }
+}
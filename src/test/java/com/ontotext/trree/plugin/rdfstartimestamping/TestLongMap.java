@@ -0,0 +1,52 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the primitive map from entity IDs to longs.
+ */
+public class TestLongMap {
+
+    @Test
+    public void zeroIsAKey() {
+        LongMap map = new LongMap();
+        assertFalse(map.containsKey(0));
+        assertEquals(-1, map.get(0, -1));
+        map.put(0, 5);
+        assertTrue(map.containsKey(0));
+        assertEquals(5, map.get(0, -1));
+        assertEquals(1, map.size());
+        assertTrue(map.remove(0));
+        assertFalse(map.remove(0));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void behavesLikeAMapUnderRandomChanges() {
+        LongMap map = new LongMap();
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200_000; i++) {
+            // a small range so that removals hit and probe sequences collide
+            long key = random.nextInt(5000) - 100;
+            if (random.nextBoolean()) {
+                long value = random.nextLong();
+                map.put(key, value);
+                expected.put(key, value);
+            } else {
+                assertEquals(expected.remove(key) != null, map.remove(key));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (long key = -100; key < 4900; key++) {
+            assertEquals(expected.containsKey(key), map.containsKey(key));
+            assertEquals((long) expected.getOrDefault(key, Long.MIN_VALUE), map.get(key, Long.MIN_VALUE));
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the primitive entity ID set.
+ */
+public class TestLongSet {
+
+    @Test
+    public void zeroIsAMember() {
+        LongSet ids = new LongSet();
+        assertFalse(ids.contains(0));
+        assertTrue(ids.add(0));
+        assertFalse(ids.add(0));
+        assertTrue(ids.contains(0));
+        assertEquals(1, ids.size());
+        assertTrue(ids.remove(0));
+        assertTrue(ids.isEmpty());
+    }
+
+    @Test
+    public void behavesLikeASetUnderRandomChanges() {
+        LongSet ids = new LongSet();
+        Set<Long> expected = new HashSet<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200_000; i++) {
+            // a small range so that removals hit and probe sequences collide
+            long id = random.nextInt(5000) - 100;
+            if (random.nextBoolean())
+                assertEquals(expected.add(id), ids.add(id));
+            else
+                assertEquals(expected.remove(id), ids.remove(id));
+        }
+        assertEquals(expected.size(), ids.size());
+        for (long id = -100; id < 4900; id++)
+            assertEquals(expected.contains(id), ids.contains(id));
+        assertEquals(expected.size(), ids.toArray().length);
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        LongSet ids = new LongSet(0, 7, 42);
+        LongSet copy = new LongSet(ids);
+        copy.remove(7);
+        copy.add(9);
+        assertArrayEquals(new long[]{0, 7, 42}, ids.toArray());
+        assertArrayEquals(new long[]{0, 9, 42}, copy.toArray());
+    }
+}
@@ -0,0 +1,134 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.InitReason;
+import com.ontotext.trree.sdk.PluginConnection;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests reducing a transaction's changes to the net change per quad, on its own and through the plugin's listeners
+ * in in-process mode.
+ */
+public class TestNetChanges {
+
+    private static final ValueFactory vf = SimpleValueFactory.getInstance();
+
+    private final InMemoryRepository repository = new InMemoryRepository();
+    private final long s = repository.put(vf.createIRI("http://example.com/s"));
+    private final long p = repository.put(vf.createIRI("http://example.com/p"));
+    private final long o = repository.put(vf.createLiteral("o"));
+    private RDFStarTimestampingPlugin plugin;
+    private long transactionId;
+
+    @Before
+    public void initialize() {
+        plugin = new RDFStarTimestampingPlugin();
+        plugin.setLogger(LoggerFactory.getLogger(TestNetChanges.class));
+        plugin.initialize(InitReason.DEFAULT, repository.connection(0));
+    }
+
+    @After
+    public void shutdown() {
+        plugin.shutdown(null);
+    }
+
+    @Test
+    public void lastOperationPerQuadWins() {
+        NetChanges changes = new NetChanges();
+        changes.insert(1, 2, 3, 0);
+        changes.delete(1, 2, 3, 0);
+        changes.delete(4, 5, 6, 0);
+        changes.insert(4, 5, 6, 0);
+        changes.insert(7, 8, 9, 0);
+        changes.insert(7, 8, 9, 0);
+        changes.delete(10, 11, 12, 0);
+        assertEquals(4, changes.size());
+
+        assertTrue(changes.wasInserted(1, 2, 3, 0));
+        assertTrue(changes.wasInserted(4, 5, 6, 0));
+        assertFalse(changes.wasInserted(10, 11, 12, 0));
+
+        QuadSet inserts = changes.inserts();
+        assertEquals(2, inserts.size());
+        assertTrue(inserts.contains(4, 5, 6, 0));
+        assertTrue(inserts.contains(7, 8, 9, 0));
+        QuadSet excluded = new QuadSet();
+        excluded.add(1, 2, 3, 0);
+        QuadSet deletes = changes.deletes(excluded);
+        assertEquals(1, deletes.size());
+        assertTrue(deletes.contains(10, 11, 12, 0));
+    }
+
+    @Test
+    public void insertThenDeleteInOneTransactionLeavesNothing() {
+        PluginConnection connection = begin();
+        insert(connection);
+        // GraphDB removes the plain triple and hands the delete request to the context update handler
+        repository.remove(s, p, o, 0);
+        plugin.statementRemoved(s, p, o, 0, true, connection);
+        plugin.handleContextUpdate((Resource) repository.value(s),
+                (IRI) repository.value(p), repository.value(o), null, false, connection);
+        complete(connection);
+
+        assertEquals(0, repository.size());
+    }
+
+    @Test
+    public void insertingAndDeletingALiveTripleClosesItsVersion() {
+        PluginConnection first = begin();
+        insert(first);
+        complete(first);
+
+        PluginConnection second = begin();
+        insert(second);
+        repository.remove(s, p, o, 0);
+        plugin.statementRemoved(s, p, o, 0, true, second);
+        plugin.handleContextUpdate((Resource) repository.value(s),
+                (IRI) repository.value(p), repository.value(o), null, false, second);
+        complete(second);
+
+        assertTrue("The user's delete closes the live version",
+                repository.find(0, repository.resolve(VERS.VALID_UNTIL), repository.resolve(VERS.OPEN_END), null).isEmpty());
+        assertEquals(1, repository.size());
+        assertFalse(repository.contains(s, p, o, 0));
+    }
+
+    @Test
+    public void reinsertingALiveTripleOpensNoNewVersion() {
+        PluginConnection first = begin();
+        insert(first);
+        complete(first);
+        assertEquals(1, repository.size());
+
+        PluginConnection second = begin();
+        insert(second);
+        complete(second);
+
+        assertEquals("Only the first version is left", 1, repository.size());
+        assertFalse(repository.contains(s, p, o, 0));
+    }
+
+    private PluginConnection begin() {
+        PluginConnection connection = repository.connection(++transactionId);
+        plugin.transactionStarted(connection);
+        return connection;
+    }
+
+    private void insert(PluginConnection connection) {
+        repository.add(s, p, o, 0);
+        plugin.statementAdded(s, p, o, 0, true, connection);
+    }
+
+    private void complete(PluginConnection connection) {
+        plugin.transactionCommit(connection);
+        plugin.transactionCompleted(connection);
+    }
+}
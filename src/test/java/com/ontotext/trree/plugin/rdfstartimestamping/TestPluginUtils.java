@@ -0,0 +1,69 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Model;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.XSD;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.Rio;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the N-Triples-star serialization of entities.
+ */
+public class TestPluginUtils {
+
+    private static final ValueFactory vf = SimpleValueFactory.getInstance();
+    private static final IRI S = vf.createIRI("http://example.com/s");
+    private static final IRI P = vf.createIRI("http://example.com/p");
+
+    @Test
+    public void serializesAllValueTypes() {
+        assertEquals("<http://example.com/s>", PluginUtils.entityToString(S));
+        assertEquals("_:b1", PluginUtils.entityToString(vf.createBNode("b1")));
+        assertEquals("\"plain\"", PluginUtils.entityToString(vf.createLiteral("plain")));
+        assertEquals("\"chat\"@fr", PluginUtils.entityToString(vf.createLiteral("chat", "fr")));
+        assertEquals("\"1\"^^<http://www.w3.org/2001/XMLSchema#integer>",
+                PluginUtils.entityToString(vf.createLiteral("1", XSD.INTEGER)));
+        assertEquals("<<<<<http://example.com/s> <http://example.com/p> \"o\">> <http://example.com/p> _:b>>",
+                PluginUtils.entityToString(vf.createTriple(vf.createTriple(S, P, vf.createLiteral("o")), P, vf.createBNode("b"))));
+    }
+
+    @Test
+    public void escapedLiteralsRoundTrip() throws IOException {
+        String label = "quote \" backslash \\ newline \n tab \t return \r bell \u0007 umlaut \u00e4 emoji \uD83D\uDE00";
+        Literal literal = vf.createLiteral(label);
+        assertEquals(literal, parseObject(PluginUtils.entityToString(literal)));
+        assertEquals("\"a\\\"b\\\\c\\nd\\u0007\"", PluginUtils.entityToString(vf.createLiteral("a\"b\\c\nd\u0007")));
+    }
+
+    @Test
+    public void deeplyNestedTriplesRoundTrip() throws IOException {
+        Value value = vf.createLiteral("leaf \"with\" quotes");
+        for (int depth = 0; depth < 20; depth++)
+            value = vf.createTriple(S, P, value);
+        assertEquals(value, parseObject(PluginUtils.entityToString(value)));
+    }
+
+    @Test
+    public void appendsToAnyAppendable() throws IOException {
+        StringBuilder sb = new StringBuilder("x ");
+        PluginUtils.appendEntity(S, (Appendable) new StringBuffer());
+        PluginUtils.appendEntity(S, sb);
+        assertEquals("x <http://example.com/s>", sb.toString());
+    }
+
+    private static Value parseObject(String object) throws IOException {
+        Model model = Rio.parse(new StringReader("<http://example.com/s> <http://example.com/p> " + object + " ."),
+                "", RDFFormat.TURTLESTAR);
+        return model.iterator().next().getObject();
+    }
+}
@@ -0,0 +1,60 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the primitive quad to long map.
+ */
+public class TestQuadMap {
+
+    @Test
+    public void putGetAndRemove() {
+        QuadMap map = new QuadMap();
+        assertEquals(0, map.put(1, 2, 3, 0, 42));
+        assertEquals(42, map.put(1, 2, 3, 0, 43));
+        assertEquals(1, map.size());
+        assertEquals(43, map.get(1, 2, 3, 0));
+        assertEquals(0, map.get(1, 2, 3, 4));
+        assertEquals(43, map.remove(1, 2, 3, 0));
+        assertEquals(0, map.remove(1, 2, 3, 0));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void behavesLikeAMapUnderRandomChanges() {
+        QuadMap map = new QuadMap(1);
+        Map<List<Long>, Long> expected = new HashMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 200_000; i++) {
+            long s = random.nextInt(100), p = random.nextInt(5), o = random.nextInt(20), c = random.nextInt(3);
+            List<Long> key = Arrays.asList(s, p, o, c);
+            if (random.nextInt(3) > 0) {
+                long value = 1 + random.nextInt(1000);
+                Long previous = expected.put(key, value);
+                assertEquals(previous == null ? 0 : previous, map.put(s, p, o, c, value));
+            } else {
+                Long previous = expected.remove(key);
+                assertEquals(previous == null ? 0 : previous, map.remove(s, p, o, c));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<List<Long>, Long> entry : expected.entrySet()) {
+            List<Long> k = entry.getKey();
+            assertEquals(entry.getValue().longValue(), map.get(k.get(0), k.get(1), k.get(2), k.get(3)));
+        }
+        int[] visited = {0};
+        map.forEach((s, p, o, c, value) -> {
+            assertEquals(expected.get(Arrays.asList(s, p, o, c)).longValue(), value);
+            visited[0]++;
+        });
+        assertEquals(expected.size(), visited[0]);
+    }
+}
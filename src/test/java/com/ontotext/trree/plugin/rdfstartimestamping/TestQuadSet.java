@@ -0,0 +1,51 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the entity ID quad set used for the pending changes of a transaction.
+ */
+public class TestQuadSet {
+
+    @Test
+    public void addContainsAndDuplicates() {
+        QuadSet quads = new QuadSet();
+        assertTrue(quads.isEmpty());
+        assertTrue(quads.add(1, 2, 3, 0));
+        assertTrue(quads.add(1, 2, 3, 4));
+        assertFalse("Same quad must not be added twice", quads.add(1, 2, 3, 0));
+        assertEquals(2, quads.size());
+        assertTrue(quads.contains(1, 2, 3, 4));
+        assertFalse(quads.contains(3, 2, 1, 0));
+    }
+
+    @Test
+    public void growsAndKeepsInsertionOrder() {
+        QuadSet quads = new QuadSet(1);
+        int n = 100_000;
+        for (int i = 0; i < n; i++)
+            assertTrue(quads.add(i, i % 7, i * 31L, i % 3));
+        assertEquals(n, quads.size());
+        for (int i = 0; i < n; i++) {
+            assertTrue(quads.contains(i, i % 7, i * 31L, i % 3));
+            assertEquals(i, quads.subject(i));
+            assertEquals(i % 7, quads.predicate(i));
+            assertEquals(i * 31L, quads.object(i));
+            assertEquals(i % 3, quads.context(i));
+        }
+    }
+
+    @Test
+    public void clearAllowsReuse() {
+        QuadSet quads = new QuadSet();
+        for (int i = 0; i < 1000; i++)
+            quads.add(i, 1, 2, 3);
+        quads.clear();
+        assertTrue(quads.isEmpty());
+        assertFalse(quads.contains(5, 1, 2, 3));
+        assertTrue(quads.add(5, 1, 2, 3));
+        assertEquals(5, quads.subject(0));
+    }
+}
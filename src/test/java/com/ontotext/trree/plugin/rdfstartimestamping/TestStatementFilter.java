@@ -0,0 +1,48 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests which statements the listeners pass on for versioning.
+ */
+public class TestStatementFilter {
+
+    private static final long VALID_UNTIL = 3, VALID_FROM = 4, GRAPH = 10, OTHER_GRAPH = 11;
+
+    private final StatementFilter filter = new StatementFilter(new long[]{VALID_UNTIL, VALID_FROM}, new LongSet(0, GRAPH));
+
+    @Test
+    public void acceptsExplicitUserStatementsInVersionedContexts() {
+        assertTrue(filter.accept(1, 2, 5, 0, true));
+        assertTrue(filter.accept(1, 2, 5, GRAPH, true));
+    }
+
+    @Test
+    public void skipsInferredStatements() {
+        assertFalse(filter.accept(1, 2, 5, 0, false));
+    }
+
+    @Test
+    public void skipsVersionMetadata() {
+        assertFalse(filter.accept(20, VALID_UNTIL, 21, 0, true));
+        assertFalse(filter.accept(20, VALID_FROM, 21, GRAPH, true));
+    }
+
+    @Test
+    public void skipsOtherContextsUntilTheyAreVersioned() {
+        assertFalse(filter.accept(1, 2, 5, OTHER_GRAPH, true));
+        LongSet contexts = new LongSet(filter.getVersionedContexts());
+        contexts.add(OTHER_GRAPH);
+        filter.setVersionedContexts(contexts);
+        assertTrue(filter.accept(1, 2, 5, OTHER_GRAPH, true));
+    }
+
+    @Test
+    public void versionsAllContextsWithoutContextSet() {
+        StatementFilter all = new StatementFilter(new long[]{VALID_UNTIL}, null);
+        assertTrue(all.accept(1, 2, 5, OTHER_GRAPH, true));
+        assertFalse(all.accept(1, VALID_UNTIL, 5, OTHER_GRAPH, true));
+    }
+}
@@ -0,0 +1,371 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.InitReason;
+import com.ontotext.trree.sdk.PluginConnection;
+import com.ontotext.trree.sdk.PluginException;
+import com.ontotext.trree.sdk.StatementIterator;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Triple;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the temporal index on its own and the {@code vers:asOf} and {@code vers:during} lookups of the plugin in
+ * in-process mode.
+ */
+public class TestTemporalIndex {
+
+    private static final ValueFactory vf = SimpleValueFactory.getInstance();
+    private static final Logger logger = LoggerFactory.getLogger(TestTemporalIndex.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final InMemoryRepository repository = new InMemoryRepository();
+    private long transactionId;
+
+    /**
+     * Records {@code kind, context, time, version} quadruples.
+     */
+    private static void record(TemporalIndex index, long... events) {
+        for (int i = 0; i < events.length; i += 4)
+            index.record(events[i], events[i + 1], events[i + 2], events[i + 3]);
+        index.flush();
+    }
+
+    private static Set<Long> set(long... ids) {
+        Set<Long> set = new HashSet<>();
+        for (long id : ids)
+            set.add(id);
+        return set;
+    }
+
+    @Test
+    public void versionsValidAtATimeOrInARange() {
+        TemporalIndex index = new TemporalIndex(null, logger);
+        // version 1 valid in [10, 20), version 2 from 15 on, version 3 in [30, 40) of another context
+        record(index, TemporalIndex.OPENED, 0, 10, 1, TemporalIndex.OPENED, 0, 15, 2, TemporalIndex.CLOSED, 0, 20, 1,
+                TemporalIndex.OPENED, 7, 30, 3, TemporalIndex.CLOSED, 7, 40, 3);
+
+        assertEquals(set(), set(index.overlapping(0, 9, 10)));
+        assertEquals(set(1), set(index.overlapping(0, 10, 11)));
+        assertEquals(set(1, 2), set(index.overlapping(0, 19, 20)));
+        assertEquals(set(2), set(index.overlapping(0, 20, 21)));
+        assertEquals(set(1, 2), set(index.overlapping(0, 0, 100)));
+        assertEquals(set(3), set(index.overlapping(7, 35, 36)));
+        assertEquals(set(), set(index.overlapping(7, 40, 41)));
+        assertEquals(1, index.live());
+        assertEquals(2, index.estimate(0, 16));
+    }
+
+    @Test
+    public void overlappingFindsWhatAScanOfAllVersionsFinds() {
+        TemporalIndex index = new TemporalIndex(null, logger);
+        Random random = new Random(7);
+        int n = 3000;
+        long[] from = new long[n + 1], until = new long[n + 1];
+        for (int version = 1; version <= n; version++) {
+            // opened mostly in time order, closed in the order the versions were opened
+            from[version] = version * 10L - random.nextInt(50);
+            until[version] = Long.MAX_VALUE;
+            record(index, TemporalIndex.OPENED, 0, from[version], version);
+            int closing = 1 + random.nextInt(version);
+            if (until[closing] == Long.MAX_VALUE && random.nextInt(3) > 0) {
+                until[closing] = Math.max(from[closing] + 1, version * 10L);
+                record(index, TemporalIndex.CLOSED, 0, until[closing], closing);
+            }
+            if (version % 100 == 0) {
+                long start = random.nextInt(version * 10), end = start + 1 + random.nextInt(200);
+                Set<Long> expected = new HashSet<>();
+                for (long v = 1; v <= version; v++) {
+                    if (from[(int) v] < end && until[(int) v] > start)
+                        expected.add(v);
+                }
+                assertEquals(expected, set(index.overlapping(0, start, end)));
+            }
+        }
+    }
+
+    @Test
+    public void historyPartitionsAnswerLikeOneTimeline() {
+        TemporalIndex plain = new TemporalIndex(null, logger);
+        TemporalIndex monthly = new TemporalIndex(null, new HistoryPartitions(HistoryPartitions.Period.MONTH), logger);
+        long day = 24 * 3600 * 1000L;
+        // 2022-01-01T00:00:00Z
+        long start = 1640995200000L;
+        Random random = new Random(42);
+        for (long version = 1; version <= 500; version++) {
+            long from = start + random.nextInt(200) * day;
+            long[] events = {TemporalIndex.OPENED, 0, from, version};
+            if (random.nextInt(4) > 0) {
+                long until = from + 1 + random.nextInt(60) * day;
+                events = random.nextBoolean() ? new long[]{TemporalIndex.OPENED, 0, from, version, TemporalIndex.CLOSED, 0, until, version}
+                        : new long[]{TemporalIndex.CLOSED, 0, until, version, TemporalIndex.OPENED, 0, from, version};
+            }
+            record(plain, events);
+            record(monthly, events);
+        }
+        assertEquals(plain.live(), monthly.live());
+        assertEquals(1, plain.historyPartitions());
+        assertTrue(monthly.historyPartitions() > 6);
+        for (int i = 0; i < 200; i++) {
+            long from = start + random.nextInt(300) * day, to = from + 1 + random.nextInt(40) * day;
+            assertEquals(set(plain.overlapping(0, from, to)), set(monthly.overlapping(0, from, to)));
+        }
+        assertEquals(set(plain.overlapping(0, Long.MIN_VALUE, Long.MAX_VALUE)),
+                set(monthly.overlapping(0, Long.MIN_VALUE, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void versionsClosedOutOfOrderAreFoundInTheirPartition() {
+        TemporalIndex index = new TemporalIndex(null, new HistoryPartitions(HistoryPartitions.Period.MONTH), logger);
+        long day = 24 * 3600 * 1000L;
+        // 2022-01-01T00:00:00Z
+        long start = 1640995200000L;
+        Random random = new Random(11);
+        int n = 2000;
+        long[] from = new long[n + 1], until = new long[n + 1];
+        List<Integer> closing = new ArrayList<>();
+        for (int version = 1; version <= n; version++) {
+            from[version] = start + random.nextInt(365) * day;
+            until[version] = from[version] + 1 + random.nextInt(90 * 24) * 3600_000L;
+            record(index, TemporalIndex.OPENED, 0, from[version], version);
+            closing.add(version);
+        }
+        Collections.shuffle(closing, random);
+        for (int version : closing)
+            record(index, TemporalIndex.CLOSED, 0, until[version], version);
+
+        for (int i = 0; i < 300; i++) {
+            long low = start + random.nextInt(480) * day, high = low + 1 + random.nextInt(20 * 24) * 3600_000L;
+            Set<Long> expected = new HashSet<>();
+            for (int version = 1; version <= n; version++) {
+                if (from[version] < high && until[version] > low)
+                    expected.add((long) version);
+            }
+            assertEquals(expected, set(index.overlapping(0, low, high)));
+        }
+    }
+
+    @Test
+    public void changesWithinAWindow() {
+        TemporalIndex index = new TemporalIndex(null, logger);
+        record(index, TemporalIndex.OPENED, 0, 10, 1, TemporalIndex.OPENED, 0, 15, 2, TemporalIndex.CLOSED, 0, 20, 1,
+                TemporalIndex.OPENED, 0, 25, 3);
+        assertArrayEquals(new long[]{2, TemporalIndex.OPENED, 1, TemporalIndex.CLOSED}, index.changes(0, 10, 20));
+        assertEquals(2, index.changeCount(0, 10, 20));
+        assertArrayEquals(new long[]{1, TemporalIndex.OPENED}, index.changes(0, 9, 10));
+        assertEquals(0, index.changes(0, 25, 100).length);
+        assertEquals(0, index.changes(7, 0, 100).length);
+    }
+
+    @Test
+    public void outOfOrderAndRepeatedRecordsAreSortedAndIgnored() {
+        TemporalIndex index = new TemporalIndex(null, logger);
+        record(index, TemporalIndex.OPENED, 0, 30, 3, TemporalIndex.OPENED, 0, 10, 1);
+        record(index, TemporalIndex.OPENED, 0, 20, 2, TemporalIndex.OPENED, 0, 10, 1);
+        assertEquals(3, index.size());
+        assertEquals(set(1), set(index.overlapping(0, 15, 16)));
+        assertEquals(set(1, 2), set(index.overlapping(0, 25, 26)));
+    }
+
+    @Test
+    public void persistsAppendedRecordsAndCutsATornRecord() throws IOException {
+        File file = new File(folder.getRoot(), "temporal-index");
+        TemporalIndex index = new TemporalIndex(file, logger);
+        assertFalse("There is no file yet", index.load());
+        record(index, TemporalIndex.OPENED, 0, 10, 1, TemporalIndex.OPENED, 0, 15, 2);
+        record(index, TemporalIndex.CLOSED, 0, 20, 1);
+        index.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() + 5);
+        }
+
+        TemporalIndex reopened = new TemporalIndex(file, logger);
+        assertTrue(reopened.load());
+        assertEquals(3 * 32, file.length());
+        assertEquals(2, reopened.size());
+        assertEquals(1, reopened.live());
+        assertEquals(set(2), set(reopened.overlapping(0, 25, 26)));
+        record(reopened, TemporalIndex.OPENED, 0, 30, 3);
+        reopened.close();
+        TemporalIndex again = new TemporalIndex(file, logger);
+        again.load();
+        assertEquals(set(2, 3), set(again.overlapping(0, 35, 36)));
+    }
+
+    @Test
+    public void rebuildsFromTheStoredVersions() throws IOException {
+        OffsetDateTime t1 = OffsetDateTime.parse("2022-03-28T12:00:00.000+02:00");
+        OffsetDateTime t2 = OffsetDateTime.parse("2022-03-28T13:00:00.000+02:00");
+        long validUntil = repository.put(VERS.VALID_UNTIL);
+        long closed = repository.put(vf.createTriple(vf.createTriple(vf.createIRI("http://example.com/a"),
+                vf.createIRI("http://example.com/p"), vf.createLiteral(1)), VERS.VALID_FROM, VERS.timestamp(t1)));
+        long live = repository.put(vf.createTriple(vf.createTriple(vf.createIRI("http://example.com/b"),
+                vf.createIRI("http://example.com/p"), vf.createLiteral(2)), VERS.VALID_FROM, VERS.timestamp(t1)));
+        repository.add(closed, validUntil, repository.put(VERS.timestamp(t2)), 0);
+        repository.add(live, validUntil, repository.put(VERS.OPEN_END), 0);
+
+        File file = new File(folder.getRoot(), "temporal-index");
+        TemporalIndex index = new TemporalIndex(file, logger);
+        assertEquals(2, index.rebuild(repository.entities(), repository.statements()));
+        index.close();
+        TemporalIndex reopened = new TemporalIndex(file, logger);
+        reopened.load();
+        long between = t1.toInstant().toEpochMilli() + 1;
+        assertEquals(set(closed, live), set(reopened.overlapping(0, between, between + 1)));
+        long after = t2.toInstant().toEpochMilli();
+        assertEquals(set(live), set(reopened.overlapping(0, after, after + 1)));
+        assertEquals(1, reopened.live());
+    }
+
+    @Test
+    public void asOfAndDuringFollowTheCommittedVersions() throws InterruptedException {
+        RDFStarTimestampingPlugin plugin = new RDFStarTimestampingPlugin();
+        plugin.setLogger(logger);
+        plugin.initialize(InitReason.DEFAULT, repository.connection(0));
+        try {
+            long p = repository.put(vf.createIRI("http://example.com/p"));
+            long a = repository.put(vf.createIRI("http://example.com/a")), b = repository.put(vf.createIRI("http://example.com/b"));
+            long c = repository.put(vf.createIRI("http://example.com/c"));
+            long o = repository.put(vf.createLiteral("o"));
+
+            PluginConnection first = begin(plugin);
+            insert(plugin, first, a, p, o);
+            insert(plugin, first, b, p, o);
+            complete(plugin, first);
+            OffsetDateTime t1 = validFrom(a);
+            Thread.sleep(5);
+            PluginConnection second = begin(plugin);
+            plugin.handleContextUpdate((Resource) repository.value(a), (IRI) repository.value(p), repository.value(o), null,
+                    false, second);
+            complete(plugin, second);
+            Thread.sleep(5);
+            PluginConnection third = begin(plugin);
+            insert(plugin, third, c, p, o);
+            complete(plugin, third);
+            OffsetDateTime t3 = validFrom(c);
+
+            assertEquals(set(), subjects(plugin, VERS.AS_OF, VERS.timestamp(t1.minusNanos(1_000_000))));
+            assertEquals(set(a, b), subjects(plugin, VERS.AS_OF, VERS.timestamp(t1)));
+            assertEquals(set(b), subjects(plugin, VERS.AS_OF, VERS.timestamp(t3.minusNanos(1_000_000))));
+            assertEquals(set(b, c), subjects(plugin, VERS.AS_OF, VERS.timestamp(t3)));
+            assertEquals(set(a, b, c), subjects(plugin, VERS.DURING,
+                    vf.createLiteral(VERS.timestamp(t1).getLabel() + "/" + VERS.timestamp(t3.plusNanos(1_000_000)).getLabel())));
+
+            try {
+                subjects(plugin, VERS.AS_OF, vf.createLiteral("yesterday"));
+                fail("A time that cannot be parsed is an error");
+            } catch (PluginException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("yesterday"));
+            }
+        } finally {
+            plugin.shutdown(null);
+        }
+    }
+
+    @Test
+    public void addedAndRemovedAreTheNetChangesBetweenTwoSnapshots() throws InterruptedException {
+        RDFStarTimestampingPlugin plugin = new RDFStarTimestampingPlugin();
+        plugin.setLogger(logger);
+        plugin.initialize(InitReason.DEFAULT, repository.connection(0));
+        try {
+            long p = repository.put(vf.createIRI("http://example.com/p"));
+            long a = repository.put(vf.createIRI("http://example.com/a")), b = repository.put(vf.createIRI("http://example.com/b"));
+            long c = repository.put(vf.createIRI("http://example.com/c"));
+            long o = repository.put(vf.createLiteral("o"));
+
+            PluginConnection first = begin(plugin);
+            insert(plugin, first, a, p, o);
+            insert(plugin, first, b, p, o);
+            complete(plugin, first);
+            OffsetDateTime t1 = validFrom(a);
+            Thread.sleep(5);
+            PluginConnection second = begin(plugin);
+            plugin.handleContextUpdate((Resource) repository.value(a), (IRI) repository.value(p), repository.value(o), null,
+                    false, second);
+            complete(plugin, second);
+            Thread.sleep(5);
+            PluginConnection third = begin(plugin);
+            insert(plugin, third, c, p, o);
+            complete(plugin, third);
+            OffsetDateTime t3 = validFrom(c);
+
+            assertEquals("Added and removed again", set(b, c), subjects(plugin, VERS.ADDED, interval(t1.minusNanos(1_000_000), t3)));
+            assertEquals(set(c), subjects(plugin, VERS.ADDED, interval(t1, t3)));
+            assertEquals(set(a), subjects(plugin, VERS.REMOVED, interval(t1, t3)));
+            assertEquals(set(), subjects(plugin, VERS.REMOVED, interval(t1.minusNanos(1_000_000), t3)));
+            assertEquals(set(), subjects(plugin, VERS.ADDED, interval(t3, t3.plusNanos(1_000_000))));
+        } finally {
+            plugin.shutdown(null);
+        }
+    }
+
+    private static Value interval(OffsetDateTime start, OffsetDateTime end) {
+        return vf.createLiteral(VERS.timestamp(start).getLabel() + "/" + VERS.timestamp(end).getLabel());
+    }
+
+    /**
+     * @return the subjects of the embedded triples the plugin binds for the pattern
+     */
+    private Set<Long> subjects(RDFStarTimestampingPlugin plugin, IRI predicate, Value time) {
+        long predicateId = repository.resolve(predicate), object = repository.put(time);
+        PluginConnection connection = repository.connection(0);
+        assertTrue(plugin.estimate(0, predicateId, object, 0, connection, null) >= 1);
+        StatementIterator iter = plugin.interpret(0, predicateId, object, 0, connection, null);
+        Set<Long> subjects = new HashSet<>();
+        while (iter.next()) {
+            assertEquals(object, iter.object);
+            Triple embedded = (Triple) repository.value(iter.subject);
+            subjects.add(repository.resolve(embedded.getSubject()));
+        }
+        iter.close();
+        return subjects;
+    }
+
+    private OffsetDateTime validFrom(long subject) {
+        for (long[] version : repository.find(0, repository.resolve(VERS.VALID_UNTIL), 0, null)) {
+            Triple triple = (Triple) repository.value(version[0]);
+            if (repository.resolve(((Triple) triple.getSubject()).getSubject()) == subject)
+                return OffsetDateTime.parse(triple.getObject().stringValue());
+        }
+        throw new AssertionError("No version of " + subject + " in " + Arrays.toString(repository.find(0, 0, 0, null).toArray()));
+    }
+
+    private PluginConnection begin(RDFStarTimestampingPlugin plugin) {
+        PluginConnection connection = repository.connection(++transactionId);
+        plugin.transactionStarted(connection);
+        return connection;
+    }
+
+    private void insert(RDFStarTimestampingPlugin plugin, PluginConnection connection, long s, long p, long o) {
+        repository.add(s, p, o, 0);
+        plugin.statementAdded(s, p, o, 0, true, connection);
+    }
+
+    private void complete(RDFStarTimestampingPlugin plugin, PluginConnection connection) {
+        plugin.transactionCommit(connection);
+        plugin.transactionCompleted(connection);
+    }
+}
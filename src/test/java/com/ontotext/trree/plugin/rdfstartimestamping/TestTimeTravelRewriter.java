@@ -0,0 +1,119 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.XSD;
+import org.eclipse.rdf4j.query.algebra.StatementPattern;
+import org.eclipse.rdf4j.query.algebra.TripleRef;
+import org.eclipse.rdf4j.query.algebra.TupleExpr;
+import org.eclipse.rdf4j.query.algebra.helpers.AbstractQueryModelVisitor;
+import org.eclipse.rdf4j.query.algebra.helpers.StatementPatternCollector;
+import org.eclipse.rdf4j.query.parser.sparql.SPARQLParser;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the rewriting of time travel queries and the cache of rewritten plans.
+ */
+public class TestTimeTravelRewriter {
+
+    private static final ValueFactory vf = SimpleValueFactory.getInstance();
+    private static final Logger logger = LoggerFactory.getLogger(TestTimeTravelRewriter.class);
+    private static final Literal T1 = vf.createLiteral("2022-03-28T12:00:00.000+02:00", XSD.DATETIME);
+    private static final Literal T2 = vf.createLiteral("2022-03-29T12:00:00.000+02:00", XSD.DATETIME);
+
+    private final InMemoryRepository repository = new InMemoryRepository();
+
+    private VersionedContexts contexts(String... graphs) {
+        return new VersionedContexts(Arrays.asList(graphs), null, new StatementFilter(new long[0], null),
+                repository.entities(), logger);
+    }
+
+    private static TupleExpr parse(String query) {
+        return new SPARQLParser().parseQuery(query, null).getTupleExpr();
+    }
+
+    private static List<TripleRef> tripleRefs(TupleExpr expr) {
+        List<TripleRef> refs = new ArrayList<>();
+        expr.visit(new AbstractQueryModelVisitor<RuntimeException>() {
+            @Override
+            public void meet(TripleRef node) {
+                refs.add(node);
+            }
+        });
+        return refs;
+    }
+
+    private static List<StatementPattern> snapshots(TupleExpr expr) {
+        List<StatementPattern> snapshots = new ArrayList<>();
+        for (StatementPattern pattern : StatementPatternCollector.process(expr)) {
+            if (VERS.AS_OF.equals(pattern.getPredicateVar().getValue()))
+                snapshots.add(pattern);
+        }
+        return snapshots;
+    }
+
+    @Test
+    public void patternsAreEvaluatedAgainstTheSnapshot() {
+        TimeTravelRewriter rewriter = new TimeTravelRewriter(contexts(VersionedContexts.ALL), 16);
+        TupleExpr query = parse("select * { ?s ?p ?o . ?s <http://example.com/name> ?name }");
+        assertTrue(rewriter.rewrite(query, T1));
+
+        List<StatementPattern> snapshots = snapshots(query);
+        assertEquals(2, snapshots.size());
+        assertEquals(2, StatementPatternCollector.process(query).size());
+        for (StatementPattern snapshot : snapshots)
+            assertEquals(T1, snapshot.getObjectVar().getValue());
+        List<TripleRef> refs = tripleRefs(query);
+        assertEquals(2, refs.size());
+        assertEquals("s", refs.get(0).getSubjectVar().getName());
+        assertEquals(vf.createIRI("http://example.com/name"), refs.get(1).getPredicateVar().getValue());
+        assertEquals(snapshots.get(0).getSubjectVar().getName(), refs.get(0).getExprVar().getName());
+        assertEquals(query.getBindingNames(), parse("select * { ?s ?p ?o . ?s <http://example.com/name> ?name }")
+                .getBindingNames());
+    }
+
+    @Test
+    public void versionMetadataAndUnversionedGraphsAreNotRewritten() {
+        TimeTravelRewriter rewriter = new TimeTravelRewriter(contexts("http://example.com/g1"), 16);
+        TupleExpr metadata = parse("select * { ?t <" + VERS.VALID_UNTIL + "> ?until }");
+        assertFalse(rewriter.rewrite(metadata, T1));
+        assertTrue(tripleRefs(metadata).isEmpty());
+
+        TupleExpr graphs = parse("select * { graph <http://example.com/g1> { ?s ?p ?o } "
+                + "graph <http://example.com/g2> { ?s ?q ?x } }");
+        assertTrue(rewriter.rewrite(graphs, T1));
+        List<StatementPattern> snapshots = snapshots(graphs);
+        assertEquals(1, snapshots.size());
+        assertEquals("http://example.com/g1", snapshots.get(0).getContextVar().getValue().stringValue());
+        assertEquals("p", tripleRefs(graphs).get(0).getPredicateVar().getName());
+    }
+
+    @Test
+    public void repeatedShapesReuseTheCachedPlanWithTheirOwnInstant() {
+        TimeTravelRewriter rewriter = new TimeTravelRewriter(contexts(VersionedContexts.ALL), 16);
+        String query = "select ?s { ?s a <http://example.com/Person> }";
+        TupleExpr first = parse(query);
+        rewriter.rewrite(first, T1);
+        TupleExpr second = parse(query);
+        rewriter.rewrite(second, T2);
+        assertTrue(rewriter.toString(), rewriter.toString().contains("1 hits, 1 misses"));
+        assertEquals(T1, snapshots(first).get(0).getObjectVar().getValue());
+        assertEquals(T2, snapshots(second).get(0).getObjectVar().getValue());
+        assertEquals(1, tripleRefs(second).size());
+
+        rewriter.rewrite(parse("select ?s { ?s a <http://example.com/Place> }"), T1);
+        assertTrue(rewriter.toString(), rewriter.toString().contains("2 cached"));
+        rewriter.clear();
+        rewriter.rewrite(parse(query), T1);
+        assertTrue(rewriter.toString(), rewriter.toString().contains("1 cached, 1 hits, 3 misses"));
+    }
+}
@@ -0,0 +1,169 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests journaling, completion and replay of timestamp jobs, including torn records and the group commit.
+ */
+public class TestTimestampJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(TestTimestampJournal.class);
+    private static final OffsetDateTime TIME = OffsetDateTime.parse("2022-03-28T12:00:00.123+02:00");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file() throws IOException {
+        return new File(folder.getRoot(), "timestamping.journal");
+    }
+
+    private static TransactionBatch batch(long transactionId, int inserts, int deletes) {
+        QuadSet insertQuads = new QuadSet(), deleteQuads = new QuadSet();
+        for (int i = 0; i < inserts; i++)
+            insertQuads.add(transactionId, i + 1, i + 2, 0);
+        for (int i = 0; i < deletes; i++)
+            deleteQuads.add(transactionId, i + 1, i + 3, 7);
+        return new TransactionBatch(transactionId, TIME, insertQuads, deleteQuads);
+    }
+
+    private Map<Long, TransactionBatch> reopen(int initialSize) throws IOException {
+        Map<Long, TransactionBatch> pending = new LinkedHashMap<>();
+        TimestampJournal.open(file(), initialSize, pending, logger).close();
+        return pending;
+    }
+
+    @Test
+    public void unfinishedJobsAreReplayed() throws IOException {
+        long first, second;
+        try (TimestampJournal journal = TimestampJournal.open(file(), 4096, new LinkedHashMap<>(), logger)) {
+            first = journal.append(batch(10, 3, 1));
+            second = journal.append(batch(11, 2, 2));
+            journal.complete(first);
+            journal.sync();
+        }
+        Map<Long, TransactionBatch> pending = reopen(4096);
+        assertEquals(1, pending.size());
+        TransactionBatch replayed = pending.get(second);
+        assertEquals(11, replayed.getTransactionId());
+        assertEquals(TIME, replayed.getTime());
+        assertEquals("2022-03-28T12:00:00.123+02:00", replayed.getTimestamp().getLabel());
+        assertEquals(2, replayed.getInserts().size());
+        assertEquals(2, replayed.getDeletes().size());
+        assertTrue(replayed.getInserts().contains(11, 2, 3, 0));
+        assertTrue(replayed.getDeletes().contains(11, 2, 4, 7));
+    }
+
+    @Test
+    public void journalStartsOverWhenNothingIsPending() throws IOException {
+        long next;
+        try (TimestampJournal journal = TimestampJournal.open(file(), 4096, new LinkedHashMap<>(), logger)) {
+            for (int i = 0; i < 10; i++)
+                journal.complete(journal.append(batch(i, 5, 5)));
+            assertEquals(0, journal.pendingJobs());
+            next = journal.append(batch(42, 1, 0));
+            journal.sync();
+        }
+        Map<Long, TransactionBatch> pending = reopen(4096);
+        assertEquals("Records of earlier generations must not be replayed", 1, pending.size());
+        assertEquals(42, pending.get(next).getTransactionId());
+    }
+
+    @Test
+    public void completedJobsAreCompactedAwayWhileOthersArePending() throws IOException {
+        long oldest, newest;
+        try (TimestampJournal journal = TimestampJournal.open(file(), 4096, new LinkedHashMap<>(), logger)) {
+            oldest = journal.append(batch(1, 1, 0));
+            newest = journal.append(batch(2, 5, 5));
+            // the oldest job stays pending, as a failed one does until the next restart, so the journal never starts over
+            for (int i = 3; i < 2000; i++) {
+                long next = journal.append(batch(i, 5, 5));
+                journal.complete(newest);
+                newest = next;
+                assertTrue("Journal size " + journal.size(), journal.size() <= 2 * 4096);
+            }
+            journal.complete(oldest);
+            oldest = journal.append(batch(7, 2, 0));
+            journal.sync();
+        }
+        Map<Long, TransactionBatch> pending = reopen(4096);
+        assertEquals(2, pending.size());
+        assertEquals(1999, pending.get(newest).getTransactionId());
+        assertTrue(pending.get(newest).getDeletes().contains(1999, 5, 7, 7));
+        assertEquals(7, pending.get(oldest).getTransactionId());
+    }
+
+    @Test
+    public void tornRecordEndsTheReplay() throws IOException {
+        long intact;
+        try (TimestampJournal journal = TimestampJournal.open(file(), 4096, new LinkedHashMap<>(), logger)) {
+            intact = journal.append(batch(1, 2, 0));
+            journal.append(batch(2, 2, 0));
+            journal.sync();
+        }
+        // flip a byte in the last quad of the second record
+        try (RandomAccessFile raf = new RandomAccessFile(file(), "rw")) {
+            int end = 16 + 2 * (8 + 8 + 1 + 8 + 8 + 8 + 4 + 4 + 2 * 33);
+            raf.seek(end - 2);
+            raf.write(raf.read() ^ 0xFF);
+        }
+        Map<Long, TransactionBatch> pending = reopen(4096);
+        assertEquals(1, pending.size());
+        assertTrue(pending.containsKey(intact));
+    }
+
+    @Test
+    public void journalGrowsBeyondItsInitialSize() throws IOException {
+        try (TimestampJournal journal = TimestampJournal.open(file(), 64, new LinkedHashMap<>(), logger)) {
+            journal.append(batch(1, 10_000, 5_000));
+            journal.sync();
+        }
+        Map<Long, TransactionBatch> pending = reopen(64);
+        assertEquals(10_000, pending.values().iterator().next().getInserts().size());
+        assertEquals(5_000, pending.values().iterator().next().getDeletes().size());
+    }
+
+    @Test
+    public void concurrentCommitsShareFlushes() throws Exception {
+        int threads = 8, jobsPerThread = 250;
+        List<Thread> committers = new ArrayList<>();
+        long start = System.nanoTime();
+        try (TimestampJournal journal = TimestampJournal.open(file(), 4096, new LinkedHashMap<>(), logger)) {
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                committers.add(new Thread(() -> {
+                    try {
+                        for (int i = 0; i < jobsPerThread; i++) {
+                            journal.append(batch(thread * jobsPerThread + i, 10, 0));
+                            journal.sync();
+                        }
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }));
+            }
+            for (Thread committer : committers)
+                committer.start();
+            for (Thread committer : committers)
+                committer.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d journaled and synced commits in %.2f s: %.0f commits/s%n",
+                threads * jobsPerThread, seconds, threads * jobsPerThread / seconds);
+        assertEquals(threads * jobsPerThread, reopen(4096).size());
+    }
+}
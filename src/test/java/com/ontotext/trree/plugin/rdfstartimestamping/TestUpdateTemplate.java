@@ -0,0 +1,38 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.junit.Test;
+
+import java.text.MessageFormat;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that the compiled update templates render exactly like {@link MessageFormat} did.
+ */
+public class TestUpdateTemplate {
+
+    private static final String[] TEMPLATES = {
+            "timestampedInsertTemplate", "timestampedInsertWithContextTemplate",
+            "timestampedBatchInsertTemplate", "timestampedBatchInsertWithContextTemplate",
+            "timestampedBatchCloseTemplate", "timestampedBatchCloseWithContextTemplate",
+            "timestampedBatchCloseIntoHistoryTemplate", "timestampedBatchCloseIntoHistoryWithContextTemplate"
+    };
+
+    @Test
+    public void compiledTemplatesRenderLikeMessageFormat() {
+        Object[] args = {"<http://example.com/testGraph>", "<http://example.com/s>", "<http://example.com/p>", "\"it's\"",
+                "\"2022-03-28T12:00:00.000+01:00\"^^<http://www.w3.org/2001/XMLSchema#dateTime>"};
+        for (String name : TEMPLATES) {
+            String pattern = PluginUtils.readAllBytes(name);
+            assertEquals(name, MessageFormat.format(pattern, args),
+                    UpdateTemplate.load(name).render(new StringBuilder(), args).toString());
+        }
+    }
+
+    @Test
+    public void quotesAndArguments() {
+        UpdateTemplate template = UpdateTemplate.compile("test", "a '{'{0}'}' b '''{1}'' c {0}");
+        assertEquals(MessageFormat.format("a '{'{0}'}' b '''{1}'' c {0}", "x", "y"),
+                template.render(new StringBuilder(), "x", "y").toString());
+    }
+}
@@ -0,0 +1,121 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import com.ontotext.trree.sdk.InitReason;
+import com.ontotext.trree.sdk.PluginConnection;
+import com.ontotext.trree.sdk.PluginException;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.RDF4J;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the registry of versioned graphs and its control predicate.
+ */
+public class TestVersionedContexts {
+
+    private static final ValueFactory vf = SimpleValueFactory.getInstance();
+    private static final Logger logger = LoggerFactory.getLogger(TestVersionedContexts.class);
+    private static final IRI G1 = vf.createIRI("http://example.com/g1");
+    private static final IRI G2 = vf.createIRI("http://example.com/g2");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final InMemoryRepository repository = new InMemoryRepository();
+    private final StatementFilter filter = new StatementFilter(new long[0], null);
+
+    @After
+    public void clearProperties() {
+        System.clearProperty(PluginConfig.PROPERTY_PREFIX + "versionedGraphs");
+    }
+
+    @Test
+    public void parsesGraphLists() {
+        assertEquals(Collections.singletonList(VersionedContexts.ALL), VersionedContexts.parse(" "));
+        assertEquals(Arrays.asList("default", G1.stringValue(), G2.stringValue()),
+                VersionedContexts.parse("default, " + G1 + "\n" + G2));
+    }
+
+    @Test
+    public void configuredGraphsAreResolvedToContextIds() {
+        VersionedContexts contexts = new VersionedContexts(Arrays.asList("default", G1.stringValue()), null, filter,
+                repository.entities(), logger);
+        assertTrue(filter.isVersioned(0));
+        assertTrue(filter.isVersioned(repository.resolve(G1)));
+        assertFalse(filter.isVersioned(repository.put(G2)));
+        Resource[] updateContexts = contexts.updateContexts();
+        assertEquals("", updateContexts[0].stringValue());
+        assertEquals(G1.stringValue(), updateContexts[1].stringValue());
+    }
+
+    @Test
+    public void allGraphsAreVersionedByDefault() {
+        VersionedContexts contexts = new VersionedContexts(Collections.singletonList(VersionedContexts.ALL), null,
+                filter, repository.entities(), logger);
+        assertTrue(contexts.isAll());
+        assertTrue(filter.isVersioned(repository.put(G2)));
+    }
+
+    @Test
+    public void runtimeChangesAreAppliedAndSurviveARestart() {
+        File file = new File(folder.getRoot(), "versioned-graphs");
+        VersionedContexts contexts = new VersionedContexts(Collections.singletonList("default"), file, filter,
+                repository.entities(), logger);
+        long g1 = repository.put(G1);
+        contexts.apply(Arrays.asList(new VersionedContexts.Change(G1.stringValue(), g1, true),
+                new VersionedContexts.Change("default", 0, false)));
+        assertTrue(filter.isVersioned(g1));
+        assertFalse(filter.isVersioned(0));
+
+        StatementFilter restarted = new StatementFilter(new long[0], null);
+        new VersionedContexts(Collections.singletonList("default"), file, restarted, repository.entities(), logger);
+        assertTrue(restarted.isVersioned(g1));
+        assertFalse(restarted.isVersioned(0));
+    }
+
+    @Test
+    public void controlPredicateTakesEffectWhenTheTransactionCompleted() {
+        System.setProperty(PluginConfig.PROPERTY_PREFIX + "versionedGraphs", "default");
+        RDFStarTimestampingPlugin plugin = new RDFStarTimestampingPlugin();
+        plugin.setLogger(logger);
+        plugin.initialize(InitReason.DEFAULT, repository.connection(0));
+        long versioned = repository.resolve(VERS.VERSIONED);
+        long g1 = repository.put(G1), nil = repository.put(RDF4J.NIL), yes = repository.put(vf.createLiteral(true));
+
+        PluginConnection control = repository.connection(1);
+        plugin.transactionStarted(control);
+        assertTrue(plugin.interpretUpdate(g1, versioned, yes, 0, true, true, control));
+        assertTrue(plugin.interpretUpdate(nil, versioned, yes, 0, false, true, control));
+        assertEquals(1, plugin.getUpdateContexts().length);
+        plugin.transactionCommit(control);
+        plugin.transactionCompleted(control);
+
+        Resource[] updateContexts = plugin.getUpdateContexts();
+        assertEquals(1, updateContexts.length);
+        assertEquals(G1.stringValue(), updateContexts[0].stringValue());
+        plugin.shutdown(null);
+    }
+
+    @Test(expected = PluginException.class)
+    public void controlPredicateIsRefusedWhenAllGraphsAreVersioned() {
+        RDFStarTimestampingPlugin plugin = new RDFStarTimestampingPlugin();
+        plugin.setLogger(logger);
+        plugin.initialize(InitReason.DEFAULT, repository.connection(0));
+        PluginConnection control = repository.connection(1);
+        plugin.interpretUpdate(repository.put(G1), repository.resolve(VERS.VERSIONED), repository.put(vf.createLiteral(true)),
+                0, true, true, control);
+    }
+}
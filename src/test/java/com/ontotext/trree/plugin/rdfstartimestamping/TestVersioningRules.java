@@ -0,0 +1,67 @@
+package com.ontotext.trree.plugin.rdfstartimestamping;
+
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests compiling and matching the include and exclude rules.
+ */
+public class TestVersioningRules {
+
+    private static final ValueFactory vf = SimpleValueFactory.getInstance();
+
+    private final InMemoryRepository repository = new InMemoryRepository();
+    private final long s = repository.put(vf.createIRI("http://example.com/s"));
+    private final long sensor = repository.put(vf.createIRI("http://example.com/sensors/1"));
+    private final long p = repository.put(vf.createIRI("http://example.com/p"));
+
+    private VersioningRules compile(String definition) {
+        return VersioningRules.compile(definition, repository.entities(), new EntityCache(100));
+    }
+
+    @Test
+    public void noRulesVersionEverything() {
+        VersioningRules rules = compile(" ");
+        assertTrue(rules.isEmpty());
+        assertTrue(rules.accept(s, p, 0, repository.entities()));
+        assertEquals("versioning rules: none", rules.toString());
+    }
+
+    @Test
+    public void excludeRulesCountWhatTheyFiltered() {
+        VersioningRules rules = compile("exclude predicate <http://example.com/counter>;\n"
+                + "exclude subject http://example.com/sensors/");
+        long counter = repository.resolve(vf.createIRI("http://example.com/counter"));
+        assertFalse(rules.accept(s, counter, 0, repository.entities()));
+        assertFalse(rules.accept(s, counter, 0, repository.entities()));
+        assertFalse(rules.accept(sensor, p, 0, repository.entities()));
+        assertTrue(rules.accept(s, p, 0, repository.entities()));
+
+        List<VersioningRules.Rule> compiled = rules.getRules();
+        assertEquals(2, compiled.get(0).matched.sum());
+        assertEquals(1, compiled.get(1).matched.sum());
+        assertEquals("versioning rules: [exclude predicate http://example.com/counter] 2"
+                + " [exclude subject http://example.com/sensors/] 1", rules.toString());
+    }
+
+    @Test
+    public void firstMatchingRuleDecides() {
+        VersioningRules rules = compile("exclude graph default; include predicate http://example.com/p");
+        long g = repository.put(vf.createIRI("http://example.com/g"));
+        long other = repository.put(vf.createIRI("http://example.com/other"));
+        assertFalse("The default graph rule comes first", rules.accept(s, p, 0, repository.entities()));
+        assertTrue(rules.accept(s, p, g, repository.entities()));
+        assertFalse("Nothing is versioned unless included", rules.accept(s, other, g, repository.entities()));
+        assertEquals(1, rules.getUnmatched());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMalformedRules() {
+        compile("exclude object http://example.com/o");
+    }
+}